@@ -31,6 +31,42 @@ public interface Constants {
   String END_BLOCK_REGEXP = "endBlockRegexp";
   String PATTERNS_ALLFILE_KEY = "sonar.switchoffviolations.allfile";
   String FILE_REGEXP = "fileRegexp";
+  String PATTERNS_RULE_MARKER_KEY = "sonar.switchoffviolations.rulemarker";
+  String MARKER_REGEXP = "markerRegexp";
+  String END_MARKER_REGEXP = "endMarkerRegexp";
+  String RULE_KEY_GROUP = "ruleKeyGroup";
+
+  // Scan budget
+  String SCAN_TIME_BUDGET_KEY = "sonar.switchoffviolations.scanTimeBudget";
+  String SCAN_BYTES_BUDGET_KEY = "sonar.switchoffviolations.scanBytesBudget";
+  String SCAN_BUDGET_POLICY_KEY = "sonar.switchoffviolations.scanBudgetPolicy";
+  String SCAN_HEADER_LINES_KEY = "sonar.switchoffviolations.scanHeaderLines";
+
+  // Scan result store
+  String SCAN_CACHE_PATH_KEY = "sonar.switchoffviolations.scanCache.path";
+  String SCAN_CACHE_MAX_SIZE_KEY = "sonar.switchoffviolations.scanCache.maxSize";
+
+  // Exclusion manifest
+  String MANIFEST_EXPORT_KEY = "sonar.switchoffviolations.manifest.export";
+  String MANIFEST_IMPORT_KEY = "sonar.switchoffviolations.manifest.import";
+
+  // Sharded scan
+  String SCAN_SHARD_INDEX_KEY = "sonar.switchoffviolations.shard.index";
+  String SCAN_SHARD_COUNT_KEY = "sonar.switchoffviolations.shard.count";
+
+  // Matching
+  String ADAPTIVE_ORDER_KEY = "sonar.switchoffviolations.adaptiveOrder";
+  String COMPILED_MATCHER_KEY = "sonar.switchoffviolations.compiledMatcher";
+  String OFF_HEAP_EXCLUSIONS_KEY = "sonar.switchoffviolations.offHeapExclusions";
+
+  // Exclusion report
+  String EXCLUSION_REPORT_KEY = "sonar.switchoffviolations.report";
+
+  // Event log
+  String EVENT_LOG_KEY = "sonar.switchoffviolations.events.file";
+
+  // JMX metrics
+  String JMX_METRICS_KEY = "sonar.switchoffviolations.jmx";
 
   // Deprecated Properties
   String LOCATION_PARAMETER_KEY = "sonar.switchoffviolations.configFile";
@@ -0,0 +1,253 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.ProjectFileSystem;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing events of the scans of the source files and of the decisions of the filter, appended to a tab-separated file
+ * when {@link Constants#EVENT_LOG_KEY} is set, so that the time spent by the plugin in a slow analysis can be measured
+ * file by file. Decisions taken one by one are aggregated by each thread without lock, and written in batches of
+ * {@link #DECISION_BATCH_SIZE}. The slowest scans are logged at the end of the analysis of the module.
+ * <p/>
+ * Each line is made of the type of the event, its end as a timestamp in milliseconds and its duration in microseconds,
+ * followed by:
+ * <ul>
+ * <li>for <code>scan</code> events: the resource key, the mode (<code>full</code>, <code>reused</code> if the exclusions
+ * of a file with the same content are reused, <code>header</code>), the size of the file in bytes, the number of lines
+ * read and the number of exclusions found</li>
+ * <li>for <code>filter</code> events: the number of violations, and the number of violations switched off</li>
+ * </ul>
+ */
+public class EventLog implements BatchExtension {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventLog.class);
+
+  static final String HEADER = "# switchoffviolations events v1";
+  static final int DECISION_BATCH_SIZE = 1024;
+  private static final int MAX_LOGGED_SCANS = 10;
+  private static final char SEPARATOR = '\t';
+
+  private static final Comparator<ScanTime> BY_DURATION = new Comparator<ScanTime>() {
+    public int compare(ScanTime left, ScanTime right) {
+      return left.nanos < right.nanos ? -1 : (left.nanos == right.nanos ? 0 : 1);
+    }
+  };
+
+  // null if disabled
+  private final File file;
+
+  // decisions not written yet, of each thread which filtered violations
+  private final Queue<PendingDecisions> allPendingDecisions = new ConcurrentLinkedQueue<PendingDecisions>();
+  private final ThreadLocal<PendingDecisions> pendingDecisions = new ThreadLocal<PendingDecisions>() {
+    @Override
+    protected PendingDecisions initialValue() {
+      PendingDecisions pending = new PendingDecisions();
+      allPendingDecisions.add(pending);
+      return pending;
+    }
+  };
+
+  // guarded by this
+  private Writer writer;
+  private boolean failed;
+  private final PriorityQueue<ScanTime> slowestScans = new PriorityQueue<ScanTime>(MAX_LOGGED_SCANS + 1, BY_DURATION);
+
+  public EventLog(Settings settings, ProjectFileSystem fileSystem) {
+    String path = settings.getString(Constants.EVENT_LOG_KEY);
+    if (StringUtils.isBlank(path)) {
+      file = null;
+    } else {
+      File f = new File(path);
+      file = f.isAbsolute() ? f : new File(fileSystem.getBasedir(), path);
+    }
+  }
+
+  public boolean isEnabled() {
+    return file != null;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @param mode <code>full</code>, <code>reused</code> or <code>header</code>
+   */
+  public synchronized void scanned(String resourceKey, String mode, long bytes, int lines, int exclusions, long nanos) {
+    write(new StringBuilder("scan").append(SEPARATOR).append(System.currentTimeMillis()).append(SEPARATOR).append(micros(nanos))
+        .append(SEPARATOR).append(resourceKey).append(SEPARATOR).append(mode).append(SEPARATOR).append(bytes)
+        .append(SEPARATOR).append(lines).append(SEPARATOR).append(exclusions));
+    slowestScans.add(new ScanTime(resourceKey, nanos));
+    if (slowestScans.size() > MAX_LOGGED_SCANS) {
+      slowestScans.poll();
+    }
+  }
+
+  /**
+   * Decision of the filter on a single violation, written with the next decisions of the same thread once the batch
+   * is full. Only the writing of a batch takes the lock of the log.
+   */
+  public void decided(boolean ignored, long nanos) {
+    if (file == null) {
+      return;
+    }
+    PendingDecisions pending = pendingDecisions.get();
+    pending.decisions++;
+    pending.ignored += ignored ? 1 : 0;
+    pending.nanos += nanos;
+    if (pending.decisions >= DECISION_BATCH_SIZE) {
+      writePendingDecisions(pending);
+    }
+  }
+
+  /**
+   * Decisions of the filter on a list of violations
+   */
+  public synchronized void filtered(int violations, int ignored, long nanos) {
+    writeFilterEvent(violations, ignored, nanos);
+  }
+
+  private synchronized void writePendingDecisions(PendingDecisions pending) {
+    if (pending.decisions > 0) {
+      writeFilterEvent(pending.decisions, pending.ignored, pending.nanos);
+      pending.decisions = 0;
+      pending.ignored = 0;
+      pending.nanos = 0;
+    }
+  }
+
+  private void writeFilterEvent(int violations, int ignored, long nanos) {
+    write(new StringBuilder("filter").append(SEPARATOR).append(System.currentTimeMillis()).append(SEPARATOR).append(micros(nanos))
+        .append(SEPARATOR).append(violations).append(SEPARATOR).append(ignored));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private void write(CharSequence event) {
+    if (file == null || failed) {
+      return;
+    }
+    try {
+      if (writer == null) {
+        boolean newFile = !file.exists() || file.length() == 0;
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        if (newFile) {
+          writer.append(HEADER).append('\n');
+        }
+      }
+      writer.append(event).append('\n');
+    } catch (IOException e) {
+      LOG.warn("Unable to write events to " + file.getAbsolutePath() + ": " + e.getMessage());
+      failed = true;
+      IOUtils.closeQuietly(writer);
+    }
+  }
+
+  /**
+   * @return the keys of the resources whose scan was the longest, the longest first
+   */
+  synchronized List<String> getSlowestScans() {
+    List<String> keys = Lists.newArrayList();
+    for (ScanTime scan : sortedSlowestScans()) {
+      keys.add(scan.resourceKey);
+    }
+    return keys;
+  }
+
+  private List<ScanTime> sortedSlowestScans() {
+    List<ScanTime> scans = Lists.newArrayList(slowestScans);
+    Collections.sort(scans, Collections.reverseOrder(BY_DURATION));
+    return scans;
+  }
+
+  /**
+   * Called by the container at the end of the analysis of the module, once the violations are filtered: the decisions
+   * which remain in the batches of all the threads are written.
+   */
+  public synchronized void stop() {
+    if (file == null) {
+      return;
+    }
+    for (PendingDecisions pending : allPendingDecisions) {
+      writePendingDecisions(pending);
+    }
+    if (!slowestScans.isEmpty()) {
+      LOG.info("Slowest scans, events written to {}", file.getAbsolutePath());
+      for (ScanTime scan : sortedSlowestScans()) {
+        LOG.info("- {}: {} ms", scan.resourceKey, TimeUnit.NANOSECONDS.toMillis(scan.nanos));
+      }
+      slowestScans.clear();
+    }
+    if (writer != null) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        LOG.warn("Unable to write events to " + file.getAbsolutePath() + ": " + e.getMessage());
+      }
+      IOUtils.closeQuietly(writer);
+      writer = null;
+    }
+  }
+
+  /**
+   * Decisions of a thread which are not written yet. Only updated by its thread, and read by the other threads once
+   * the violations are filtered.
+   */
+  private static final class PendingDecisions {
+    private int decisions;
+    private int ignored;
+    private long nanos;
+  }
+
+  private static final class ScanTime {
+    private final String resourceKey;
+    private final long nanos;
+
+    ScanTime(String resourceKey, long nanos) {
+      this.resourceKey = resourceKey;
+      this.nanos = nanos;
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Live metrics of the analysis of a module, registered as an MBean of the platform MBean server when
+ * {@link Constants#JMX_METRICS_KEY} is true, so that a long analysis can be followed with a JMX console. The counters
+ * are incremented by the scanners and by the filter without contention, see {@link StripedCounter}.
+ */
+public class ExclusionMetrics implements BatchExtension, ExclusionMetricsMBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExclusionMetrics.class);
+
+  static final String DOMAIN = "org.sonar.plugins.switchoffviolations";
+
+  private final boolean enabled;
+  private final ObjectName objectName;
+  private boolean registered;
+
+  private volatile long scanStartMillis;
+  private volatile long filesToScan;
+  private final StripedCounter filesProcessed = new StripedCounter();
+  private final StripedCounter filesScanned = new StripedCounter();
+  private final StripedCounter filesReused = new StripedCounter();
+  private final StripedCounter bytesRead = new StripedCounter();
+  private final StripedCounter violationsChecked = new StripedCounter();
+  private final StripedCounter violationsWithApplicablePatterns = new StripedCounter();
+  private final StripedCounter[] ignoredByKind = new StripedCounter[ExclusionCode.KIND_RULE_MARKER + 1];
+  private final AtomicReference<ScanTime> slowestScan = new AtomicReference<ScanTime>();
+
+  public ExclusionMetrics(Settings settings) {
+    enabled = settings.getBoolean(Constants.JMX_METRICS_KEY);
+    objectName = enabled ? objectName(settings.getString(CoreProperties.PROJECT_KEY_PROPERTY)) : null;
+    for (int kind = 0; kind < ignoredByKind.length; kind++) {
+      ignoredByKind[kind] = new StripedCounter();
+    }
+  }
+
+  static ObjectName objectName(String moduleKey) {
+    try {
+      return new ObjectName(DOMAIN + ":type=ExclusionMetrics,module=" + ObjectName.quote(StringUtils.defaultString(moduleKey)));
+    } catch (JMException e) {
+      throw new IllegalArgumentException("Invalid module key: " + moduleKey, e);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * Called by the container at the beginning of the analysis of the module
+   */
+  public synchronized void start() {
+    if (!enabled) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      // left by a previous analysis of the same module in the same JVM
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      registered = true;
+      LOG.info("Switch off violations metrics registered in JMX as {}", objectName);
+    } catch (JMException e) {
+      LOG.warn("Unable to register the switch off violations metrics in JMX: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Called by the container at the end of the analysis of the module
+   */
+  public synchronized void stop() {
+    if (!registered) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOG.debug("Unable to unregister the switch off violations metrics from JMX", e);
+    }
+    registered = false;
+  }
+
+  /**
+   * @param files the number of source files which are going to be scanned, skipped or not
+   */
+  public void scanStarted(long files) {
+    filesToScan = files;
+    scanStartMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * A source file was processed by the scan, whether its content was scanned or not
+   */
+  public void fileProcessed() {
+    filesProcessed.increment();
+  }
+
+  /**
+   * @param reused true if the exclusions of a file with the same content were found in the scan result store
+   */
+  public void fileScanned(String resourceKey, long bytes, long nanos, boolean reused) {
+    filesScanned.increment();
+    bytesRead.add(bytes);
+    if (reused) {
+      filesReused.increment();
+    }
+    ScanTime slowest = slowestScan.get();
+    // the slowest scan is rarely replaced once the first files are scanned
+    while ((slowest == null || nanos > slowest.nanos) && !slowestScan.compareAndSet(slowest, new ScanTime(resourceKey, nanos))) {
+      slowest = slowestScan.get();
+    }
+  }
+
+  /**
+   * @param code the decision of the filter, see {@link ExclusionCode}
+   * @param applicablePatterns true if the applicable multicriteria patterns of the resource had been computed
+   */
+  public void violationChecked(long code, boolean applicablePatterns) {
+    violationsChecked.increment();
+    if (applicablePatterns) {
+      violationsWithApplicablePatterns.increment();
+    }
+    if (ExclusionCode.isIgnored(code)) {
+      ignoredByKind[ExclusionCode.kind(code)].increment();
+    }
+  }
+
+  public long getFilesScanned() {
+    return filesScanned.get();
+  }
+
+  public long getFilesRemaining() {
+    return Math.max(0L, filesToScan - filesProcessed.get());
+  }
+
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  public long getScanThroughput() {
+    long start = scanStartMillis;
+    if (start == 0L) {
+      return 0L;
+    }
+    long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+    return bytesRead.get() * 1000L / elapsed;
+  }
+
+  public long getViolationsChecked() {
+    return violationsChecked.get();
+  }
+
+  public long getViolationsIgnored() {
+    long ignored = 0L;
+    for (StripedCounter counter : ignoredByKind) {
+      ignored += counter.get();
+    }
+    return ignored;
+  }
+
+  public long getIgnoredByMulticriteriaPatterns() {
+    return ignoredByKind[ExclusionCode.KIND_MULTICRITERIA].get();
+  }
+
+  public long getIgnoredByBlocks() {
+    return ignoredByKind[ExclusionCode.KIND_BLOCK].get();
+  }
+
+  public long getIgnoredByFilePatterns() {
+    return ignoredByKind[ExclusionCode.KIND_ALL_FILE].get();
+  }
+
+  public long getIgnoredByRuleMarkers() {
+    return ignoredByKind[ExclusionCode.KIND_RULE_MARKER].get();
+  }
+
+  public double getScanResultStoreHitRate() {
+    return ratio(filesReused.get(), filesScanned.get());
+  }
+
+  public double getApplicablePatternsHitRate() {
+    return ratio(violationsWithApplicablePatterns.get(), violationsChecked.get());
+  }
+
+  public String getSlowestFile() {
+    ScanTime slowest = slowestScan.get();
+    return slowest == null ? null : slowest.resourceKey + " (" + TimeUnit.NANOSECONDS.toMillis(slowest.nanos) + " ms)";
+  }
+
+  private static double ratio(long count, long total) {
+    return total == 0L ? 0.0 : (double) count / total;
+  }
+
+  private static final class ScanTime {
+    private final String resourceKey;
+    private final long nanos;
+
+    ScanTime(String resourceKey, long nanos) {
+      this.resourceKey = resourceKey;
+      this.nanos = nanos;
+    }
+  }
+}
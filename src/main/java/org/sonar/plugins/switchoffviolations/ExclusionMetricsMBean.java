@@ -0,0 +1,66 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+/**
+ * Live metrics of the analysis of a module, exposed through JMX, see {@link ExclusionMetrics}.
+ */
+public interface ExclusionMetricsMBean {
+
+  long getFilesScanned();
+
+  long getFilesRemaining();
+
+  long getBytesRead();
+
+  /**
+   * @return bytes read per second since the beginning of the scan
+   */
+  long getScanThroughput();
+
+  long getViolationsChecked();
+
+  long getViolationsIgnored();
+
+  long getIgnoredByMulticriteriaPatterns();
+
+  long getIgnoredByBlocks();
+
+  long getIgnoredByFilePatterns();
+
+  long getIgnoredByRuleMarkers();
+
+  /**
+   * @return the ratio of the scanned files whose exclusions were found in the scan result store
+   */
+  double getScanResultStoreHitRate();
+
+  /**
+   * @return the ratio of the checked violations whose resource had its applicable multicriteria patterns computed
+   * before the violations are filtered
+   */
+  double getApplicablePatternsHitRate();
+
+  /**
+   * @return the key of the file whose scan was the longest so far, and the duration of the scan
+   */
+  String getSlowestFile();
+}
@@ -0,0 +1,166 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.PostJob;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Project;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
+import org.sonar.plugins.switchoffviolations.pattern.Pattern;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the violations switched off by each kind of exclusion and by each multicriteria pattern, from the
+ * {@link ExclusionCode} of the decisions of the filter, and logs them at the end of the analysis. Recording a
+ * decision only increments preallocated counters.
+ * <p/>
+ * Patterns which were merged into or subsumed by other patterns are never evaluated: their violations are counted
+ * with the pattern which replaces them, and they are listed apart from the patterns which did not switch off any
+ * violation.
+ */
+public class ExclusionReport implements PostJob {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExclusionReport.class);
+
+  private static final int KIND_COUNT = 5;
+  private static final int MAX_LISTED_UNUSED_PATTERNS = 20;
+
+  private final boolean enabled;
+  private final PatternsInitializer patternsInitializer;
+  private final List<Pattern> multicriteriaPatterns;
+  private final AtomicLongArray countsByKind = new AtomicLongArray(KIND_COUNT);
+  private final AtomicLongArray countsByPattern;
+
+  public ExclusionReport(Settings settings, PatternsInitializer patternsInitializer) {
+    this.enabled = settings.getBoolean(Constants.EXCLUSION_REPORT_KEY);
+    this.patternsInitializer = patternsInitializer;
+    this.multicriteriaPatterns = patternsInitializer.getMulticriteriaPatterns();
+    this.countsByPattern = new AtomicLongArray(enabled ? multicriteriaPatterns.size() : 0);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void record(long code) {
+    int kind = ExclusionCode.kind(code);
+    if (kind < KIND_COUNT) {
+      countsByKind.incrementAndGet(kind);
+    }
+    int ordinal = ExclusionCode.ordinal(code);
+    if (kind == ExclusionCode.KIND_MULTICRITERIA && ordinal < countsByPattern.length()) {
+      countsByPattern.incrementAndGet(ordinal);
+    }
+  }
+
+  long getCount(int kind) {
+    return countsByKind.get(kind);
+  }
+
+  long getPatternCount(int ordinal) {
+    return countsByPattern.get(ordinal);
+  }
+
+  public void executeOn(Project project, SensorContext context) {
+    if (!enabled) {
+      return;
+    }
+    long ignored = getCount(ExclusionCode.KIND_MULTICRITERIA) + getCount(ExclusionCode.KIND_BLOCK) + getCount(ExclusionCode.KIND_ALL_FILE)
+      + getCount(ExclusionCode.KIND_RULE_MARKER);
+    LOG.info("{} of {} violations switched off", ignored, ignored + getCount(ExclusionCode.KIND_NONE));
+    LOG.info("- by multi-criteria patterns: {}", getCount(ExclusionCode.KIND_MULTICRITERIA));
+    int unused = 0;
+    int redundant = 0;
+    for (int i = 0; i < countsByPattern.length(); i++) {
+      long count = countsByPattern.get(i);
+      if (patternsInitializer.getEffectiveOrdinal(i) != i) {
+        redundant++;
+      } else if (count > 0) {
+        LOG.info("  - #{} {}: {}", new Object[] {i, describe(multicriteriaPatterns.get(i)), count});
+      } else {
+        unused++;
+      }
+    }
+    LOG.info("- by blocks: {}", getCount(ExclusionCode.KIND_BLOCK));
+    LOG.info("- by file exclusion patterns: {}", getCount(ExclusionCode.KIND_ALL_FILE));
+    LOG.info("- by rule markers: {}", getCount(ExclusionCode.KIND_RULE_MARKER));
+    if (redundant > 0) {
+      logRedundantPatterns(redundant);
+    }
+    if (unused > 0) {
+      logUnusedPatterns(unused);
+    }
+  }
+
+  private void logRedundantPatterns(int redundant) {
+    LOG.info("{} multi-criteria patterns were merged into or subsumed by other patterns, which count their violations", redundant);
+    int listed = 0;
+    for (int i = 0; i < countsByPattern.length() && listed < MAX_LISTED_UNUSED_PATTERNS; i++) {
+      int effective = patternsInitializer.getEffectiveOrdinal(i);
+      if (effective != i) {
+        String description = describe(multicriteriaPatterns.get(i));
+        String relation = description.equals(describe(multicriteriaPatterns.get(effective))) ? "merged into" : "subsumed by";
+        LOG.info("  - #{} {}: {} #{}", new Object[] {i, description, relation, effective});
+        listed++;
+      }
+    }
+  }
+
+  private void logUnusedPatterns(int unused) {
+    LOG.info("{} multi-criteria patterns did not switch off any violation", unused);
+    int listed = 0;
+    for (int i = 0; i < countsByPattern.length() && listed < MAX_LISTED_UNUSED_PATTERNS; i++) {
+      if (countsByPattern.get(i) == 0 && patternsInitializer.getEffectiveOrdinal(i) == i) {
+        LOG.info("  - #{} {}", i, describe(multicriteriaPatterns.get(i)));
+        listed++;
+      }
+    }
+  }
+
+  /**
+   * @return the ordinals of the patterns which did not switch off any violation, excluding the redundant ones
+   */
+  List<Integer> getUnusedPatterns() {
+    List<Integer> unused = Lists.newArrayList();
+    for (int i = 0; i < countsByPattern.length(); i++) {
+      if (countsByPattern.get(i) == 0 && patternsInitializer.getEffectiveOrdinal(i) == i) {
+        unused.add(i);
+      }
+    }
+    return unused;
+  }
+
+  private static String describe(Pattern pattern) {
+    return pattern.getResourcePattern() + ";" + pattern.getRulePattern();
+  }
+
+  @Override
+  public String toString() {
+    return "Switch Off Plugin - Exclusion Report";
+  }
+}
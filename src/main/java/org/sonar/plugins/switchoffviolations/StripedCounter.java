@@ -0,0 +1,58 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter incremented by several threads without contention: each thread increments the cell of its stripe, and
+ * the cells are summed when the counter is read. Cells are spread over distinct cache lines.
+ */
+final class StripedCounter {
+
+  // longs per cache line
+  private static final int PADDING = 8;
+
+  private final int mask;
+  private final AtomicLongArray cells;
+
+  StripedCounter() {
+    int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2;
+    mask = stripes - 1;
+    cells = new AtomicLongArray(stripes * PADDING);
+  }
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.addAndGet(((int) Thread.currentThread().getId() & mask) * PADDING, delta);
+  }
+
+  long get() {
+    long sum = 0;
+    for (int i = 0; i < cells.length(); i += PADDING) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+}
@@ -20,44 +20,252 @@
 
 package org.sonar.plugins.switchoffviolations;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.Violation;
 import org.sonar.api.rules.ViolationFilter;
+import org.sonar.plugins.switchoffviolations.pattern.ApplicablePatterns;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
 import org.sonar.plugins.switchoffviolations.pattern.Pattern;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleKeys;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 
 public final class SwitchOffViolationsFilter implements ViolationFilter {
 
   private static final Logger LOG = LoggerFactory.getLogger(SwitchOffViolationsFilter.class);
 
   private PatternsInitializer patternsInitializer;
+  // null if the decisions are not reported
+  private ExclusionReport report;
+  // null if events are not recorded
+  private EventLog eventLog;
+  // null if metrics are not exposed
+  private ExclusionMetrics metrics;
+  // reset for each violation checked by isIgnored or explain, instead of allocating new exclusions per violation
+  private final ThreadLocal<ResourceExclusions> exclusionsOfViolation = new ThreadLocal<ResourceExclusions>() {
+    @Override
+    protected ResourceExclusions initialValue() {
+      return new ResourceExclusions();
+    }
+  };
 
   public SwitchOffViolationsFilter(PatternsInitializer patternsInitializer) {
+    this(patternsInitializer, null, null);
+  }
+
+  public SwitchOffViolationsFilter(PatternsInitializer patternsInitializer, ExclusionReport report) {
+    this(patternsInitializer, report, null);
+  }
+
+  public SwitchOffViolationsFilter(PatternsInitializer patternsInitializer, ExclusionReport report, EventLog eventLog) {
+    this(patternsInitializer, report, eventLog, null);
+  }
+
+  public SwitchOffViolationsFilter(PatternsInitializer patternsInitializer, ExclusionReport report, EventLog eventLog, ExclusionMetrics metrics) {
     this.patternsInitializer = patternsInitializer;
+    this.report = report != null && report.isEnabled() ? report : null;
+    this.eventLog = eventLog != null && eventLog.isEnabled() ? eventLog : null;
+    this.metrics = metrics != null && metrics.isEnabled() ? metrics : null;
   }
 
   public boolean isIgnored(Violation violation) {
-    Pattern extraPattern = patternsInitializer.getExtraPattern(violation.getResource());
-    if (extraPattern != null && extraPattern.match(violation)) {
-      logExclusion(violation, extraPattern);
-      return true;
+    if (eventLog == null) {
+      return decide(violation);
     }
+    long start = System.nanoTime();
+    boolean ignored = decide(violation);
+    eventLog.decided(ignored, System.nanoTime() - start);
+    return ignored;
+  }
 
-    List<Pattern> patterns = patternsInitializer.getMulticriteriaPatterns();
-    for (Pattern pattern : patterns) {
-      if (pattern.match(violation)) {
-        logExclusion(violation, pattern);
-        return true;
+  private boolean decide(Violation violation) {
+    ResourceExclusions exclusions = exclusionsOfViolation.get().reset(violation.getResource());
+    if (report != null || metrics != null) {
+      return record(violation, exclusions, exclusions.explain(violation, null));
+    }
+    return exclusions.isIgnored(violation, null);
+  }
+
+  /**
+   * @return the code which explains why the violation is switched off, or {@link ExclusionCode#NOT_IGNORED}
+   */
+  public long explain(Violation violation) {
+    return exclusionsOfViolation.get().reset(violation.getResource()).explain(violation, null);
+  }
+
+  private boolean record(Violation violation, ResourceExclusions exclusions, long code) {
+    if (report != null) {
+      report.record(code);
+    }
+    if (metrics != null) {
+      metrics.violationChecked(code, exclusions.hasApplicablePatterns());
+    }
+    boolean ignored = ExclusionCode.isIgnored(code);
+    if (ignored && LOG.isDebugEnabled()) {
+      LOG.debug("Violation {} switched off by {}", violation, ExclusionCode.toString(code));
+    }
+    return ignored;
+  }
+
+  /**
+   * Same decisions as {@link #isIgnored(Violation)} for each violation, but the exclusions of a resource are looked up
+   * once for all its violations, and the patterns which apply to a rule in a resource once for all the violations of
+   * the rule in the resource.
+   *
+   * @return the positions in the list of the violations which are switched off
+   */
+  public BitSet getIgnored(List<Violation> violations) {
+    if (eventLog == null) {
+      return filter(violations);
+    }
+    long start = System.nanoTime();
+    BitSet ignored = filter(violations);
+    eventLog.filtered(violations.size(), ignored.cardinality(), System.nanoTime() - start);
+    return ignored;
+  }
+
+  private BitSet filter(List<Violation> violations) {
+    BitSet ignored = new BitSet(violations.size());
+    Map<Resource<?>, Map<String, List<Integer>>> positionsByResourceAndRule = Maps.newLinkedHashMap();
+    for (int i = 0; i < violations.size(); i++) {
+      Violation violation = violations.get(i);
+      Map<String, List<Integer>> positionsByRule = positionsByResourceAndRule.get(violation.getResource());
+      if (positionsByRule == null) {
+        positionsByRule = Maps.newLinkedHashMap();
+        positionsByResourceAndRule.put(violation.getResource(), positionsByRule);
+      }
+      String ruleKey = RuleKeys.of(violation.getRule());
+      List<Integer> positions = positionsByRule.get(ruleKey);
+      if (positions == null) {
+        positions = Lists.newArrayList();
+        positionsByRule.put(ruleKey, positions);
+      }
+      positions.add(i);
+    }
+
+    for (Map.Entry<Resource<?>, Map<String, List<Integer>>> resourceEntry : positionsByResourceAndRule.entrySet()) {
+      ResourceExclusions exclusions = new ResourceExclusions().reset(resourceEntry.getKey());
+      for (List<Integer> positions : resourceEntry.getValue().values()) {
+        ApplicablePatterns patternsOfRule = exclusions.patternsOfRule(violations.get(positions.get(0)).getRule());
+        for (Integer position : positions) {
+          Violation violation = violations.get(position);
+          boolean isIgnored;
+          if (report != null || metrics != null) {
+            isIgnored = record(violation, exclusions, exclusions.explain(violation, patternsOfRule));
+          } else {
+            isIgnored = exclusions.isIgnored(violation, patternsOfRule);
+          }
+          if (isIgnored) {
+            ignored.set(position);
+          }
+        }
       }
     }
-    return false;
+    return ignored;
   }
 
   private void logExclusion(Violation violation, Pattern pattern) {
     LOG.debug("Violation {} switched off by {}", violation, pattern);
   }
 
+  /**
+   * Exclusions which apply to the violations of a resource
+   */
+  private final class ResourceExclusions {
+    private Pattern extraPattern;
+    private RuleLineExclusions ruleExclusions;
+    // null if they were not computed for the resource
+    private ApplicablePatterns applicablePatterns;
+
+    ResourceExclusions reset(Resource<?> resource) {
+      extraPattern = patternsInitializer.getExtraPattern(resource);
+      ruleExclusions = patternsInitializer.getRuleExclusions(resource);
+      applicablePatterns = patternsInitializer.getApplicablePatterns(resource);
+      return this;
+    }
+
+    boolean hasApplicablePatterns() {
+      return applicablePatterns != null;
+    }
+
+    ApplicablePatterns patternsOfRule(Rule rule) {
+      return applicablePatterns == null ? null : applicablePatterns.forRule(rule);
+    }
+
+    /**
+     * Same decision as {@link #isIgnored(Violation, ApplicablePatterns)}, without logging
+     */
+    long explain(Violation violation, ApplicablePatterns patternsOfRule) {
+      long code = explainScanExclusion(violation);
+      if (code != ExclusionCode.NOT_IGNORED) {
+        return code;
+      }
+      code = ruleExclusions != null ? ruleExclusions.explain(violation) : patternsInitializer.explainMappedRuleExclusion(violation);
+      if (code != ExclusionCode.NOT_IGNORED) {
+        return code;
+      }
+      Pattern pattern = matchMulticriteriaPatterns(violation, patternsOfRule);
+      return pattern == null ? ExclusionCode.NOT_IGNORED : pattern.exclusionCode(violation, ExclusionCode.KIND_MULTICRITERIA);
+    }
+
+    /**
+     * @param patternsOfRule the multicriteria patterns which apply to the rule of the violation, or null
+     */
+    boolean isIgnored(Violation violation, ApplicablePatterns patternsOfRule) {
+      if (extraPattern != null && extraPattern.match(violation)) {
+        logExclusion(violation, extraPattern);
+        return true;
+      }
+      if (extraPattern == null) {
+        long code = patternsInitializer.explainMappedExclusion(violation);
+        if (code != ExclusionCode.NOT_IGNORED) {
+          LOG.debug("Violation {} switched off by {}", violation, ExclusionCode.toString(code));
+          return true;
+        }
+      }
+
+      if (ruleExclusions != null ? ruleExclusions.match(violation) : patternsInitializer.explainMappedRuleExclusion(violation) != ExclusionCode.NOT_IGNORED) {
+        LOG.debug("Violation {} switched off by rule marker", violation);
+        return true;
+      }
+
+      Pattern pattern = matchMulticriteriaPatterns(violation, patternsOfRule);
+      if (pattern != null) {
+        logExclusion(violation, pattern);
+        return true;
+      }
+      return false;
+    }
+
+    private long explainScanExclusion(Violation violation) {
+      if (extraPattern == null) {
+        return patternsInitializer.explainMappedExclusion(violation);
+      }
+      if (extraPattern.match(violation)) {
+        return extraPattern.exclusionCode(violation, extraPattern.isCheckLines() ? ExclusionCode.KIND_BLOCK : ExclusionCode.KIND_ALL_FILE);
+      }
+      return ExclusionCode.NOT_IGNORED;
+    }
+
+    private Pattern matchMulticriteriaPatterns(Violation violation, ApplicablePatterns patternsOfRule) {
+      if (patternsOfRule != null) {
+        return patternsOfRule.match(violation);
+      }
+      if (applicablePatterns != null) {
+        return applicablePatterns.match(violation);
+      }
+      // resource which is not a source file, or not known before the violations are filtered
+      return patternsInitializer.getMulticriteriaMatcher().match(violation);
+    }
+  }
+
 }
@@ -29,6 +29,8 @@ import org.sonar.api.PropertyType;
 import org.sonar.api.SonarPlugin;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
 import org.sonar.plugins.switchoffviolations.scanner.RegexpScanner;
+import org.sonar.plugins.switchoffviolations.scanner.ScanResultStore;
+import org.sonar.plugins.switchoffviolations.scanner.ScanStateRelease;
 import org.sonar.plugins.switchoffviolations.scanner.SourceScanner;
 
 import java.util.List;
@@ -95,6 +97,171 @@ import java.util.List;
         description = "If this regular expression is found in a resource, then this resource is ignored.",
         type = PropertyType.STRING,
         indicativeSize = SwitchOffViolationsPlugin.LARGE_SIZE)}),
+  @Property(
+    key = Constants.PATTERNS_RULE_MARKER_KEY,
+    name = "Rule exclusion markers",
+    description = "Markers used to identify lines or blocks in which only the given rules are switched off, " +
+      "for instance <code>switchoff(pmd:AvoidPrintStackTrace)</code>.<br/>" +
+      "More information on the <a href=\"http://docs.codehaus.org/display/SONAR/Switch+Off+Violations+Plugin\">documentation page of the plugin</a>.<br/>",
+    project = true,
+    global = true,
+    fields = {
+      @PropertyField(
+        key = Constants.MARKER_REGEXP,
+        name = "Regular expression for marker",
+        description = "If this regular expression is found in a resource, then the rules captured by the rule key group are ignored on this line, " +
+          "or until end of block if an end marker is specified. Example: <code>switchoff\\(([^)]*)\\)</code>",
+        type = PropertyType.STRING,
+        indicativeSize = SwitchOffViolationsPlugin.LARGE_SIZE),
+      @PropertyField(
+        key = Constants.END_MARKER_REGEXP,
+        name = "Regular expression for end of block",
+        description = "If specified, the marker starts a block that ends with this regular expression, or at the end of file. If not, only the line of the marker is concerned.",
+        type = PropertyType.STRING,
+        indicativeSize = SwitchOffViolationsPlugin.LARGE_SIZE),
+      @PropertyField(
+        key = Constants.RULE_KEY_GROUP,
+        name = "Rule key group",
+        description = "Index of the group of the marker regular expression which captures a comma-separated list of rule keys. Default is 1.",
+        type = PropertyType.INTEGER,
+        indicativeSize = SwitchOffViolationsPlugin.SMALL_SIZE)}),
+  @Property(
+    key = Constants.SCAN_TIME_BUDGET_KEY,
+    defaultValue = "0",
+    name = "Scan time budget",
+    description = "Maximum time in seconds spent to scan source files for block, file and rule exclusions. 0 means no limit.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.SCAN_BYTES_BUDGET_KEY,
+    defaultValue = "0",
+    name = "Scan size budget",
+    description = "Maximum number of bytes read to scan source files for block, file and rule exclusions. 0 means no limit.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.SCAN_BUDGET_POLICY_KEY,
+    defaultValue = "skip",
+    name = "Scan budget policy",
+    description = "What to do with the remaining source files once a scan budget is exceeded: " +
+      "<code>skip</code> them, or only check their <code>header</code> for file exclusion patterns. " +
+      "Files which are not fully scanned are listed in the logs.",
+    project = true,
+    global = true,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {"skip", "header"}),
+  @Property(
+    key = Constants.SCAN_HEADER_LINES_KEY,
+    defaultValue = "50",
+    name = "Scan header size",
+    description = "Number of lines checked for file exclusion patterns when the scan budget policy is <code>header</code>.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.SCAN_CACHE_PATH_KEY,
+    name = "Scan result store",
+    description = "Directory in which the exclusions found in source files are stored, indexed by the content of the files. " +
+      "It can be shared by the analyses of several branches or build agents. Relative paths are resolved from the project base directory. " +
+      "If empty, the exclusions of files with the same content are only reused within the analysis.",
+    project = true,
+    global = true),
+  @Property(
+    key = Constants.SCAN_CACHE_MAX_SIZE_KEY,
+    defaultValue = "100",
+    name = "Scan result store size",
+    description = "Maximum size in MB of the scan result store. Least recently used results are deleted at the end of the analysis.",
+    project = true,
+    global = true,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.MANIFEST_EXPORT_KEY,
+    name = "Exclusion manifest export",
+    description = "If set, the block, file and rule exclusions found in the source files are written to this file, " +
+      "which can be imported by another analysis. Relative paths are resolved from the project base directory.",
+    project = true,
+    global = false),
+  @Property(
+    key = Constants.MANIFEST_IMPORT_KEY,
+    name = "Exclusion manifest import",
+    description = "If set, the block, file and rule exclusions are loaded from this manifest instead of scanning the source files. " +
+      "Several comma-separated manifests, such as the ones written by the shards of a scan, are merged: each source file " +
+      "of the project must then be listed in exactly one of them.",
+    project = true,
+    global = false),
+  @Property(
+    key = Constants.SCAN_SHARD_COUNT_KEY,
+    name = "Number of scan shards",
+    description = "If set, the scan of the source files is split in this number of shards, and this analysis only scans " +
+      "the files of the shard defined by " + Constants.SCAN_SHARD_INDEX_KEY + ". The exclusion manifest export is required " +
+      "in this mode: the manifests of all the shards can then be imported together.",
+    project = true,
+    global = false,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.SCAN_SHARD_INDEX_KEY,
+    name = "Scan shard index",
+    description = "Shard scanned by this analysis, from 1 to the number of scan shards.",
+    project = true,
+    global = false,
+    type = PropertyType.INTEGER),
+  @Property(
+    key = Constants.ADAPTIVE_ORDER_KEY,
+    defaultValue = "false",
+    name = "Adaptive pattern order",
+    description = "If true, the multi-criteria patterns which match most violations and are the cheapest to evaluate are checked first. " +
+      "The violations which are switched off are the same, but a violation matched by several patterns may be reported as switched off by another one.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = Constants.COMPILED_MATCHER_KEY,
+    defaultValue = "false",
+    name = "Compiled pattern matcher",
+    description = "If true, the multi-criteria patterns are compiled once to a matcher which evaluates each distinct resource or rule key " +
+      "pattern at most once per violation. The violations which are switched off are the same. The adaptive pattern order is not used in this mode.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = Constants.OFF_HEAP_EXCLUSIONS_KEY,
+    defaultValue = "false",
+    name = "Off-heap exclusions",
+    description = "If true, the lines and files excluded by the block, file and rule marker patterns, and the multicriteria patterns which " +
+      "apply to each file, are stored in memory-mapped files of the working directory instead of the heap, for repositories with " +
+      "millions of source files.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = Constants.EXCLUSION_REPORT_KEY,
+    defaultValue = "false",
+    name = "Exclusion report",
+    description = "If true, the number of violations switched off by each multi-criteria pattern, and by blocks, files and rule markers, " +
+      "is logged at the end of the analysis, together with the patterns which did not switch off any violation " +
+      "and the memory retained by the exclusions of the source files.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
+  @Property(
+    key = Constants.EVENT_LOG_KEY,
+    name = "Event log file",
+    description = "Path of a file, absolute or relative to the base directory of the module, to which the duration of the scan of each " +
+      "source file and of the filtering of the violations are appended, as tab-separated values. The slowest scans are also logged. " +
+      "No event is recorded if empty.",
+    project = true,
+    global = true),
+  @Property(
+    key = Constants.JMX_METRICS_KEY,
+    defaultValue = "false",
+    name = "JMX metrics",
+    description = "If true, the progress of the scan of the source files and the decisions of the filter are exposed during the analysis " +
+      "of each module by an MBean of the domain org.sonar.plugins.switchoffviolations.",
+    project = true,
+    global = true,
+    type = PropertyType.BOOLEAN),
   @Property(
     key = Constants.PATTERNS_PARAMETER_KEY,
     defaultValue = "",
@@ -109,7 +276,9 @@ import java.util.List;
     key = Constants.LOCATION_PARAMETER_KEY,
     defaultValue = "",
     name = "Configuration file for exclusion patterns (Deprecated)",
-    description = "Location of a file that would contain the exclusion patterns and that would be stored along with the source code.",
+    description = "Location of a file that would contain the exclusion patterns and that would be stored along with the source code. " +
+      "Big files can be compiled to a binary form which is loaded faster, with the main method of " +
+      "org.sonar.plugins.switchoffviolations.pattern.PatternsCompiler. Compiled files are recognized by their extension .sovp.",
     project = true,
     global = true)
 })
@@ -120,8 +289,13 @@ public final class SwitchOffViolationsPlugin extends SonarPlugin {
 
   public List<Class<? extends BatchExtension>> getExtensions() {
     return ImmutableList.of(
+        EventLog.class,
+        ExclusionMetrics.class,
+        ExclusionReport.class,
         PatternsInitializer.class,
         RegexpScanner.class,
+        ScanResultStore.class,
+        ScanStateRelease.class,
         SourceScanner.class,
         SwitchOffViolationsFilter.class);
   }
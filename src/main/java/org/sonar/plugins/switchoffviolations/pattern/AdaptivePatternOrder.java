@@ -0,0 +1,187 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Order in which the wildcard patterns of a {@link PatternMatcher} are evaluated, learnt from the violations of the
+ * analysis. The patterns which match often and are cheap to evaluate come first, so that the matcher returns
+ * earlier. The order does not change whether a violation is switched off, only which of the matching patterns is
+ * found first.
+ * <p/>
+ * The counters are updated for each evaluation, and a new order is published every {@link #REORDER_PERIOD}
+ * evaluations. The evaluation time is only measured for one evaluation in {@link #SAMPLING_PERIOD}. Each published
+ * order keeps the sets of candidate patterns it has sorted, so that a set is sorted once per order rather than for
+ * each violation.
+ */
+final class AdaptivePatternOrder {
+
+  static final int REORDER_PERIOD = 10000;
+  static final int SAMPLING_PERIOD = 16;
+
+  private final int size;
+  private final AtomicLongArray evaluations;
+  private final AtomicLongArray hits;
+  private final AtomicLongArray sampledNanos;
+  private final AtomicLongArray samples;
+  private final AtomicLong evaluationsSinceReorder = new AtomicLong();
+  private final AtomicBoolean reordering = new AtomicBoolean();
+  // replaced but never modified once published
+  private volatile Ranking ranking;
+
+  AdaptivePatternOrder(int size) {
+    this.size = size;
+    this.evaluations = new AtomicLongArray(size);
+    this.hits = new AtomicLongArray(size);
+    this.sampledNanos = new AtomicLongArray(size);
+    this.samples = new AtomicLongArray(size);
+    int[] initialRanks = new int[size];
+    for (int i = 0; i < size; i++) {
+      initialRanks[i] = i;
+    }
+    this.ranking = new Ranking(initialRanks);
+  }
+
+  /**
+   * @return the current rank of each pattern, lower ranks first
+   */
+  int[] getRanks() {
+    return ranking.ranks;
+  }
+
+  /**
+   * @param candidateIndexes indexes of patterns, in an array which is never modified and which is shared by the
+   * violations with the same candidates, see {@link ResourceKeyTrie#sharedCandidateIndexes(String)}
+   * @return the same indexes, in the current order. The array must not be modified.
+   */
+  int[] inRankOrder(int[] candidateIndexes) {
+    Ranking current = ranking;
+    int[] ordered = current.orderedCandidates.get(candidateIndexes);
+    if (ordered == null) {
+      ordered = current.sort(candidateIndexes);
+      current.orderedCandidates.putIfAbsent(candidateIndexes, ordered);
+    }
+    return ordered;
+  }
+
+  /**
+   * @return true if the next evaluation of the pattern should be timed
+   */
+  boolean shouldSample(int patternIndex) {
+    return evaluations.get(patternIndex) % SAMPLING_PERIOD == 0;
+  }
+
+  /**
+   * @param nanos the evaluation time, or a negative value if it was not measured
+   */
+  void record(int patternIndex, boolean hit, long nanos) {
+    evaluations.incrementAndGet(patternIndex);
+    if (hit) {
+      hits.incrementAndGet(patternIndex);
+    }
+    if (nanos >= 0) {
+      sampledNanos.addAndGet(patternIndex, nanos);
+      samples.incrementAndGet(patternIndex);
+    }
+    if (evaluationsSinceReorder.incrementAndGet() >= REORDER_PERIOD && reordering.compareAndSet(false, true)) {
+      try {
+        evaluationsSinceReorder.set(0);
+        reorder();
+      } finally {
+        reordering.set(false);
+      }
+    }
+  }
+
+  void reorder() {
+    double defaultCost = averageCost();
+    final double[] scores = new double[size];
+    Integer[] indexes = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      indexes[i] = i;
+      scores[i] = score(i, defaultCost);
+    }
+    Arrays.sort(indexes, new Comparator<Integer>() {
+      public int compare(Integer left, Integer right) {
+        int byScore = Double.compare(scores[right], scores[left]);
+        return byScore != 0 ? byScore : left.compareTo(right);
+      }
+    });
+    int[] newRanks = new int[size];
+    for (int rank = 0; rank < size; rank++) {
+      newRanks[indexes[rank]] = rank;
+    }
+    ranking = new Ranking(newRanks);
+  }
+
+  /**
+   * Expected matches per nanosecond spent evaluating the pattern. Counts are smoothed so that patterns which were
+   * rarely evaluated are neither first nor last, and patterns which were never timed get the average cost.
+   */
+  private double score(int patternIndex, double defaultCost) {
+    double hitRate = (hits.get(patternIndex) + 1.0) / (evaluations.get(patternIndex) + 2.0);
+    long sampleCount = samples.get(patternIndex);
+    double cost = sampleCount == 0 ? defaultCost : Math.max(1.0, (double) sampledNanos.get(patternIndex) / sampleCount);
+    return hitRate / cost;
+  }
+
+  private double averageCost() {
+    long totalNanos = 0;
+    long totalSamples = 0;
+    for (int i = 0; i < size; i++) {
+      totalNanos += sampledNanos.get(i);
+      totalSamples += samples.get(i);
+    }
+    return totalSamples == 0 ? 1.0 : Math.max(1.0, (double) totalNanos / totalSamples);
+  }
+
+  private static final class Ranking {
+    // rank of each pattern, by index of the pattern
+    private final int[] ranks;
+    // sets of candidates sorted by rank, by identity of the shared arrays of candidates
+    private final ConcurrentMap<int[], int[]> orderedCandidates = new ConcurrentHashMap<int[], int[]>();
+
+    private Ranking(int[] ranks) {
+      this.ranks = ranks;
+    }
+
+    private int[] sort(int[] candidateIndexes) {
+      // ranks and indexes are positive ints, sorted together as longs
+      long[] rankedIndexes = new long[candidateIndexes.length];
+      for (int i = 0; i < candidateIndexes.length; i++) {
+        rankedIndexes[i] = ((long) ranks[candidateIndexes[i]] << 32) | candidateIndexes[i];
+      }
+      Arrays.sort(rankedIndexes);
+      int[] ordered = new int[candidateIndexes.length];
+      for (int i = 0; i < ordered.length; i++) {
+        ordered[i] = (int) rankedIndexes[i];
+      }
+      return ordered;
+    }
+  }
+}
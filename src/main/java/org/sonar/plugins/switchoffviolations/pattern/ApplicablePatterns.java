@@ -0,0 +1,151 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Multicriteria patterns which can apply to the violations of a given resource, computed once before the
+ * violations are filtered. The resource keys of these patterns are already known to match, so only the rules and
+ * lines of the violations are matched.
+ * <p/>
+ * The wildcard patterns are kept as indexes in the {@link PatternMatcher} of the module, which evaluates them: in
+ * adaptive order or with its {@link FlatPatternMatcher} when it is configured so. The arrays of indexes are shared by
+ * all the resources to which the same patterns apply, see {@link PatternMatcher#sharedIndexes(int[])}.
+ */
+public final class ApplicablePatterns {
+
+  private static final int[] NO_INDEXES = new int[0];
+
+  /**
+   * No multicriteria pattern applies to the resource
+   */
+  public static final ApplicablePatterns NONE = new ApplicablePatterns(null, null, NO_INDEXES, false);
+
+  // null if no pattern without wildcard has the key of the resource
+  private final LiteralPatternIndex literalPatternIndex;
+  // null if no wildcard pattern applies
+  private final PatternMatcher matcher;
+  private final int[] wildcardIndexes;
+  // true if the wildcard patterns are restricted to the ones which match the rule of the violations
+  private final boolean ruleMatched;
+
+  ApplicablePatterns(LiteralPatternIndex literalPatternIndex, PatternMatcher matcher, int[] wildcardIndexes) {
+    this(literalPatternIndex, matcher, wildcardIndexes, false);
+  }
+
+  private ApplicablePatterns(LiteralPatternIndex literalPatternIndex, PatternMatcher matcher, int[] wildcardIndexes, boolean ruleMatched) {
+    this.literalPatternIndex = literalPatternIndex;
+    this.matcher = wildcardIndexes.length == 0 ? null : matcher;
+    this.wildcardIndexes = wildcardIndexes.length == 0 ? NO_INDEXES : wildcardIndexes;
+    this.ruleMatched = ruleMatched;
+  }
+
+  public boolean isEmpty() {
+    return literalPatternIndex == null && wildcardIndexes.length == 0;
+  }
+
+  PatternMatcher getMatcher() {
+    return matcher;
+  }
+
+  int getWildcardPatternCount() {
+    return wildcardIndexes.length;
+  }
+
+  List<Pattern> getWildcardPatterns() {
+    if (matcher == null) {
+      return Collections.emptyList();
+    }
+    List<Pattern> patterns = Lists.newArrayListWithCapacity(wildcardIndexes.length);
+    for (int index : wildcardIndexes) {
+      patterns.add(matcher.getWildcardPatterns().get(index));
+    }
+    return patterns;
+  }
+
+  /**
+   * @return the patterns which can apply to the violations of the rule in the resource. Only the lines of these
+   * violations are then matched against the wildcard patterns.
+   */
+  public ApplicablePatterns forRule(Rule rule) {
+    if (rule == null) {
+      return NONE;
+    }
+    if (isEmpty() || ruleMatched) {
+      return this;
+    }
+    int[] indexesOfRule = new int[wildcardIndexes.length];
+    int count = 0;
+    for (int index : wildcardIndexes) {
+      if (matcher.getWildcardPatterns().get(index).matchRule(rule)) {
+        indexesOfRule[count++] = index;
+      }
+    }
+    int[] shared = count == 0 ? NO_INDEXES : matcher.sharedIndexes(Arrays.copyOf(indexesOfRule, count));
+    return new ApplicablePatterns(literalPatternIndex, matcher, shared, true);
+  }
+
+  /**
+   * @param violation a violation of the resource for which the patterns were computed, and of the rule if they
+   * were restricted to a rule
+   * @return a pattern which matches the violation, or null if the violation is not switched off
+   */
+  public Pattern match(Violation violation) {
+    if (literalPatternIndex != null) {
+      Pattern pattern = literalPatternIndex.match(violation);
+      if (pattern != null) {
+        return pattern;
+      }
+    }
+    return matcher == null ? null : matcher.matchApplicable(violation, wildcardIndexes, ruleMatched);
+  }
+
+  /**
+   * Applicable patterns are equal when they hold the same shared indexes of the same matcher, so that the files to
+   * which the same patterns apply can share them.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ApplicablePatterns)) {
+      return false;
+    }
+    ApplicablePatterns other = (ApplicablePatterns) o;
+    return literalPatternIndex == other.literalPatternIndex && matcher == other.matcher && wildcardIndexes == other.wildcardIndexes
+      && ruleMatched == other.ruleMatched;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = literalPatternIndex == null ? 0 : System.identityHashCode(literalPatternIndex);
+    hash = 31 * hash + System.identityHashCode(wildcardIndexes);
+    return 31 * hash + (ruleMatched ? 1 : 0);
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.utils.SonarException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Binary form of a configuration file of patterns (see {@link PatternDecoder}), which is loaded much faster than the
+ * text form for big configurations: fields are not parsed nor validated again, line ranges are already merged, and
+ * keys without wildcard are flagged so that no regular expression is compiled for them.
+ * <p/>
+ * Format: a header made of a magic number, the version of the format, the SHA-1 digest of the body and the number of
+ * patterns, then the body made of the patterns. Strings are written as their length followed by their UTF-8 bytes.
+ * The digest is verified when the patterns are loaded, so that truncated or corrupted files are rejected.
+ * <p/>
+ * Compiled files are recognized by their extension {@link #EXTENSION}, so that a text configuration is never taken for
+ * a compiled one. They are produced by {@link PatternsCompiler}.
+ */
+public final class CompiledPatterns {
+
+  public static final String EXTENSION = ".sovp";
+
+  static final int MAGIC = 0x534f5650;
+  static final int VERSION = 1;
+  private static final int DIGEST_LENGTH = 20;
+  private static final int HEADER_LENGTH = 4 + 4 + DIGEST_LENGTH + 4;
+
+  private static final byte MULTICRITERIA = 1;
+  private static final byte BLOCK = 2;
+  private static final byte ALL_FILE = 3;
+
+  private static final int LITERAL_RESOURCE_KEY = 1;
+  private static final int LITERAL_RULE_KEY = 2;
+  private static final int CHECK_LINES = 4;
+
+  private static final String UTF_8 = "UTF-8";
+
+  private CompiledPatterns() {
+    // only static methods
+  }
+
+  /**
+   * @return the number of compiled patterns
+   */
+  public static int compile(File textFile, File compiledFile) throws IOException {
+    List<Pattern> patterns = new PatternDecoder().decode(textFile);
+    write(patterns, compiledFile);
+    return patterns.size();
+  }
+
+  static void write(List<Pattern> patterns, File file) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(body);
+    for (Pattern pattern : patterns) {
+      writePattern(pattern, output);
+    }
+    output.flush();
+
+    FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+    DataOutputStream fileOutput = new DataOutputStream(new FileOutputStream(file));
+    try {
+      fileOutput.writeInt(MAGIC);
+      fileOutput.writeInt(VERSION);
+      fileOutput.write(sha1(body.toByteArray()));
+      fileOutput.writeInt(patterns.size());
+      body.writeTo(fileOutput);
+    } finally {
+      IOUtils.closeQuietly((OutputStream) fileOutput);
+    }
+  }
+
+  private static void writePattern(Pattern pattern, DataOutputStream output) throws IOException {
+    if (pattern.getResourceKeyPattern() != null) {
+      output.writeByte(MULTICRITERIA);
+      int flags = (pattern.isLiteralResourceKey() ? LITERAL_RESOURCE_KEY : 0) | (pattern.isLiteralRuleKey() ? LITERAL_RULE_KEY : 0)
+        | (pattern.isCheckLines() ? CHECK_LINES : 0);
+      output.writeByte(flags);
+      writeString(pattern.getResourceKeyPattern(), output);
+      writeString(pattern.getRuleKeyPattern(), output);
+      List<LineRange> ranges = pattern.getMergedLineRanges();
+      output.writeInt(ranges.size());
+      for (LineRange range : ranges) {
+        output.writeInt(range.getFrom());
+        output.writeInt(range.getTo());
+      }
+    } else if (pattern.getBeginBlockRegexp() != null) {
+      output.writeByte(BLOCK);
+      writeString(pattern.getBeginBlockRegexp(), output);
+      writeString(pattern.getEndBlockRegexp(), output);
+    } else {
+      output.writeByte(ALL_FILE);
+      writeString(pattern.getAllFileRegexp(), output);
+    }
+  }
+
+  private static void writeString(String s, DataOutputStream output) throws IOException {
+    byte[] bytes = s.getBytes(UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * @return true if the file is a compiled configuration, false if it is a text configuration
+   */
+  public static boolean isCompiled(File file) {
+    return file.getName().toLowerCase(Locale.ENGLISH).endsWith(EXTENSION);
+  }
+
+  /**
+   * @return the hexadecimal digest of the patterns of the compiled file, read without loading them
+   */
+  static String digest(File file) {
+    Header header = readHeader(file);
+    if (header == null) {
+      throw new SonarException("Not a compiled configuration of patterns: " + file.getAbsolutePath());
+    }
+    return header.digest;
+  }
+
+  private static Header readHeader(File file) {
+    byte[] bytes = new byte[HEADER_LENGTH];
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new FileInputStream(file));
+      input.readFully(bytes);
+    } catch (EOFException e) {
+      return null;
+    } catch (IOException e) {
+      throw new SonarException("Fail to load the file: " + file.getAbsolutePath(), e);
+    } finally {
+      IOUtils.closeQuietly(input);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.getInt() != MAGIC) {
+      return null;
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new SonarException("Unsupported version " + version + " of compiled configuration: " + file.getAbsolutePath()
+        + ". Please compile the configuration again.");
+    }
+    byte[] digest = new byte[DIGEST_LENGTH];
+    buffer.get(digest);
+    return new Header(new String(Hex.encodeHex(digest)), buffer.getInt());
+  }
+
+  /**
+   * Loads the patterns of a compiled file. The file is mapped in memory rather than read through a stream.
+   */
+  static List<Pattern> read(File file) {
+    Header header = readHeader(file);
+    if (header == null) {
+      throw new SonarException("Not a compiled configuration of patterns: " + file.getAbsolutePath());
+    }
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      FileChannel channel = randomAccessFile.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      verifyDigest(buffer, header, file);
+      buffer.position(HEADER_LENGTH);
+      List<Pattern> patterns = Lists.newArrayListWithCapacity(header.patternCount);
+      for (int i = 0; i < header.patternCount; i++) {
+        patterns.add(readPattern(buffer));
+      }
+      return patterns;
+    } catch (IOException e) {
+      throw new SonarException("Fail to load the file: " + file.getAbsolutePath(), e);
+    } catch (SonarException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw new SonarException("Corrupted compiled configuration of patterns: " + file.getAbsolutePath(), e);
+    } finally {
+      IOUtils.closeQuietly(randomAccessFile);
+    }
+  }
+
+  private static void verifyDigest(ByteBuffer buffer, Header header, File file) {
+    buffer.position(HEADER_LENGTH);
+    MessageDigest digest = newSha1();
+    digest.update(buffer);
+    if (!header.digest.equals(new String(Hex.encodeHex(digest.digest())))) {
+      throw new SonarException("Corrupted compiled configuration of patterns: " + file.getAbsolutePath()
+        + ". Please compile the configuration again.");
+    }
+  }
+
+  private static Pattern readPattern(ByteBuffer buffer) throws IOException {
+    byte kind = buffer.get();
+    switch (kind) {
+      case MULTICRITERIA:
+        int flags = buffer.get();
+        Pattern pattern = new Pattern(readString(buffer), readString(buffer), (flags & LITERAL_RESOURCE_KEY) != 0, (flags & LITERAL_RULE_KEY) != 0);
+        pattern.setCheckLines((flags & CHECK_LINES) != 0);
+        int rangeCount = buffer.getInt();
+        for (int i = 0; i < rangeCount; i++) {
+          pattern.addLineRange(buffer.getInt(), buffer.getInt());
+        }
+        return pattern;
+      case BLOCK:
+        return new Pattern().setBeginBlockRegexp(readString(buffer)).setEndBlockRegexp(readString(buffer));
+      case ALL_FILE:
+        return new Pattern().setAllFileRegexp(readString(buffer));
+      default:
+        throw new IllegalStateException("Unknown kind of pattern: " + kind);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static byte[] sha1(byte[] bytes) {
+    return newSha1().digest(bytes);
+  }
+
+  private static MessageDigest newSha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Header {
+    private final String digest;
+    private final int patternCount;
+
+    private Header(String digest, int patternCount) {
+      this.digest = digest;
+      this.patternCount = patternCount;
+    }
+  }
+}
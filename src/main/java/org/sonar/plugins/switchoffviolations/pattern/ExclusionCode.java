@@ -0,0 +1,126 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+/**
+ * Explains why a violation is switched off, in a single <code>long</code> so that no object is created per violation:
+ * <ul>
+ * <li>bits 60-63: the kind of exclusion, see the <code>KIND_*</code> constants</li>
+ * <li>bits 36-59: the ordinal of the multicriteria pattern in the configuration, or {@link #NO_ORDINAL}</li>
+ * <li>bits 18-35 and 0-17: the first and last lines of the matched range, or 0 if the exclusion does not depend on
+ * lines</li>
+ * </ul>
+ * Ordinals and lines which do not fit are saturated. Patterns merged at load time are reported with the ordinal of
+ * the first of them.
+ */
+public final class ExclusionCode {
+
+  public static final int KIND_NONE = 0;
+  public static final int KIND_MULTICRITERIA = 1;
+  public static final int KIND_BLOCK = 2;
+  public static final int KIND_ALL_FILE = 3;
+  public static final int KIND_RULE_MARKER = 4;
+
+  public static final int NO_ORDINAL = (1 << 24) - 1;
+  public static final int MAX_LINE = (1 << 18) - 1;
+
+  /**
+   * The violation is not switched off
+   */
+  public static final long NOT_IGNORED = 0L;
+
+  /**
+   * Range of the exclusions which apply to every line
+   */
+  public static final long ANY_LINE = 0L;
+
+  /**
+   * No range matches the line
+   */
+  static final long NO_RANGE = -1L;
+
+  private ExclusionCode() {
+    // only static methods
+  }
+
+  /**
+   * @param range {@link #ANY_LINE} or a value returned by {@link #range(int, int)}
+   */
+  public static long of(int kind, int ordinal, long range) {
+    int savedOrdinal = ordinal < 0 || ordinal > NO_ORDINAL ? NO_ORDINAL : ordinal;
+    return ((long) kind << 60) | ((long) savedOrdinal << 36) | range;
+  }
+
+  static long range(int from, int to) {
+    return ((long) saturate(from) << 18) | saturate(to);
+  }
+
+  private static int saturate(int line) {
+    return line < 0 ? 0 : Math.min(line, MAX_LINE);
+  }
+
+  public static int kind(long code) {
+    return (int) (code >>> 60);
+  }
+
+  public static int ordinal(long code) {
+    return (int) ((code >>> 36) & NO_ORDINAL);
+  }
+
+  public static int from(long code) {
+    return (int) ((code >>> 18) & MAX_LINE);
+  }
+
+  public static int to(long code) {
+    return (int) (code & MAX_LINE);
+  }
+
+  public static boolean isIgnored(long code) {
+    return kind(code) != KIND_NONE;
+  }
+
+  public static String toString(long code) {
+    StringBuilder sb = new StringBuilder();
+    switch (kind(code)) {
+      case KIND_NONE:
+        return "not switched off";
+      case KIND_MULTICRITERIA:
+        sb.append("multicriteria pattern #").append(ordinal(code));
+        break;
+      case KIND_BLOCK:
+        sb.append("block");
+        break;
+      case KIND_ALL_FILE:
+        sb.append("file exclusion pattern");
+        break;
+      case KIND_RULE_MARKER:
+        sb.append("rule marker");
+        break;
+      default:
+        sb.append("unknown exclusion");
+        break;
+    }
+    if (to(code) > 0) {
+      sb.append(" on lines [").append(from(code)).append('-').append(to(code)).append(']');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Maps;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wildcard patterns compiled to flat arrays. Patterns which share a resource or rule key glob share its matcher, so
+ * that each distinct glob is matched at most once per violation, the rule key is built once, and the lines are
+ * searched in arrays of intervals. Same decisions as {@link Pattern#match(Violation)} for each pattern.
+ * <p/>
+ * The arrays are not modified once built. The results of the globs already matched for the current violation are
+ * kept in arrays of the evaluating thread, which are reused from one violation to the next: only the entries of the
+ * globs evaluated for a violation are reset, so that the cost of a violation depends on its candidates and not on the
+ * number of distinct globs.
+ */
+final class FlatPatternMatcher {
+
+  private static final byte UNKNOWN = 0;
+  private static final byte MATCH = 1;
+  private static final byte NO_MATCH = 2;
+
+  private final Pattern[] patterns;
+  private final GlobMatcher[] resourceMatchers;
+  private final GlobMatcher[] ruleMatchers;
+  private final int[] resourceMatcherIndexes;
+  private final int[] ruleMatcherIndexes;
+  // null when the pattern does not check lines
+  private final LineIntervals[] lineIntervals;
+  private final ThreadLocal<Evaluation> evaluations = new ThreadLocal<Evaluation>() {
+    @Override
+    protected Evaluation initialValue() {
+      return new Evaluation(resourceMatchers.length, ruleMatchers.length);
+    }
+  };
+
+  FlatPatternMatcher(List<Pattern> wildcardPatterns) {
+    int size = wildcardPatterns.size();
+    patterns = wildcardPatterns.toArray(new Pattern[size]);
+    resourceMatcherIndexes = new int[size];
+    ruleMatcherIndexes = new int[size];
+    lineIntervals = new LineIntervals[size];
+
+    Map<String, Integer> resourceGlobs = Maps.newLinkedHashMap();
+    Map<String, Integer> ruleGlobs = Maps.newLinkedHashMap();
+    Map<String, GlobMatcher> matchers = Maps.newHashMap();
+    for (int i = 0; i < size; i++) {
+      Pattern pattern = patterns[i];
+      resourceMatcherIndexes[i] = indexOf(pattern.getResourceMatcher(), resourceGlobs, matchers);
+      ruleMatcherIndexes[i] = indexOf(pattern.getRuleMatcher(), ruleGlobs, matchers);
+      if (pattern.isCheckLines()) {
+        lineIntervals[i] = new LineIntervals(pattern.getMergedLineRanges());
+      }
+    }
+    resourceMatchers = toMatchers(resourceGlobs, matchers);
+    ruleMatchers = toMatchers(ruleGlobs, matchers);
+  }
+
+  private static int indexOf(GlobMatcher matcher, Map<String, Integer> indexesByGlob, Map<String, GlobMatcher> matchers) {
+    String glob = matcher.getNormalizedGlob();
+    Integer index = indexesByGlob.get(glob);
+    if (index == null) {
+      index = indexesByGlob.size();
+      indexesByGlob.put(glob, index);
+      matchers.put(glob, matcher);
+    }
+    return index;
+  }
+
+  private static GlobMatcher[] toMatchers(Map<String, Integer> indexesByGlob, Map<String, GlobMatcher> matchers) {
+    GlobMatcher[] result = new GlobMatcher[indexesByGlob.size()];
+    for (Map.Entry<String, Integer> entry : indexesByGlob.entrySet()) {
+      result[entry.getValue()] = matchers.get(entry.getKey());
+    }
+    return result;
+  }
+
+  int getResourceMatcherCount() {
+    return resourceMatchers.length;
+  }
+
+  int getRuleMatcherCount() {
+    return ruleMatchers.length;
+  }
+
+  /**
+   * @param candidateIndexes indexes of the patterns to evaluate, in order
+   * @return the first candidate which matches the violation, or null
+   */
+  Pattern match(Violation violation, int[] candidateIndexes) {
+    return match(violation, candidateIndexes, false);
+  }
+
+  /**
+   * Same result as {@link #match(Violation, int[])} when the resource of the violation is already known to match
+   * the given patterns: their resource key globs are not matched.
+   */
+  Pattern matchApplicable(Violation violation, int[] applicableIndexes) {
+    return match(violation, applicableIndexes, true);
+  }
+
+  private Pattern match(Violation violation, int[] candidateIndexes, boolean resourceMatched) {
+    Resource<?> resource = violation.getResource();
+    Rule rule = violation.getRule();
+    if (resource == null || resource.getKey() == null || rule == null) {
+      return null;
+    }
+    String resourceKey = resource.getKey();
+    String ruleKey = RuleKeys.of(rule);
+    Integer lineId = violation.getLineId();
+    Evaluation evaluation = evaluations.get();
+    try {
+      for (int i : candidateIndexes) {
+        LineIntervals lines = lineIntervals[i];
+        if (lineId != null && lines != null && !lines.contains(lineId)) {
+          continue;
+        }
+        if ((resourceMatched || evaluation.resourceStates.matches(resourceMatchers, resourceMatcherIndexes[i], resourceKey))
+          && evaluation.ruleStates.matches(ruleMatchers, ruleMatcherIndexes[i], ruleKey)) {
+          return patterns[i];
+        }
+      }
+      return null;
+    } finally {
+      evaluation.resourceStates.reset();
+      evaluation.ruleStates.reset();
+    }
+  }
+
+  private static final class Evaluation {
+    private final GlobStates resourceStates;
+    private final GlobStates ruleStates;
+
+    Evaluation(int resourceMatcherCount, int ruleMatcherCount) {
+      resourceStates = new GlobStates(resourceMatcherCount);
+      ruleStates = new GlobStates(ruleMatcherCount);
+    }
+  }
+
+  /**
+   * Results of the globs matched for the current violation, and the list of these globs.
+   */
+  private static final class GlobStates {
+    private final byte[] states;
+    private final int[] touched;
+    private int touchedCount;
+
+    GlobStates(int size) {
+      states = new byte[size];
+      touched = new int[size];
+    }
+
+    boolean matches(GlobMatcher[] matchers, int index, String key) {
+      byte state = states[index];
+      if (state == UNKNOWN) {
+        state = matchers[index].match(key) ? MATCH : NO_MATCH;
+        states[index] = state;
+        touched[touchedCount++] = index;
+      }
+      return state == MATCH;
+    }
+
+    void reset() {
+      for (int i = 0; i < touchedCount; i++) {
+        states[touched[i]] = UNKNOWN;
+      }
+      touchedCount = 0;
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.utils.WildcardPattern;
+
+/**
+ * Matches keys against a glob with the same semantics as {@link WildcardPattern}, where <code>*</code> does not match
+ * slashes and <code>**</code> matches anything. The shapes used by most patterns are matched with plain string
+ * operations, and only the other ones with the regular expression of a WildcardPattern.
+ */
+abstract class GlobMatcher {
+
+  private static final String WILDCARDS = "*?";
+  // characters not matched by '.' in a regular expression
+  private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+
+  private final String glob;
+  private final String normalizedGlob;
+  // text which is matched as is by the specialized matchers
+  private final String literal;
+
+  private GlobMatcher(String glob, String normalizedGlob, String literal) {
+    this.glob = glob;
+    this.normalizedGlob = normalizedGlob;
+    this.literal = literal;
+  }
+
+  static GlobMatcher compile(String glob) {
+    String normalized = glob;
+    if (normalized.startsWith("/") || normalized.startsWith("\\")) {
+      normalized = normalized.substring(1);
+    }
+    normalized = normalized.replace('\\', '/');
+
+    if ("**".equals(normalized)) {
+      return new Any(glob, normalized);
+    }
+    if ("*".equals(normalized)) {
+      return new WithoutSlash(glob, normalized);
+    }
+    int firstWildcard = StringUtils.indexOfAny(normalized, WILDCARDS);
+    if (firstWildcard < 0) {
+      return new Equals(glob, normalized);
+    }
+    String head = normalized.substring(0, firstWildcard);
+    String tail = normalized.substring(firstWildcard + 1);
+    if (normalized.charAt(firstWildcard) == '*' && !StringUtils.containsAny(tail, WILDCARDS)) {
+      return head.length() == 0 ? new EndsWith(glob, normalized, tail) : (tail.length() == 0 ? new StartsWith(glob, normalized, head) : new Regexp(glob, normalized));
+    }
+    if (firstWildcard == 0 && normalized.charAt(0) == '*' && normalized.endsWith("*") && normalized.length() > 2) {
+      String middle = normalized.substring(1, normalized.length() - 1);
+      if (!StringUtils.containsAny(middle, WILDCARDS)) {
+        return new Contains(glob, normalized, middle);
+      }
+    }
+    return new Regexp(glob, normalized);
+  }
+
+  /**
+   * Same result as {@link WildcardPattern#match(String)}.
+   */
+  abstract boolean match(String key);
+
+  /**
+   * @return the relative cost of {@link #match(String)}, to evaluate the cheapest matchers first
+   */
+  abstract int cost();
+
+  /**
+   * @return the glob without its leading slash and with slashes instead of backslashes: globs with the same
+   * normalized form match the same keys
+   */
+  String getNormalizedGlob() {
+    return normalizedGlob;
+  }
+
+  /**
+   * @return true if the glob only matches the keys whose normalized form is the normalized glob
+   */
+  boolean isLiteral() {
+    return this instanceof Equals;
+  }
+
+  /**
+   * @return true if every key matched by the other matcher is matched by this one. False negatives are
+   * possible: this is only decided for the specialized shapes.
+   */
+  boolean contains(GlobMatcher other) {
+    if (normalizedGlob.equals(other.normalizedGlob)) {
+      return true;
+    }
+    if (other instanceof Equals) {
+      // the only keys matched by the other matcher are the ones whose normalized form is its literal
+      return match("/" + other.literal + "/");
+    }
+    boolean otherMatchesOnlyKeysWithoutSlashOutsideLiteral = other instanceof StartsWith || other instanceof EndsWith || other instanceof Contains;
+    if (this instanceof WithoutSlash || this instanceof Contains) {
+      return otherMatchesOnlyKeysWithoutSlashOutsideLiteral && match("/" + other.literal + "/");
+    }
+    if (this instanceof StartsWith && other instanceof StartsWith) {
+      return match("/" + other.literal + "/");
+    }
+    if (this instanceof EndsWith && other instanceof EndsWith) {
+      return match("/" + other.literal + "/");
+    }
+    return false;
+  }
+
+  /**
+   * Keys are matched without their leading and trailing slashes, as WildcardPattern does.
+   */
+  private static String normalize(String key) {
+    return StringUtils.removeEnd(StringUtils.removeStart(key, "/"), "/");
+  }
+
+  @Override
+  public String toString() {
+    return glob;
+  }
+
+  /**
+   * WildcardPattern caches the compiled patterns in a map which is not thread-safe, while patterns can be decoded in parallel.
+   */
+  static WildcardPattern createWildcardPattern(String pattern) {
+    synchronized (WildcardPattern.class) {
+      return WildcardPattern.create(pattern);
+    }
+  }
+
+  private static boolean hasNoSlash(String s, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == '/') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * <code>**</code>
+   */
+  private static final class Any extends GlobMatcher {
+    Any(String glob, String normalizedGlob) {
+      super(glob, normalizedGlob, null);
+    }
+
+    @Override
+    int cost() {
+      return 1;
+    }
+
+    @Override
+    boolean match(String key) {
+      return !StringUtils.containsAny(normalize(key), LINE_TERMINATORS);
+    }
+  }
+
+  /**
+   * <code>*</code>
+   */
+  private static final class WithoutSlash extends GlobMatcher {
+    WithoutSlash(String glob, String normalizedGlob) {
+      super(glob, normalizedGlob, null);
+    }
+
+    @Override
+    int cost() {
+      return 1;
+    }
+
+    @Override
+    boolean match(String key) {
+      return normalize(key).indexOf('/') < 0;
+    }
+  }
+
+  /**
+   * <code>org.foo.Bar</code>
+   */
+  private static final class Equals extends GlobMatcher {
+    private final String value;
+
+    Equals(String glob, String normalizedGlob) {
+      super(glob, normalizedGlob, normalizedGlob);
+      this.value = normalizedGlob;
+    }
+
+    @Override
+    int cost() {
+      return 1;
+    }
+
+    @Override
+    boolean match(String key) {
+      return value.equals(normalize(key));
+    }
+  }
+
+  /**
+   * <code>org.foo.*</code>
+   */
+  private static final class StartsWith extends GlobMatcher {
+    private final String prefix;
+
+    StartsWith(String glob, String normalizedGlob, String prefix) {
+      super(glob, normalizedGlob, prefix);
+      this.prefix = prefix;
+    }
+
+    @Override
+    int cost() {
+      return 2;
+    }
+
+    @Override
+    boolean match(String key) {
+      String normalized = normalize(key);
+      return normalized.startsWith(prefix) && hasNoSlash(normalized, prefix.length(), normalized.length());
+    }
+  }
+
+  /**
+   * <code>*Test</code>
+   */
+  private static final class EndsWith extends GlobMatcher {
+    private final String suffix;
+
+    EndsWith(String glob, String normalizedGlob, String suffix) {
+      super(glob, normalizedGlob, suffix);
+      this.suffix = suffix;
+    }
+
+    @Override
+    int cost() {
+      return 2;
+    }
+
+    @Override
+    boolean match(String key) {
+      String normalized = normalize(key);
+      return normalized.endsWith(suffix) && hasNoSlash(normalized, 0, normalized.length() - suffix.length());
+    }
+  }
+
+  /**
+   * <code>*generated*</code>
+   */
+  private static final class Contains extends GlobMatcher {
+    private final String infix;
+
+    Contains(String glob, String normalizedGlob, String infix) {
+      super(glob, normalizedGlob, infix);
+      this.infix = infix;
+    }
+
+    @Override
+    int cost() {
+      return 3;
+    }
+
+    @Override
+    boolean match(String key) {
+      String normalized = normalize(key);
+      // the text before and after the infix must not contain slashes, so the first one can not be before the infix
+      int firstSlash = normalized.indexOf('/');
+      int index = normalized.indexOf(infix);
+      while (index >= 0 && (firstSlash < 0 || index <= firstSlash)) {
+        if (hasNoSlash(normalized, index + infix.length(), normalized.length())) {
+          return true;
+        }
+        index = normalized.indexOf(infix, index + 1);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Any other shape. The regular expression is only compiled when a key is matched, as the patterns loaded from a big
+   * configuration are not all evaluated.
+   */
+  private static final class Regexp extends GlobMatcher {
+    private volatile WildcardPattern pattern;
+
+    Regexp(String glob, String normalizedGlob) {
+      super(glob, normalizedGlob, null);
+    }
+
+    @Override
+    int cost() {
+      return 10;
+    }
+
+    @Override
+    boolean match(String key) {
+      WildcardPattern compiled = pattern;
+      if (compiled == null) {
+        compiled = createWildcardPattern(toString());
+        pattern = compiled;
+      }
+      return compiled.match(key);
+    }
+  }
+}
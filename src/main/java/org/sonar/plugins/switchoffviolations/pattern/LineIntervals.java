@@ -0,0 +1,114 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorted set of disjoint ranges of lines, in which a line is searched by dichotomy.
+ */
+final class LineIntervals {
+
+  private static final Comparator<LineRange> BY_FIRST_LINE = new Comparator<LineRange>() {
+    public int compare(LineRange left, LineRange right) {
+      return left.getFrom() < right.getFrom() ? -1 : (left.getFrom() == right.getFrom() ? 0 : 1);
+    }
+  };
+
+  private final int[] froms;
+  private final int[] tos;
+
+  LineIntervals(Collection<LineRange> ranges) {
+    List<LineRange> merged = merge(ranges);
+    froms = new int[merged.size()];
+    tos = new int[merged.size()];
+    for (int i = 0; i < merged.size(); i++) {
+      froms[i] = merged.get(i).getFrom();
+      tos[i] = merged.get(i).getTo();
+    }
+  }
+
+  boolean contains(int line) {
+    return indexOf(line) >= 0;
+  }
+
+  /**
+   * @return true if all the lines of the range are in the intervals
+   */
+  boolean contains(LineRange range) {
+    int index = indexOf(range.getFrom());
+    return index >= 0 && range.getTo() <= tos[index];
+  }
+
+  private int indexOf(int line) {
+    int low = 0;
+    int high = froms.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (line < froms[middle]) {
+        high = middle - 1;
+      } else if (line > tos[middle]) {
+        low = middle + 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  int size() {
+    return froms.length;
+  }
+
+  /**
+   * @return the same lines as sorted ranges, which neither overlap nor follow each other
+   */
+  static List<LineRange> merge(Collection<LineRange> ranges) {
+    List<LineRange> sorted = Lists.newArrayList(ranges);
+    Collections.sort(sorted, BY_FIRST_LINE);
+
+    List<LineRange> merged = Lists.newArrayList();
+    int from = 0;
+    int to = 0;
+    boolean started = false;
+    for (LineRange range : sorted) {
+      if (started && range.getFrom() <= to + 1) {
+        to = Math.max(to, range.getTo());
+      } else {
+        if (started) {
+          merged.add(new LineRange(from, to));
+        }
+        from = range.getFrom();
+        to = range.getTo();
+        started = true;
+      }
+    }
+    if (started) {
+      merged.add(new LineRange(from, to));
+    }
+    return merged;
+  }
+}
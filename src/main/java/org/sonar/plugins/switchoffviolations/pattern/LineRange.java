@@ -36,6 +36,14 @@ public class LineRange {
     this.to = to;
   }
 
+  public int getFrom() {
+    return from;
+  }
+
+  public int getTo() {
+    return to;
+  }
+
   public boolean in(int lineId) {
     return from <= lineId && lineId <= to;
   }
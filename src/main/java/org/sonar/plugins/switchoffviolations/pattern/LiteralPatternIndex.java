@@ -0,0 +1,149 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multicriteria patterns whose resource and rule keys have no wildcard, such as the ones of generated baselines,
+ * indexed by resource key and rule key. A violation is looked up in constant time, whatever the number of patterns.
+ */
+public final class LiteralPatternIndex {
+
+  private final Map<String, Map<String, Entry>> entriesByResourceKey = Maps.newHashMap();
+  private int size;
+
+  /**
+   * @return true if the pattern can be indexed, false if it must be matched with wildcards
+   */
+  static boolean accepts(Pattern pattern) {
+    return pattern.getResourceKeyPattern() != null && pattern.isLiteralResourceKey() && pattern.isLiteralRuleKey();
+  }
+
+  void add(Pattern pattern) {
+    Map<String, Entry> entriesByRuleKey = entriesByResourceKey.get(pattern.getResourceKeyPattern());
+    if (entriesByRuleKey == null) {
+      entriesByRuleKey = Maps.newHashMap();
+      entriesByResourceKey.put(pattern.getResourceKeyPattern(), entriesByRuleKey);
+    }
+    Entry entry = entriesByRuleKey.get(pattern.getRuleKeyPattern());
+    if (entry == null) {
+      entry = new Entry();
+      entriesByRuleKey.put(pattern.getRuleKeyPattern(), entry);
+    }
+    entry.patterns.add(pattern);
+    size++;
+  }
+
+  /**
+   * Must be called once all the patterns are added.
+   */
+  void build() {
+    for (Map<String, Entry> entriesByRuleKey : entriesByResourceKey.values()) {
+      for (Entry entry : entriesByRuleKey.values()) {
+        entry.build();
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return true if some indexed patterns have the resource key
+   */
+  boolean containsResource(String resourceKey) {
+    return entriesByResourceKey.containsKey(normalize(resourceKey));
+  }
+
+  /**
+   * @return the first indexed pattern which matches the violation, or null. Same result as {@link Pattern#match(Violation)}.
+   */
+  public Pattern match(Violation violation) {
+    Resource<?> resource = violation.getResource();
+    Rule rule = violation.getRule();
+    if (resource == null || resource.getKey() == null || rule == null) {
+      return null;
+    }
+    Map<String, Entry> entriesByRuleKey = entriesByResourceKey.get(normalize(resource.getKey()));
+    if (entriesByRuleKey == null) {
+      return null;
+    }
+    Entry entry = entriesByRuleKey.get(normalize(RuleKeys.of(rule)));
+    if (entry == null) {
+      return null;
+    }
+    return entry.match(violation.getLineId());
+  }
+
+  /**
+   * Keys are compared the same way as {@link org.sonar.api.utils.WildcardPattern#match(String)} does.
+   */
+  private static String normalize(String key) {
+    return StringUtils.removeEnd(StringUtils.removeStart(key, "/"), "/");
+  }
+
+  private static final class Entry {
+    private final List<Pattern> patterns = Lists.newArrayListWithCapacity(1);
+    private boolean allLines;
+    private LineIntervals lines;
+
+    void build() {
+      List<LineRange> ranges = Lists.newArrayList();
+      for (Pattern pattern : patterns) {
+        if (!pattern.isCheckLines()) {
+          allLines = true;
+        }
+        ranges.addAll(pattern.getMergedLineRanges());
+      }
+      lines = new LineIntervals(ranges);
+    }
+
+    Pattern match(Integer lineId) {
+      if (lineId != null && !allLines && !lines.contains(lineId)) {
+        return null;
+      }
+      if (patterns.size() == 1) {
+        return patterns.get(0);
+      }
+      // only to report which pattern switched the violation off
+      for (Pattern pattern : patterns) {
+        if (lineId == null || !pattern.isCheckLines() || pattern.matchLine(lineId)) {
+          return pattern;
+        }
+      }
+      return null;
+    }
+  }
+}
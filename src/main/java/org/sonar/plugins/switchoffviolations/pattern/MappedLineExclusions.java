@@ -0,0 +1,442 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.utils.SonarException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Lines and files excluded by the scans of the source files, stored in memory-mapped files outside of the heap, so that
+ * the exclusions of repositories with millions of files neither fill the heap nor slow down the garbage collector.
+ * The lines excluded for given rules by the rule markers, and the identifier of the applicable patterns of each file,
+ * are stored in the same way.
+ * <p/>
+ * The index is an open-addressing hash table of slots made of the hash of a key and of the offset of its entry in the
+ * data file. An entry is made of its kind, of the length and the characters of the key (the resource key, followed by
+ * the rule key for the lines excluded for a rule), then of the number of ranges of lines (-1 for the whole file) and
+ * of the sorted bounds of the ranges, or of the identifier of the applicable patterns. Lookups compare the keys and
+ * search the line in place, without creating objects.
+ * <p/>
+ * Entries are stored by a single thread at a time. Lookups do not take any lock: they read the buffers through a
+ * {@link Mapping} which is published again after each stored entry, and after the index is rehashed or the data file
+ * extended. A lookup sees the entries stored before it started, and may miss a key which is stored concurrently.
+ * <p/>
+ * Files are created on the first exclusion, and deleted by {@link #close()}. Entries can not exceed 2 GB in total, nor
+ * {@link #MAX_SIZE} keys.
+ */
+final class MappedLineExclusions {
+
+  // hash of the key, offset of the entry
+  private static final int SLOT_SIZE = 16;
+  private static final int INITIAL_SLOTS = 1 << 12;
+  // the index is a single buffer addressed by int offsets, so it can not exceed 2 GB
+  private static final int MAX_SLOTS = 1 << 26;
+  private static final int MAX_SIZE = MAX_SLOTS / 2;
+  private static final int INITIAL_DATA_SIZE = 1 << 20;
+  // entries start after this offset, so that empty slots are the ones with a zero offset
+  private static final int FIRST_ENTRY = 8;
+  private static final int WHOLE_FILE = -1;
+  private static final int NO_IDENTIFIER = -1;
+  private static final int EXCLUDED_LINES = 1;
+  private static final int RULE_EXCLUDED_LINES = 2;
+  private static final int APPLICABLE_PATTERNS = 3;
+  private static final char RULE_KEY_SEPARATOR = '\0';
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final File directory;
+  private volatile Mapping mapping = Mapping.EMPTY;
+
+  // guarded by this
+  private File indexFile;
+  private File dataFile;
+  private MappedByteBuffer slots;
+  private MappedByteBuffer entries;
+  private int slotCount;
+  private int size;
+  private int dataEnd = FIRST_ENTRY;
+
+  /**
+   * @param directory where the files are created, or null for the temporary directory
+   */
+  MappedLineExclusions(File directory) {
+    this.directory = directory;
+  }
+
+  void putWholeFile(String resourceKey) {
+    put(EXCLUDED_LINES, resourceKey, null, WHOLE_FILE, null);
+  }
+
+  void putLineRanges(String resourceKey, Collection<LineRange> lineRanges) {
+    List<LineRange> merged = LineIntervals.merge(lineRanges);
+    put(EXCLUDED_LINES, resourceKey, null, merged.size(), merged);
+  }
+
+  /**
+   * Replaces the lines excluded for each rule of the given exclusions. The lines excluded for other rules are kept.
+   */
+  void putRuleExclusions(String resourceKey, RuleLineExclusions ruleExclusions) {
+    for (String ruleKey : ruleExclusions.getRuleKeys()) {
+      List<LineRange> merged = LineIntervals.merge(ruleExclusions.getLineRanges(ruleKey));
+      put(RULE_EXCLUDED_LINES, resourceKey, ruleKey, merged.size(), merged);
+    }
+  }
+
+  /**
+   * @param identifier positive identifier of the applicable patterns of the resource
+   */
+  void putApplicablePatterns(String resourceKey, int identifier) {
+    put(APPLICABLE_PATTERNS, resourceKey, null, identifier, null);
+  }
+
+  /**
+   * @param header number of ranges, {@link #WHOLE_FILE} or identifier of the applicable patterns
+   * @param ranges null if the header is not a number of ranges
+   */
+  private synchronized void put(int kind, String resourceKey, String ruleKey, int header, List<LineRange> ranges) {
+    try {
+      if (slots == null) {
+        open();
+      }
+      int rangeCount = ranges == null ? 0 : header;
+      int entrySize = 4 + 4 + 2 * keyLength(resourceKey, ruleKey) + 4 + 8 * rangeCount;
+      ensureDataCapacity(entrySize);
+      int offset = dataEnd;
+      int position = offset;
+      entries.putInt(position, kind);
+      entries.putInt(position + 4, keyLength(resourceKey, ruleKey));
+      position = putChars(position + 8, resourceKey);
+      if (ruleKey != null) {
+        entries.putChar(position, RULE_KEY_SEPARATOR);
+        position = putChars(position + 2, ruleKey);
+      }
+      entries.putInt(position, header);
+      position += 4;
+      for (int i = 0; i < rangeCount; i++) {
+        entries.putInt(position, ranges.get(i).getFrom());
+        entries.putInt(position + 4, ranges.get(i).getTo());
+        position += 8;
+      }
+
+      long hash = hash(kind, resourceKey, ruleKey);
+      int slot = new Mapping(slots, entries, slotCount, dataEnd, size).findSlot(kind, resourceKey, ruleKey, hash);
+      boolean newKey = slots.getLong(slot * SLOT_SIZE + 8) == 0L;
+      if (newKey && size >= MAX_SIZE) {
+        throw new SonarException("Too many exclusions to be stored outside of the heap: more than " + MAX_SIZE + " keys");
+      }
+      dataEnd = position;
+      if (newKey) {
+        size++;
+      }
+      // the entry of a key which is excluded again is replaced
+      slots.putLong(slot * SLOT_SIZE, hash);
+      slots.putLong(slot * SLOT_SIZE + 8, offset);
+      if (2 * size > slotCount) {
+        rehash(2 * slotCount);
+      }
+      mapping = new Mapping(slots, entries, slotCount, dataEnd, size);
+    } catch (IOException e) {
+      throw new SonarException("Unable to store the exclusions of " + resourceKey + " in " + dataFile, e);
+    }
+  }
+
+  private int putChars(int position, String key) {
+    int end = position;
+    for (int i = 0; i < key.length(); i++) {
+      entries.putChar(end, key.charAt(i));
+      end += 2;
+    }
+    return end;
+  }
+
+  /**
+   * @param lineId line of the violation, or null
+   * @return the code of the exclusion of the line, see {@link ExclusionCode}, or {@link ExclusionCode#NOT_IGNORED}
+   */
+  long explain(String resourceKey, Integer lineId) {
+    Mapping current = mapping;
+    int header = current.findHeader(EXCLUDED_LINES, resourceKey, null);
+    if (header < 0) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    int rangeCount = current.entries.getInt(header);
+    if (rangeCount == WHOLE_FILE) {
+      return ExclusionCode.of(ExclusionCode.KIND_ALL_FILE, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE);
+    }
+    if (lineId == null) {
+      return ExclusionCode.of(ExclusionCode.KIND_BLOCK, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE);
+    }
+    return current.explainLine(ExclusionCode.KIND_BLOCK, header + 4, rangeCount, lineId);
+  }
+
+  /**
+   * Same decision as {@link RuleLineExclusions#explain(org.sonar.api.rules.Violation)}: violations without line are
+   * never matched.
+   *
+   * @return the code of the exclusion of the line for the rule, or {@link ExclusionCode#NOT_IGNORED}
+   */
+  long explainRule(String resourceKey, String ruleKey, Integer lineId) {
+    if (lineId == null) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    Mapping current = mapping;
+    int header = current.findHeader(RULE_EXCLUDED_LINES, resourceKey, ruleKey);
+    if (header < 0) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    return current.explainLine(ExclusionCode.KIND_RULE_MARKER, header + 4, current.entries.getInt(header), lineId);
+  }
+
+  /**
+   * @return the identifier of the applicable patterns of the resource, or -1 if they were not stored
+   */
+  int getApplicablePatterns(String resourceKey) {
+    Mapping current = mapping;
+    int header = current.findHeader(APPLICABLE_PATTERNS, resourceKey, null);
+    return header < 0 ? NO_IDENTIFIER : current.entries.getInt(header);
+  }
+
+  private static int keyLength(String resourceKey, String ruleKey) {
+    return ruleKey == null ? resourceKey.length() : resourceKey.length() + 1 + ruleKey.length();
+  }
+
+  int size() {
+    return mapping.size;
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the kind and of the characters of the key
+   */
+  private static long hash(int kind, String resourceKey, String ruleKey) {
+    long hash = (FNV_OFFSET_BASIS ^ kind) * FNV_PRIME;
+    hash = hash(hash, resourceKey);
+    if (ruleKey != null) {
+      hash = hash((hash ^ RULE_KEY_SEPARATOR) * FNV_PRIME, ruleKey);
+    }
+    return hash;
+  }
+
+  private static long hash(long initialHash, String key) {
+    long hash = initialHash;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private void open() throws IOException {
+    dataFile = File.createTempFile("switchoffviolations-exclusions", ".dat", directory);
+    dataFile.deleteOnExit();
+    entries = map(dataFile, INITIAL_DATA_SIZE);
+    slots = newIndex(INITIAL_SLOTS);
+  }
+
+  private MappedByteBuffer newIndex(int newSlotCount) throws IOException {
+    File previous = indexFile;
+    indexFile = File.createTempFile("switchoffviolations-index", ".dat", directory);
+    indexFile.deleteOnExit();
+    MappedByteBuffer index = map(indexFile, (long) newSlotCount * SLOT_SIZE);
+    slotCount = newSlotCount;
+    FileUtils.deleteQuietly(previous);
+    return index;
+  }
+
+  private void rehash(int newSlotCount) throws IOException {
+    MappedByteBuffer previousSlots = slots;
+    int previousSlotCount = slotCount;
+    slots = newIndex(newSlotCount);
+    int mask = slotCount - 1;
+    for (int i = 0; i < previousSlotCount; i++) {
+      long offset = previousSlots.getLong(i * SLOT_SIZE + 8);
+      if (offset != 0L) {
+        long hash = previousSlots.getLong(i * SLOT_SIZE);
+        // keys are distinct, so only empty slots are looked for
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (slots.getLong(slot * SLOT_SIZE + 8) != 0L) {
+          slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot * SLOT_SIZE, hash);
+        slots.putLong(slot * SLOT_SIZE + 8, offset);
+      }
+    }
+  }
+
+  private void ensureDataCapacity(int entrySize) throws IOException {
+    long required = (long) dataEnd + entrySize;
+    if (required <= entries.capacity()) {
+      return;
+    }
+    if (required > Integer.MAX_VALUE) {
+      throw new SonarException("Too many exclusions to be stored outside of the heap: " + size + " entries");
+    }
+    long newSize = Math.min(Math.max(2L * entries.capacity(), required), Integer.MAX_VALUE);
+    // the file is extended, and its content is kept
+    entries = map(dataFile, newSize);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // the mapping remains valid once the file is closed
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      IOUtils.closeQuietly(randomAccessFile);
+    }
+  }
+
+  /**
+   * Deletes the files. The mappings are released by the garbage collector, so files may only be deleted at exit on
+   * some platforms.
+   */
+  synchronized void close() {
+    mapping = Mapping.EMPTY;
+    slots = null;
+    entries = null;
+    slotCount = 0;
+    size = 0;
+    dataEnd = FIRST_ENTRY;
+    FileUtils.deleteQuietly(indexFile);
+    FileUtils.deleteQuietly(dataFile);
+    indexFile = null;
+    dataFile = null;
+  }
+
+  /**
+   * Buffers of the index and of the entries, with the end of the entries stored when they were published. Entries
+   * which follow that end are ignored, so that an entry is never read while it is being written.
+   */
+  private static final class Mapping {
+    private static final Mapping EMPTY = new Mapping(null, null, 0, FIRST_ENTRY, 0);
+
+    private final ByteBuffer slots;
+    private final ByteBuffer entries;
+    private final int slotCount;
+    private final int dataEnd;
+    private final int size;
+
+    private Mapping(ByteBuffer slots, ByteBuffer entries, int slotCount, int dataEnd, int size) {
+      this.slots = slots;
+      this.entries = entries;
+      this.slotCount = slotCount;
+      this.dataEnd = dataEnd;
+      this.size = size;
+    }
+
+    /**
+     * Each slot is read once, as the writer may replace its offset meanwhile.
+     *
+     * @return the position of the header which follows the key of the entry, or -1 if there is no entry for the key
+     */
+    private int findHeader(int kind, String resourceKey, String ruleKey) {
+      if (slots == null) {
+        return -1;
+      }
+      long hash = hash(kind, resourceKey, ruleKey);
+      int mask = slotCount - 1;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while (true) {
+        long offset = slots.getLong(slot * SLOT_SIZE + 8);
+        if (offset == 0L) {
+          return -1;
+        }
+        if (offset < dataEnd && slots.getLong(slot * SLOT_SIZE) == hash && keyEquals((int) offset, kind, resourceKey, ruleKey)) {
+          return (int) offset + 8 + 2 * keyLength(resourceKey, ruleKey);
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    /**
+     * Searches the line by dichotomy in the sorted ranges which start at the given position.
+     */
+    private long explainLine(int exclusionKind, int firstRange, int rangeCount, int line) {
+      int low = 0;
+      int high = rangeCount - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int from = entries.getInt(firstRange + 8 * middle);
+        int to = entries.getInt(firstRange + 8 * middle + 4);
+        if (line < from) {
+          high = middle - 1;
+        } else if (line > to) {
+          low = middle + 1;
+        } else {
+          return ExclusionCode.of(exclusionKind, ExclusionCode.NO_ORDINAL, ExclusionCode.range(from, to));
+        }
+      }
+      return ExclusionCode.NOT_IGNORED;
+    }
+
+    /**
+     * Only called by the writer, for which all the entries are published.
+     *
+     * @return the slot of the key, or the empty slot where it would be stored
+     */
+    private int findSlot(int kind, String resourceKey, String ruleKey, long hash) {
+      int mask = slotCount - 1;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while (true) {
+        long offset = slots.getLong(slot * SLOT_SIZE + 8);
+        if (offset == 0L || (slots.getLong(slot * SLOT_SIZE) == hash && keyEquals((int) offset, kind, resourceKey, ruleKey))) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private boolean keyEquals(int offset, int kind, String resourceKey, String ruleKey) {
+      if (entries.getInt(offset) != kind || entries.getInt(offset + 4) != keyLength(resourceKey, ruleKey)) {
+        return false;
+      }
+      int position = charsEqual(offset + 8, resourceKey);
+      if (position < 0 || ruleKey == null) {
+        return position >= 0;
+      }
+      return entries.getChar(position) == RULE_KEY_SEPARATOR && charsEqual(position + 2, ruleKey) >= 0;
+    }
+
+    /**
+     * @return the position which follows the characters, or -1 if they are not the characters of the key
+     */
+    private int charsEqual(int position, String key) {
+      int end = position;
+      for (int i = 0; i < key.length(); i++) {
+        if (entries.getChar(end) != key.charAt(i)) {
+          return -1;
+        }
+        end += 2;
+      }
+      return end;
+    }
+  }
+}
@@ -20,7 +20,9 @@
 
 package org.sonar.plugins.switchoffviolations.pattern;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.sonar.api.resources.Resource;
@@ -28,25 +30,57 @@ import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.Violation;
 import org.sonar.api.utils.WildcardPattern;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 public class Pattern {
 
-  private WildcardPattern resourcePattern;
-  private WildcardPattern rulePattern;
-  private Set<Integer> lines = Sets.newLinkedHashSet();
-  private Set<LineRange> lineRanges = Sets.newLinkedHashSet();
+  private static final String WILDCARD_CHARS = "*?/\\";
+  // beyond this number of ranges, lines are checked after the keys
+  private static final int MAX_RANGES_CHECKED_FIRST = 8;
+
+  private String resourceKeyPattern;
+  private String ruleKeyPattern;
+  private boolean literalResourceKey;
+  private boolean literalRuleKey;
+  private GlobMatcher resourceMatcher;
+  private GlobMatcher ruleMatcher;
+  // only created on demand, as the matchers do not need them
+  private volatile WildcardPattern resourcePattern;
+  private volatile WildcardPattern rulePattern;
+  // null for the views of a table, whose lines are stored in the table
+  private Set<Integer> lines;
+  private Set<LineRange> lineRanges;
   private String beginBlockRegexp;
   private String endBlockRegexp;
   private String allFileRegexp;
   private boolean checkLines = true;
+  // position of the pattern in the configuration, to explain the exclusions
+  private int ordinal = -1;
+  private PatternTable table;
+  private int index;
 
   public Pattern() {
+    this.lines = Sets.newLinkedHashSet();
+    this.lineRanges = Sets.newLinkedHashSet();
   }
 
   public Pattern(String resourcePattern, String rulePattern) {
-    this.resourcePattern = WildcardPattern.create(resourcePattern);
-    this.rulePattern = WildcardPattern.create(rulePattern);
+    this(resourcePattern, rulePattern, isLiteral(resourcePattern), isLiteral(rulePattern));
+  }
+
+  /**
+   * For patterns whose keys have already been classified, see {@link CompiledPatterns}.
+   */
+  Pattern(String resourcePattern, String rulePattern, boolean literalResourceKey, boolean literalRuleKey) {
+    this();
+    this.resourceKeyPattern = resourcePattern;
+    this.ruleKeyPattern = rulePattern;
+    this.literalResourceKey = literalResourceKey;
+    this.literalRuleKey = literalRuleKey;
+    this.resourceMatcher = GlobMatcher.compile(resourcePattern);
+    this.ruleMatcher = GlobMatcher.compile(rulePattern);
   }
 
   public Pattern(String resourcePattern, String rulePattern, Set<LineRange> lineRanges) {
@@ -54,14 +88,60 @@ public class Pattern {
     this.lineRanges = lineRanges;
   }
 
+  /**
+   * View over a pattern of a table, see {@link #toView(PatternTable, int, GlobMatcher, GlobMatcher)}
+   */
+  private Pattern(PatternTable table, int index) {
+    this.table = table;
+    this.index = index;
+  }
+
   public WildcardPattern getResourcePattern() {
+    if (resourcePattern == null && resourceKeyPattern != null) {
+      resourcePattern = GlobMatcher.createWildcardPattern(resourceKeyPattern);
+    }
     return resourcePattern;
   }
 
   public WildcardPattern getRulePattern() {
+    if (rulePattern == null && ruleKeyPattern != null) {
+      rulePattern = GlobMatcher.createWildcardPattern(ruleKeyPattern);
+    }
     return rulePattern;
   }
 
+  String getResourceKeyPattern() {
+    return resourceKeyPattern;
+  }
+
+  String getRuleKeyPattern() {
+    return ruleKeyPattern;
+  }
+
+  GlobMatcher getResourceMatcher() {
+    return resourceMatcher;
+  }
+
+  GlobMatcher getRuleMatcher() {
+    return ruleMatcher;
+  }
+
+  boolean isLiteralResourceKey() {
+    return literalResourceKey;
+  }
+
+  boolean isLiteralRuleKey() {
+    return literalRuleKey;
+  }
+
+  Set<Integer> getLines() {
+    return isView() ? Collections.<Integer>emptySet() : lines;
+  }
+
+  Set<LineRange> getLineRanges() {
+    return isView() ? Sets.newLinkedHashSet(table.getLineRanges(index)) : lineRanges;
+  }
+
   public String getBeginBlockRegexp() {
     return beginBlockRegexp;
   }
@@ -75,16 +155,56 @@ public class Pattern {
   }
 
   Pattern addLineRange(int fromLineId, int toLineId) {
+    checkNotView();
     lineRanges.add(new LineRange(fromLineId, toLineId));
     return this;
   }
 
   Pattern addLine(int lineId) {
+    checkNotView();
     lines.add(lineId);
     return this;
   }
 
-  boolean isCheckLines() {
+  int getOrdinal() {
+    return ordinal;
+  }
+
+  Pattern setOrdinal(int ordinal) {
+    this.ordinal = ordinal;
+    return this;
+  }
+
+  /**
+   * @return true if the pattern is a view over a {@link PatternTable}, whose lines can not be modified
+   */
+  boolean isView() {
+    return table != null;
+  }
+
+  private void checkNotView() {
+    if (isView()) {
+      throw new IllegalStateException("The lines of the patterns of a table can not be modified: " + this);
+    }
+  }
+
+  /**
+   * @return a view over the pattern at the given index of the table, with the same criteria as this pattern
+   */
+  Pattern toView(PatternTable patternTable, int indexInTable, GlobMatcher sharedResourceMatcher, GlobMatcher sharedRuleMatcher) {
+    Pattern view = new Pattern(patternTable, indexInTable);
+    view.resourceKeyPattern = sharedResourceMatcher.toString();
+    view.ruleKeyPattern = sharedRuleMatcher.toString();
+    view.resourceMatcher = sharedResourceMatcher;
+    view.ruleMatcher = sharedRuleMatcher;
+    view.literalResourceKey = literalResourceKey;
+    view.literalRuleKey = literalRuleKey;
+    view.checkLines = checkLines;
+    view.ordinal = ordinal;
+    return view;
+  }
+
+  public boolean isCheckLines() {
     return checkLines;
   }
 
@@ -108,23 +228,100 @@ public class Pattern {
     return this;
   }
 
+  /**
+   * @return the lines and ranges of lines of the pattern, as sorted ranges which neither overlap nor follow each other
+   */
+  List<LineRange> getMergedLineRanges() {
+    if (isView()) {
+      return table.getLineRanges(index);
+    }
+    List<LineRange> ranges = Lists.newArrayList(lineRanges);
+    for (Integer line : lines) {
+      ranges.add(new LineRange(line, line));
+    }
+    return LineIntervals.merge(ranges);
+  }
+
   Set<Integer> getAllLines() {
-    Set<Integer> allLines = Sets.newLinkedHashSet(lines);
-    for (LineRange lineRange : lineRanges) {
+    Set<Integer> allLines = Sets.newLinkedHashSet(getLines());
+    for (LineRange lineRange : getLineRanges()) {
       allLines.addAll(lineRange.toLines());
     }
     return allLines;
   }
 
+  /**
+   * The cheapest and most selective criteria are checked first: the lines, then the key whose matcher is the cheapest.
+   */
   public boolean match(Violation violation) {
-    boolean match = matchResource(violation.getResource()) && matchRule(violation.getRule());
-    if (checkLines && violation.getLineId() != null) {
-      match = match && matchLine(violation.getLineId());
+    boolean checkLine = checkLines && violation.getLineId() != null;
+    // the lines of a view are searched by dichotomy
+    boolean lineFirst = checkLine && (isView() || lineRanges.size() <= MAX_RANGES_CHECKED_FIRST);
+    if (lineFirst && !matchLine(violation.getLineId())) {
+      return false;
+    }
+    boolean match;
+    if (resourceMatcher.cost() <= ruleMatcher.cost()) {
+      match = matchResource(violation.getResource()) && matchRule(violation.getRule());
+    } else {
+      match = matchRule(violation.getRule()) && matchResource(violation.getResource());
+    }
+    if (match && checkLine && !lineFirst) {
+      match = matchLine(violation.getLineId());
     }
     return match;
   }
 
+  /**
+   * Same result as {@link #match(Violation)} for the violations of a resource already known to match.
+   */
+  boolean matchRuleAndLine(Violation violation) {
+    return matchLineOf(violation) && matchRule(violation.getRule());
+  }
+
+  /**
+   * @return true if the line of the violation is one of the lines of the pattern, or if the lines are not checked
+   */
+  boolean matchLineOf(Violation violation) {
+    return !checkLines || violation.getLineId() == null || matchLine(violation.getLineId());
+  }
+
+  /**
+   * @param violation a violation matched by this pattern
+   * @return the code which explains the exclusion of the violation by this pattern, see {@link ExclusionCode}
+   */
+  public long exclusionCode(Violation violation, int kind) {
+    long range = findLineRange(violation);
+    return ExclusionCode.of(kind, ordinal, range == ExclusionCode.NO_RANGE ? ExclusionCode.ANY_LINE : range);
+  }
+
+  /**
+   * @return the range of lines of the pattern which contains the line of the violation, {@link ExclusionCode#ANY_LINE}
+   * if lines are not checked, or {@link ExclusionCode#NO_RANGE}
+   */
+  long findLineRange(Violation violation) {
+    Integer lineId = violation.getLineId();
+    if (!checkLines || lineId == null) {
+      return ExclusionCode.ANY_LINE;
+    }
+    if (isView()) {
+      return table.findLineRange(index, lineId);
+    }
+    if (lines.contains(lineId)) {
+      return ExclusionCode.range(lineId, lineId);
+    }
+    for (LineRange range : lineRanges) {
+      if (range.in(lineId)) {
+        return ExclusionCode.range(range.getFrom(), range.getTo());
+      }
+    }
+    return ExclusionCode.NO_RANGE;
+  }
+
   boolean matchLine(int lineId) {
+    if (isView()) {
+      return table.matchLine(index, lineId);
+    }
     if (lines.contains(lineId)) {
       return true;
     }
@@ -143,16 +340,34 @@ public class Pattern {
       return false;
     }
 
-    String key = new StringBuilder().append(rule.getRepositoryKey()).append(':').append(rule.getKey()).toString();
-    return rulePattern.match(key);
+    return ruleMatcher.match(RuleKeys.of(rule));
   }
 
   boolean matchResource(Resource<?> resource) {
-    return resource != null && resource.getKey() != null && resourcePattern.match(resource.getKey());
+    if (resource == null || resource.getKey() == null) {
+      return false;
+    }
+    return resourceMatcher.match(resource.getKey());
+  }
+
+  /**
+   * @return true if the pattern matches only itself, so that it can be compared as a string
+   */
+  static boolean isLiteral(String keyPattern) {
+    return !StringUtils.containsAny(keyPattern, WILDCARD_CHARS);
   }
 
   @Override
   public String toString() {
-    return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+      .append("resourcePattern", resourceKeyPattern)
+      .append("rulePattern", ruleKeyPattern)
+      .append("lines", getLines())
+      .append("lineRanges", getLineRanges())
+      .append("beginBlockRegexp", beginBlockRegexp)
+      .append("endBlockRegexp", endBlockRegexp)
+      .append("allFileRegexp", allFileRegexp)
+      .append("checkLines", checkLines)
+      .toString();
   }
 }
@@ -21,46 +21,162 @@
 package org.sonar.plugins.switchoffviolations.pattern;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.utils.SonarException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PatternDecoder {
 
   private static final int THREE_FIELDS_PER_LINE = 3;
-  private static final String LINE_RANGE_REGEXP = "\\[((\\d+|\\d+-\\d+),?)*\\]";
+  private static final java.util.regex.Pattern LINE_RANGE_REGEXP = java.util.regex.Pattern.compile("\\[((\\d+|\\d+-\\d+),?)*\\]");
+  private static final int CHUNK_SIZE = 1000;
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int MAX_PENDING_CHUNKS = 2 * THREADS;
+  private static final int MAX_REPORTED_ERRORS = 100;
+
+  // shared by all the decodings, and only created for inputs of several chunks
+  private static ExecutorService executor;
 
   public List<Pattern> decode(String patternsList) {
-    List<Pattern> patterns = Lists.newLinkedList();
-    String[] patternsLines = StringUtils.split(patternsList, "\n");
-    for (String patternLine : patternsLines) {
-      Pattern pattern = decodeLine(patternLine.trim());
-      if (pattern != null) {
-        patterns.add(pattern);
+    return decode(new LineIterator(new StringReader(StringUtils.defaultString(patternsList))), true);
+  }
+
+  public List<Pattern> decode(File file) {
+    LineIterator lines = null;
+    try {
+      lines = FileUtils.lineIterator(file);
+      return decode(lines, false);
+
+    } catch (IOException e) {
+      throw new SonarException("Fail to load the file: " + file.getAbsolutePath(), e);
+    } finally {
+      LineIterator.closeQuietly(lines);
+    }
+  }
+
+  /**
+   * Lines are read by chunks, which are decoded in parallel when there are several of them. Only a bounded number of
+   * chunks is read ahead of the decoding, whatever the number of lines. Patterns keep the order of the lines, and
+   * all the invalid lines are reported at once.
+   */
+  private List<Pattern> decode(Iterator<String> lines, boolean trim) {
+    List<Pattern> patterns = Lists.newArrayList();
+    List<String> errors = Lists.newArrayList();
+    LinkedList<Future<Chunk>> pendingChunks = Lists.newLinkedList();
+    int errorCount = 0;
+    try {
+      int lineNumber = 0;
+      Chunk chunk = new Chunk(1);
+      while (lines.hasNext()) {
+        String line = lines.next();
+        lineNumber++;
+        chunk.lines.add(trim ? line.trim() : line);
+        if (chunk.lines.size() == CHUNK_SIZE && lines.hasNext()) {
+          pendingChunks.add(executor().submit(chunk));
+          if (pendingChunks.size() >= MAX_PENDING_CHUNKS) {
+            errorCount += waitFor(pendingChunks.removeFirst()).collectTo(patterns, errors);
+          }
+          chunk = new Chunk(lineNumber + 1);
+        }
+      }
+      while (!pendingChunks.isEmpty()) {
+        errorCount += waitFor(pendingChunks.removeFirst()).collectTo(patterns, errors);
       }
+      // the last chunk is decoded by the current thread, which would only wait otherwise
+      errorCount += chunk.call().collectTo(patterns, errors);
+    } finally {
+      // chunks left when the decoding fails
+      for (Future<Chunk> pendingChunk : pendingChunks) {
+        pendingChunk.cancel(true);
+      }
+    }
+
+    if (errorCount > 0) {
+      throw new SonarException(errorCount + " invalid pattern(s):\n" + StringUtils.join(errors, '\n'));
     }
     return patterns;
   }
 
-  public List<Pattern> decode(File file) {
+  private static synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "switchoffviolations-pattern-decoder-" + count.incrementAndGet());
+          // the pool must not prevent the JVM from exiting
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private static Chunk waitFor(Future<Chunk> future) {
     try {
-      List<String> lines = FileUtils.readLines(file);
-      List<Pattern> patterns = Lists.newLinkedList();
-      for (String line : lines) {
-        Pattern pattern = decodeLine(line);
-        if (pattern != null) {
-          patterns.add(pattern);
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SonarException("Interrupted while decoding patterns", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new SonarException("Fail to decode patterns", e.getCause());
+    }
+  }
+
+  private final class Chunk implements Callable<Chunk> {
+    private final int firstLineNumber;
+    private final List<String> lines = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+    private final List<Pattern> patterns = Lists.newArrayList();
+    private final List<String> errors = Lists.newArrayList();
+
+    Chunk(int firstLineNumber) {
+      this.firstLineNumber = firstLineNumber;
+    }
+
+    public Chunk call() {
+      for (int i = 0; i < lines.size(); i++) {
+        try {
+          Pattern pattern = decodeLine(lines.get(i));
+          if (pattern != null) {
+            patterns.add(pattern);
+          }
+        } catch (SonarException e) {
+          errors.add("line " + (firstLineNumber + i) + ": " + e.getMessage());
         }
       }
-      return patterns;
+      return this;
+    }
 
-    } catch (IOException e) {
-      throw new SonarException("Fail to load the file: " + file.getAbsolutePath(), e);
+    /**
+     * @return the number of invalid lines of the chunk
+     */
+    int collectTo(List<Pattern> allPatterns, List<String> reportedErrors) {
+      allPatterns.addAll(patterns);
+      for (String error : errors) {
+        if (reportedErrors.size() < MAX_REPORTED_ERRORS) {
+          reportedErrors.add(error);
+        }
+      }
+      return errors.size();
     }
   }
 
@@ -120,20 +236,26 @@ public class PatternDecoder {
       pattern.setCheckLines(true);
       String s = StringUtils.substringBetween(StringUtils.trim(field), "[", "]");
       String[] parts = StringUtils.split(s, ',');
-      for (String part : parts) {
-        if (StringUtils.contains(part, '-')) {
-          String[] range = StringUtils.split(part, '-');
-          pattern.addLineRange(Integer.valueOf(range[0]), Integer.valueOf(range[1]));
-        } else {
-          pattern.addLine(Integer.valueOf(part));
+      try {
+        for (String part : parts) {
+          if (StringUtils.contains(part, '-')) {
+            String[] range = StringUtils.split(part, '-');
+            pattern.addLineRange(Integer.valueOf(range[0]), Integer.valueOf(range[1]));
+          } else {
+            pattern.addLine(Integer.valueOf(part));
+          }
         }
+      } catch (IllegalArgumentException e) {
+        // line numbers which overflow, or reversed ranges
+        throw new SonarException("Invalid format. The third field does not define a valid range of lines: " + field
+          + " (" + e.getMessage() + ")", e);
       }
     }
   }
 
   @VisibleForTesting
   boolean isLinesRange(String field) {
-    return StringUtils.equals(field, "*") || java.util.regex.Pattern.matches(LINE_RANGE_REGEXP, field);
+    return StringUtils.equals(field, "*") || LINE_RANGE_REGEXP.matcher(field).matches();
   }
 
   @VisibleForTesting
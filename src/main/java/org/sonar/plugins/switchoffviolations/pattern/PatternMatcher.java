@@ -0,0 +1,255 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Violation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the multicriteria pattern which switches off a violation. Patterns without wildcard are looked up in a
+ * {@link LiteralPatternIndex}. The other ones are matched one by one, among the candidates given by a
+ * {@link ResourceKeyTrie} for the resource of the violation, in the order of the configuration or, in adaptive mode,
+ * in the order given by an {@link AdaptivePatternOrder}. A compiled matcher evaluates them with a
+ * {@link FlatPatternMatcher} instead of calling each pattern. The {@link ApplicablePatterns} of a resource are
+ * evaluated by the same matcher, so in the same order or with the same compiled patterns.
+ */
+public final class PatternMatcher {
+
+  private final LiteralPatternIndex literalPatternIndex;
+  private final List<Pattern> wildcardPatterns;
+  private final ResourceKeyTrie wildcardPatternTrie;
+  private final AdaptivePatternOrder adaptiveOrder;
+  private final FlatPatternMatcher flatMatcher;
+  // arrays of indexes of applicable patterns, shared by the resources to which the same patterns apply
+  private final ConcurrentMap<IndexSet, int[]> sharedIndexesBySet;
+
+  private PatternMatcher(LiteralPatternIndex literalPatternIndex, List<Pattern> wildcardPatterns) {
+    this.literalPatternIndex = literalPatternIndex;
+    this.wildcardPatterns = Collections.unmodifiableList(wildcardPatterns);
+    this.wildcardPatternTrie = new ResourceKeyTrie();
+    for (Pattern pattern : wildcardPatterns) {
+      wildcardPatternTrie.add(pattern);
+    }
+    this.adaptiveOrder = null;
+    this.flatMatcher = null;
+    this.sharedIndexesBySet = new ConcurrentHashMap<IndexSet, int[]>();
+  }
+
+  private PatternMatcher(PatternMatcher matcher, AdaptivePatternOrder adaptiveOrder, FlatPatternMatcher flatMatcher) {
+    this.literalPatternIndex = matcher.literalPatternIndex;
+    this.wildcardPatterns = matcher.wildcardPatterns;
+    this.wildcardPatternTrie = matcher.wildcardPatternTrie;
+    this.adaptiveOrder = adaptiveOrder;
+    this.flatMatcher = flatMatcher;
+    this.sharedIndexesBySet = matcher.sharedIndexesBySet;
+  }
+
+  public static PatternMatcher of(List<Pattern> multicriteriaPatterns) {
+    LiteralPatternIndex literalPatternIndex = new LiteralPatternIndex();
+    List<Pattern> wildcardPatterns = Lists.newArrayList();
+    for (Pattern pattern : multicriteriaPatterns) {
+      if (LiteralPatternIndex.accepts(pattern)) {
+        literalPatternIndex.add(pattern);
+      } else {
+        wildcardPatterns.add(pattern);
+      }
+    }
+    literalPatternIndex.build();
+    return new PatternMatcher(literalPatternIndex, wildcardPatterns);
+  }
+
+  /**
+   * @return a matcher with the same patterns, which evaluates first the wildcard patterns observed to match often
+   * and to be cheap. Each call starts from the order of the configuration.
+   */
+  public PatternMatcher withAdaptiveOrder() {
+    return new PatternMatcher(this, new AdaptivePatternOrder(wildcardPatterns.size()), null);
+  }
+
+  /**
+   * @return a matcher with the same patterns and the same decisions, which evaluates the wildcard patterns compiled
+   * to a {@link FlatPatternMatcher}, in the order of the configuration
+   */
+  public PatternMatcher compile() {
+    return new PatternMatcher(this, null, new FlatPatternMatcher(wildcardPatterns));
+  }
+
+  AdaptivePatternOrder getAdaptiveOrder() {
+    return adaptiveOrder;
+  }
+
+  FlatPatternMatcher getFlatMatcher() {
+    return flatMatcher;
+  }
+
+  public LiteralPatternIndex getLiteralPatternIndex() {
+    return literalPatternIndex;
+  }
+
+  public List<Pattern> getWildcardPatterns() {
+    return wildcardPatterns;
+  }
+
+  /**
+   * @return the patterns which can apply to the violations of the resource, or {@link ApplicablePatterns#NONE}
+   */
+  public ApplicablePatterns applicablePatterns(String resourceKey) {
+    if (resourceKey == null) {
+      return ApplicablePatterns.NONE;
+    }
+    int[] candidateIndexes = wildcardPatternTrie.sharedCandidateIndexes(resourceKey);
+    int[] applicableIndexes = new int[candidateIndexes.length];
+    int count = 0;
+    for (int index : candidateIndexes) {
+      if (wildcardPatterns.get(index).getResourceMatcher().match(resourceKey)) {
+        applicableIndexes[count++] = index;
+      }
+    }
+    boolean literal = literalPatternIndex.containsResource(resourceKey);
+    if (!literal && count == 0) {
+      return ApplicablePatterns.NONE;
+    }
+    int[] shared = sharedIndexes(count == candidateIndexes.length ? candidateIndexes : Arrays.copyOf(applicableIndexes, count));
+    return new ApplicablePatterns(literal ? literalPatternIndex : null, this, shared);
+  }
+
+  /**
+   * @return an array with the same indexes, shared by all the callers which give the same indexes. The array must not
+   * be modified.
+   */
+  int[] sharedIndexes(int[] indexes) {
+    IndexSet key = new IndexSet(indexes);
+    int[] shared = sharedIndexesBySet.get(key);
+    if (shared == null) {
+      shared = sharedIndexesBySet.putIfAbsent(key, indexes);
+      if (shared == null) {
+        shared = indexes;
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * @return a pattern which matches the violation, or null if the violation is not switched off
+   */
+  public Pattern match(Violation violation) {
+    Pattern pattern = literalPatternIndex.match(violation);
+    if (pattern != null) {
+      return pattern;
+    }
+    Resource<?> resource = violation.getResource();
+    if (resource == null || resource.getKey() == null) {
+      return null;
+    }
+    if (flatMatcher != null) {
+      return flatMatcher.match(violation, wildcardPatternTrie.sharedCandidateIndexes(resource.getKey()));
+    }
+    if (adaptiveOrder != null) {
+      return matchInAdaptiveOrder(violation, wildcardPatternTrie.sharedCandidateIndexes(resource.getKey()), false, false);
+    }
+    for (Pattern wildcardPattern : wildcardPatternTrie.candidates(resource.getKey())) {
+      if (wildcardPattern.match(violation)) {
+        return wildcardPattern;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Same result as {@link #match(Violation)} for the violations of a resource already known to match the given
+   * wildcard patterns.
+   *
+   * @param applicableIndexes shared indexes of the wildcard patterns which apply to the resource of the violation
+   * @param ruleMatched true if these patterns are also known to match the rule of the violation
+   */
+  Pattern matchApplicable(Violation violation, int[] applicableIndexes, boolean ruleMatched) {
+    if (flatMatcher != null) {
+      return flatMatcher.matchApplicable(violation, applicableIndexes);
+    }
+    if (adaptiveOrder != null) {
+      return matchInAdaptiveOrder(violation, applicableIndexes, true, ruleMatched);
+    }
+    for (int index : applicableIndexes) {
+      Pattern wildcardPattern = wildcardPatterns.get(index);
+      if (ruleMatched ? wildcardPattern.matchLineOf(violation) : wildcardPattern.matchRuleAndLine(violation)) {
+        return wildcardPattern;
+      }
+    }
+    return null;
+  }
+
+  private Pattern matchInAdaptiveOrder(Violation violation, int[] candidateIndexes, boolean resourceMatched, boolean ruleMatched) {
+    int[] indexes = adaptiveOrder.inRankOrder(candidateIndexes);
+    for (int index : indexes) {
+      Pattern wildcardPattern = wildcardPatterns.get(index);
+      boolean hit;
+      if (adaptiveOrder.shouldSample(index)) {
+        long start = System.nanoTime();
+        hit = evaluate(wildcardPattern, violation, resourceMatched, ruleMatched);
+        adaptiveOrder.record(index, hit, System.nanoTime() - start);
+      } else {
+        hit = evaluate(wildcardPattern, violation, resourceMatched, ruleMatched);
+        adaptiveOrder.record(index, hit, -1L);
+      }
+      if (hit) {
+        return wildcardPattern;
+      }
+    }
+    return null;
+  }
+
+  private static boolean evaluate(Pattern pattern, Violation violation, boolean resourceMatched, boolean ruleMatched) {
+    if (!resourceMatched) {
+      return pattern.match(violation);
+    }
+    return ruleMatched ? pattern.matchLineOf(violation) : pattern.matchRuleAndLine(violation);
+  }
+
+  /**
+   * Indexes compared by value, to share the arrays of indexes
+   */
+  private static final class IndexSet {
+    private final int[] indexes;
+    private final int hash;
+
+    IndexSet(int[] indexes) {
+      this.indexes = indexes;
+      this.hash = Arrays.hashCode(indexes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof IndexSet && Arrays.equals(indexes, ((IndexSet) o).indexes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes the multicriteria patterns which can not change the decision of the filter: duplicates, and patterns
+ * subsumed by broader ones, like <code>org.foo.Bar;pmd:AvoidPrintStackTrace;[5]</code> by <code>*;pmd:*;*</code>.
+ * Patterns with the same resource and rule keys are merged into a single pattern. The ordinal of each removed pattern
+ * is mapped to the ordinal of the pattern which replaces it, so that the violations it would have switched off can be
+ * attributed.
+ */
+final class PatternNormalizer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PatternNormalizer.class);
+
+  // subsumption between wildcard patterns is checked pair by pair
+  private static final int MAX_WILDCARD_PATTERNS = 2000;
+
+  private PatternNormalizer() {
+    // only static methods
+  }
+
+  static List<Pattern> normalize(List<Pattern> patterns) {
+    return normalize(patterns, Maps.<Integer, Integer>newHashMap());
+  }
+
+  /**
+   * @param replacedOrdinals filled with the ordinal of the pattern which replaces each removed pattern, by ordinal of
+   * the removed pattern
+   */
+  static List<Pattern> normalize(List<Pattern> patterns, Map<Integer, Integer> replacedOrdinals) {
+    List<Pattern> merged = mergeSameKeys(patterns, replacedOrdinals);
+    List<Pattern> result = removeSubsumed(merged, replacedOrdinals);
+    if (result.size() < patterns.size()) {
+      LOG.info("{} redundant multicriteria patterns ignored: {} duplicated or merged, {} subsumed by broader patterns",
+          new Object[] {patterns.size() - result.size(), patterns.size() - merged.size(), merged.size() - result.size()});
+    }
+    return result;
+  }
+
+  private static List<Pattern> mergeSameKeys(List<Pattern> patterns, Map<Integer, Integer> replacedOrdinals) {
+    Map<String, List<Pattern>> patternsByKeys = Maps.newLinkedHashMap();
+    for (Pattern pattern : patterns) {
+      String keys = pattern.getResourceMatcher().getNormalizedGlob() + '\n' + pattern.getRuleMatcher().getNormalizedGlob();
+      List<Pattern> sameKeys = patternsByKeys.get(keys);
+      if (sameKeys == null) {
+        sameKeys = Lists.newArrayListWithCapacity(1);
+        patternsByKeys.put(keys, sameKeys);
+      }
+      sameKeys.add(pattern);
+    }
+
+    List<Pattern> result = Lists.newArrayListWithCapacity(patternsByKeys.size());
+    for (List<Pattern> sameKeys : patternsByKeys.values()) {
+      result.add(sameKeys.size() == 1 ? sameKeys.get(0) : merge(sameKeys));
+      for (int i = 1; i < sameKeys.size(); i++) {
+        replacedOrdinals.put(sameKeys.get(i).getOrdinal(), sameKeys.get(0).getOrdinal());
+      }
+    }
+    return result;
+  }
+
+  private static Pattern merge(List<Pattern> sameKeys) {
+    Pattern first = sameKeys.get(0);
+    Pattern merged = new Pattern(first.getResourceKeyPattern(), first.getRuleKeyPattern(), first.isLiteralResourceKey(), first.isLiteralRuleKey());
+    merged.setOrdinal(first.getOrdinal());
+    List<LineRange> ranges = Lists.newArrayList();
+    boolean checkLines = true;
+    for (Pattern pattern : sameKeys) {
+      checkLines &= pattern.isCheckLines();
+      ranges.addAll(pattern.getMergedLineRanges());
+    }
+    merged.setCheckLines(checkLines);
+    if (checkLines) {
+      for (LineRange range : LineIntervals.merge(ranges)) {
+        merged.addLineRange(range.getFrom(), range.getTo());
+      }
+    }
+    LOG.debug("Patterns {} merged into {}", sameKeys, merged);
+    return merged;
+  }
+
+  private static List<Pattern> removeSubsumed(List<Pattern> patterns, Map<Integer, Integer> replacedOrdinals) {
+    List<Pattern> wildcardPatterns = Lists.newArrayList();
+    for (Pattern pattern : patterns) {
+      if (!LiteralPatternIndex.accepts(pattern)) {
+        wildcardPatterns.add(pattern);
+      }
+    }
+    if (wildcardPatterns.isEmpty()) {
+      return patterns;
+    }
+    boolean checkWildcardPairs = wildcardPatterns.size() <= MAX_WILDCARD_PATTERNS;
+    if (!checkWildcardPairs) {
+      LOG.debug("Too many wildcard patterns to check if they subsume each other: {}", wildcardPatterns.size());
+    }
+
+    ResourceKeyTrie trie = new ResourceKeyTrie();
+    for (Pattern pattern : wildcardPatterns) {
+      trie.add(pattern);
+    }
+    Set<Pattern> removed = Sets.newHashSet();
+    List<Pattern> result = Lists.newArrayList();
+    for (Pattern pattern : patterns) {
+      List<Pattern> candidates;
+      if (pattern.getResourceMatcher().isLiteral()) {
+        candidates = trie.candidates("/" + pattern.getResourceMatcher().getNormalizedGlob() + "/");
+      } else {
+        candidates = checkWildcardPairs ? wildcardPatterns : null;
+      }
+      Pattern broader = candidates == null ? null : findBroader(pattern, candidates, removed);
+      if (broader == null) {
+        result.add(pattern);
+      } else {
+        LOG.debug("Pattern {} is subsumed by {}", pattern, broader);
+        removed.add(pattern);
+        replacedOrdinals.put(pattern.getOrdinal(), broader.getOrdinal());
+      }
+    }
+    return result;
+  }
+
+  private static Pattern findBroader(Pattern pattern, List<Pattern> candidates, Set<Pattern> removed) {
+    for (Pattern candidate : candidates) {
+      // a removed pattern is subsumed by another one, which is also a candidate
+      if (candidate != pattern && !removed.contains(candidate) && subsumes(candidate, pattern)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if every violation matched by the narrower pattern is matched by the broader one
+   */
+  static boolean subsumes(Pattern broader, Pattern narrower) {
+    if (!broader.getResourceMatcher().contains(narrower.getResourceMatcher()) || !broader.getRuleMatcher().contains(narrower.getRuleMatcher())) {
+      return false;
+    }
+    if (!broader.isCheckLines()) {
+      return true;
+    }
+    if (!narrower.isCheckLines()) {
+      return false;
+    }
+    LineIntervals broaderLines = new LineIntervals(broader.getMergedLineRanges());
+    for (LineRange range : narrower.getMergedLineRanges()) {
+      if (!broaderLines.contains(range)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
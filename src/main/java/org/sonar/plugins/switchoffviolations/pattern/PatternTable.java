@@ -0,0 +1,147 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multicriteria patterns stored in shared arrays, so that large configurations do not cost several hundred bytes per
+ * pattern. Key patterns and their matchers are shared by all the patterns which use them, and the merged ranges of
+ * lines of all the patterns are stored as pairs of bounds in a single pool.
+ * <p/>
+ * The patterns of the table are lightweight views which do not have their own sets of lines, see
+ * {@link Pattern#isView()}. The table is not modified once built.
+ */
+final class PatternTable {
+
+  private final List<Pattern> patterns;
+  // the ranges of the pattern i are the pairs of bounds from firstRanges[i] to firstRanges[i + 1] in the pool
+  private final int[] firstRanges;
+  private final int[] boundPool;
+
+  private PatternTable(List<Pattern> source) {
+    int size = source.size();
+    firstRanges = new int[size + 1];
+    List<List<LineRange>> rangesByPattern = Lists.newArrayListWithCapacity(size);
+    int rangeCount = 0;
+    for (Pattern pattern : source) {
+      List<LineRange> ranges = pattern.isCheckLines() ? pattern.getMergedLineRanges() : Collections.<LineRange>emptyList();
+      rangesByPattern.add(ranges);
+      rangeCount += ranges.size();
+    }
+    boundPool = new int[2 * rangeCount];
+
+    Map<String, GlobMatcher> matchersByKeyPattern = Maps.newHashMap();
+    Pattern[] views = new Pattern[size];
+    int range = 0;
+    for (int i = 0; i < size; i++) {
+      firstRanges[i] = range;
+      for (LineRange lineRange : rangesByPattern.get(i)) {
+        boundPool[2 * range] = lineRange.getFrom();
+        boundPool[2 * range + 1] = lineRange.getTo();
+        range++;
+      }
+      Pattern pattern = source.get(i);
+      views[i] = pattern.toView(this, i, shared(pattern.getResourceMatcher(), matchersByKeyPattern), shared(pattern.getRuleMatcher(), matchersByKeyPattern));
+    }
+    firstRanges[size] = range;
+    patterns = Collections.unmodifiableList(Lists.newArrayList(views));
+  }
+
+  /**
+   * @param patterns multicriteria patterns
+   */
+  static PatternTable of(List<Pattern> patterns) {
+    return new PatternTable(patterns);
+  }
+
+  /**
+   * Matchers of the same key pattern are shared, and so is the key pattern itself.
+   */
+  private static GlobMatcher shared(GlobMatcher matcher, Map<String, GlobMatcher> matchersByKeyPattern) {
+    GlobMatcher shared = matchersByKeyPattern.get(matcher.toString());
+    if (shared == null) {
+      shared = matcher;
+      matchersByKeyPattern.put(matcher.toString(), matcher);
+    }
+    return shared;
+  }
+
+  /**
+   * @return the views over the patterns, in the order of the source patterns
+   */
+  List<Pattern> getPatterns() {
+    return patterns;
+  }
+
+  int size() {
+    return patterns.size();
+  }
+
+  int getRangeCount(int index) {
+    return firstRanges[index + 1] - firstRanges[index];
+  }
+
+  List<LineRange> getLineRanges(int index) {
+    List<LineRange> ranges = Lists.newArrayListWithCapacity(getRangeCount(index));
+    for (int range = firstRanges[index]; range < firstRanges[index + 1]; range++) {
+      ranges.add(new LineRange(boundPool[2 * range], boundPool[2 * range + 1]));
+    }
+    return ranges;
+  }
+
+  boolean matchLine(int index, int line) {
+    return indexOfRange(index, line) >= 0;
+  }
+
+  /**
+   * @return the range of the pattern which contains the line, as encoded by {@link ExclusionCode#range(int, int)}, or
+   * {@link ExclusionCode#NO_RANGE}
+   */
+  long findLineRange(int index, int line) {
+    int range = indexOfRange(index, line);
+    return range < 0 ? ExclusionCode.NO_RANGE : ExclusionCode.range(boundPool[2 * range], boundPool[2 * range + 1]);
+  }
+
+  /**
+   * The ranges of a pattern are sorted and disjoint, so the line is searched by dichotomy.
+   */
+  private int indexOfRange(int index, int line) {
+    int low = firstRanges[index];
+    int high = firstRanges[index + 1] - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (line < boundPool[2 * middle]) {
+        high = middle - 1;
+      } else if (line > boundPool[2 * middle + 1]) {
+        low = middle + 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+}
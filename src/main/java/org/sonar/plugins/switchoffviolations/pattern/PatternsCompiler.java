@@ -0,0 +1,50 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line tool which compiles a text configuration file of patterns to the binary form read by
+ * {@link CompiledPatterns}:
+ * <pre>java -cp ... org.sonar.plugins.switchoffviolations.pattern.PatternsCompiler &lt;text file&gt; &lt;compiled file&gt;.sovp</pre>
+ */
+public final class PatternsCompiler {
+
+  private PatternsCompiler() {
+    // only a main method
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: PatternsCompiler <text file> <compiled file>" + CompiledPatterns.EXTENSION);
+      System.exit(1);
+    }
+    File compiledFile = new File(args[1]);
+    if (!CompiledPatterns.isCompiled(compiledFile)) {
+      System.err.println("The name of the compiled file must end with " + CompiledPatterns.EXTENSION);
+      System.exit(1);
+    }
+    int count = CompiledPatterns.compile(new File(args[0]), compiledFile);
+    System.out.println(count + " patterns compiled to " + compiledFile.getAbsolutePath());
+  }
+}
@@ -21,8 +21,13 @@
 package org.sonar.plugins.switchoffviolations.pattern;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,62 +35,203 @@ import org.sonar.api.BatchExtension;
 import org.sonar.api.config.Settings;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Violation;
 import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.switchoffviolations.Constants;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Objects.firstNonNull;
 import static com.google.common.base.Strings.nullToEmpty;
 
+/**
+ * Patterns of the module, and exclusions found in its source files. It can be used from several threads: the
+ * patterns are immutable once loaded, and the exclusions are stored in concurrent maps.
+ * <p/>
+ * Exclusions are indexed by resource key rather than by resource, so that the resources of the scanned files are not
+ * retained, and the keys are interned so that the indexes and the patterns of a file share the same string. They are
+ * released by {@link #releaseScanState()} once the violations are filtered. The interner only holds weak references,
+ * so the keys are released with the exclusions.
+ * <p/>
+ * The exclusions found by the scans can be stored outside of the heap instead, see {@link MappedLineExclusions}. The
+ * heap then retains no entry and no key per file: the applicable patterns of each file are stored as the identifier of
+ * a distinct set of patterns, and only the distinct sets are kept on the heap.
+ */
 public class PatternsInitializer implements BatchExtension {
 
   private static final Logger LOG = LoggerFactory.getLogger(PatternsInitializer.class);
 
+  private static final String[] PATTERN_KEY_PREFIXES = {Constants.PATTERNS_MULTICRITERIA_KEY, Constants.PATTERNS_BLOCK_KEY,
+    Constants.PATTERNS_ALLFILE_KEY, Constants.PATTERNS_RULE_MARKER_KEY, Constants.PATTERNS_PARAMETER_KEY};
+  private static final int INITIAL_DISTINCT_APPLICABLE_PATTERNS = 16;
+
   private final Settings settings;
   private final ProjectFileSystem projectFileSystem;
 
-  private List<Pattern> multicriteriaPatterns;
-  private List<Pattern> blockPatterns;
-  private List<Pattern> allFilePatterns;
-  private Map<Resource<?>, Pattern> extraPatternByResource = Maps.newHashMap();
+  // immutable, replaced as a whole so that the patterns and their matcher are always consistent
+  private volatile PatternsSnapshot snapshot;
+  private volatile PatternMatcher multicriteriaMatcher;
+  // exclusions found by the scans, which may be published while violations are filtered
+  private final ConcurrentMap<String, Pattern> extraPatternByKey = new ConcurrentHashMap<String, Pattern>();
+  private final ConcurrentMap<String, RuleLineExclusions> ruleExclusionsByKey = new ConcurrentHashMap<String, RuleLineExclusions>();
+  private final ConcurrentMap<String, ApplicablePatterns> applicablePatternsByKey = new ConcurrentHashMap<String, ApplicablePatterns>();
+  private final Interner<String> resourceKeys = Interners.newWeakInterner();
+  // null if the exclusions found by the scans and the applicable patterns are stored in the maps above
+  private final MappedLineExclusions mappedExclusions;
+  // distinct applicable patterns of the files, by identifier, when they are stored outside of the heap. The array grows
+  // geometrically: its slots beyond the number of identifiers are empty
+  private final Map<ApplicablePatterns, Integer> applicablePatternsIds = Maps.newHashMap();
+  private volatile ApplicablePatterns[] distinctApplicablePatterns = new ApplicablePatterns[0];
 
   public PatternsInitializer(Settings settings, ProjectFileSystem projectFileSystem) {
     this.settings = settings;
     this.projectFileSystem = projectFileSystem;
+    this.mappedExclusions = settings.getBoolean(Constants.OFF_HEAP_EXCLUSIONS_KEY) ? new MappedLineExclusions(projectFileSystem.getSonarWorkingDirectory()) : null;
     initPatterns();
   }
 
   public List<Pattern> getMulticriteriaPatterns() {
-    return multicriteriaPatterns;
+    return snapshot.getMulticriteriaPatterns();
+  }
+
+  /**
+   * @param ordinal the position of a pattern in {@link #getMulticriteriaPatterns()}
+   * @return the position of the pattern which switches off its violations: the pattern itself, or the pattern it was
+   * merged into or subsumed by when the patterns were normalized
+   */
+  public int getEffectiveOrdinal(int ordinal) {
+    return snapshot.getEffectiveOrdinal(ordinal);
+  }
+
+  public PatternMatcher getMulticriteriaMatcher() {
+    return multicriteriaMatcher;
   }
 
   public List<Pattern> getBlockPatterns() {
-    return blockPatterns;
+    return snapshot.getBlockPatterns();
   }
 
   public List<Pattern> getAllFilePatterns() {
-    return allFilePatterns;
+    return snapshot.getAllFilePatterns();
+  }
+
+  public List<RuleMarkerPattern> getRuleMarkerPatterns() {
+    return snapshot.getRuleMarkerPatterns();
   }
 
+  /**
+   * @return the pattern of the lines or of the file excluded by the scan of the resource, or null. Always null when
+   * the exclusions are stored outside of the heap, see {@link #explainMappedExclusion(Violation)}.
+   */
   public Pattern getExtraPattern(Resource<?> resource) {
-    return extraPatternByResource.get(resource);
+    return isKeyed(resource) ? extraPatternByKey.get(resource.getKey()) : null;
+  }
+
+  /**
+   * @return the lines excluded by rule markers in the resource, or null. Always null when the exclusions are stored
+   * outside of the heap, see {@link #explainMappedRuleExclusion(Violation)}.
+   */
+  public RuleLineExclusions getRuleExclusions(Resource<?> resource) {
+    return isKeyed(resource) ? ruleExclusionsByKey.get(resource.getKey()) : null;
+  }
+
+  /**
+   * @return the multicriteria patterns which can apply to the resource, or null if they were not computed
+   */
+  public ApplicablePatterns getApplicablePatterns(Resource<?> resource) {
+    if (!isKeyed(resource)) {
+      return null;
+    }
+    if (mappedExclusions != null) {
+      int id = mappedExclusions.getApplicablePatterns(resource.getKey());
+      return id < 0 ? null : distinctApplicablePatterns[id];
+    }
+    return applicablePatternsByKey.get(resource.getKey());
+  }
+
+  private static boolean isKeyed(Resource<?> resource) {
+    return resource != null && resource.getKey() != null;
+  }
+
+  private String keyOf(Resource<?> resource) {
+    return resourceKeys.intern(resource.getKey());
   }
 
   @VisibleForTesting
   protected final void initPatterns() {
-    multicriteriaPatterns = Lists.newArrayList();
-    blockPatterns = Lists.newArrayList();
-    allFilePatterns = Lists.newArrayList();
+    File configFile = configFile();
+    String fingerprint = configurationFingerprint(configFile);
+    PatternsSnapshot loaded = PatternsSnapshot.get(fingerprint);
+    if (loaded == null) {
+      loaded = loadPatterns(configFile);
+      PatternsSnapshot.put(fingerprint, loaded);
+    } else {
+      LOG.debug("Reusing the patterns loaded for another module with the same configuration");
+    }
+
+    PatternMatcher matcher = loaded.getMulticriteriaMatcher();
+    if (settings.getBoolean(Constants.COMPILED_MATCHER_KEY)) {
+      matcher = loaded.getCompiledMulticriteriaMatcher();
+    } else if (settings.getBoolean(Constants.ADAPTIVE_ORDER_KEY)) {
+      // the order is learnt for each module, while the snapshot is shared
+      matcher = matcher.withAdaptiveOrder();
+    }
+    multicriteriaMatcher = matcher;
+    snapshot = loaded;
+  }
+
+  private PatternsSnapshot loadPatterns(File configFile) {
+    List<Pattern> multicriteriaPatterns = Lists.newArrayList();
+    List<Pattern> blockPatterns = Lists.newArrayList();
+    List<Pattern> allFilePatterns = Lists.newArrayList();
+    List<RuleMarkerPattern> ruleMarkerPatterns = Lists.newArrayList();
 
-    loadPatternsFromNewProperties();
-    loadPatternsFromDeprecatedProperties();
+    loadPatternsFromNewProperties(multicriteriaPatterns, blockPatterns, allFilePatterns, ruleMarkerPatterns);
+    loadPatternsFromDeprecatedProperties(configFile, multicriteriaPatterns, blockPatterns, allFilePatterns);
+    return new PatternsSnapshot(multicriteriaPatterns, blockPatterns, allFilePatterns, ruleMarkerPatterns);
+  }
+
+  /**
+   * Identifies the configuration of the patterns: the properties which define them, and the content of the
+   * configuration file if any.
+   */
+  private String configurationFingerprint(File configFile) {
+    StringBuilder sb = new StringBuilder();
+    Set<String> keys = Sets.newTreeSet();
+    for (String prefix : PATTERN_KEY_PREFIXES) {
+      keys.addAll(settings.getKeysStartingWith(prefix));
+    }
+    for (String key : keys) {
+      sb.append(key).append('=').append(settings.getString(key)).append('\n');
+    }
+    if (configFile != null && CompiledPatterns.isCompiled(configFile)) {
+      // only the header of compiled files is read, their patterns are loaded if no other module already did
+      sb.append("compiledConfigFile=").append(CompiledPatterns.digest(configFile));
+    } else if (configFile != null) {
+      InputStream input = null;
+      try {
+        input = new FileInputStream(configFile);
+        sb.append("configFile=").append(DigestUtils.shaHex(input));
+      } catch (IOException e) {
+        throw new SonarException("Fail to load the file: " + configFile.getAbsolutePath(), e);
+      } finally {
+        IOUtils.closeQuietly(input);
+      }
+    }
+    return DigestUtils.shaHex(sb.toString());
   }
 
-  private void loadPatternsFromNewProperties() {
+  private void loadPatternsFromNewProperties(List<Pattern> multicriteriaPatterns, List<Pattern> blockPatterns, List<Pattern> allFilePatterns,
+      List<RuleMarkerPattern> ruleMarkerPatterns) {
     // Patterns Multicriteria
     String patternConf = StringUtils.defaultIfBlank(settings.getString(Constants.PATTERNS_MULTICRITERIA_KEY), "");
     for (String id : StringUtils.split(patternConf, ',')) {
@@ -116,22 +262,43 @@ public class PatternsInitializer implements BatchExtension {
       Pattern pattern = new Pattern().setAllFileRegexp(nullToEmpty(allFileRegexp));
       allFilePatterns.add(pattern);
     }
+
+    // Patterns Rule Marker
+    patternConf = StringUtils.defaultIfBlank(settings.getString(Constants.PATTERNS_RULE_MARKER_KEY), "");
+    for (String id : StringUtils.split(patternConf, ',')) {
+      String propPrefix = Constants.PATTERNS_RULE_MARKER_KEY + "." + id + ".";
+      String markerRegexp = settings.getString(propPrefix + Constants.MARKER_REGEXP);
+      String endMarkerRegexp = settings.getString(propPrefix + Constants.END_MARKER_REGEXP);
+      String ruleKeyGroup = settings.getString(propPrefix + Constants.RULE_KEY_GROUP);
+      ruleMarkerPatterns.add(new RuleMarkerPattern(nullToEmpty(markerRegexp), nullToEmpty(endMarkerRegexp), decodeRuleKeyGroup(ruleKeyGroup)));
+    }
+  }
+
+  private static int decodeRuleKeyGroup(String ruleKeyGroup) {
+    if (StringUtils.isBlank(ruleKeyGroup)) {
+      return RuleMarkerPattern.DEFAULT_RULE_KEY_GROUP;
+    }
+    try {
+      return Integer.parseInt(ruleKeyGroup.trim());
+    } catch (NumberFormatException e) {
+      throw new SonarException("Invalid group index for rule keys: " + ruleKeyGroup, e);
+    }
   }
 
-  private void loadPatternsFromDeprecatedProperties() {
+  private void loadPatternsFromDeprecatedProperties(File configFile, List<Pattern> multicriteriaPatterns, List<Pattern> blockPatterns,
+      List<Pattern> allFilePatterns) {
     String patternConf = settings.getString(Constants.PATTERNS_PARAMETER_KEY);
-    String fileLocation = settings.getString(Constants.LOCATION_PARAMETER_KEY);
     List<Pattern> list = Lists.newArrayList();
     if (StringUtils.isNotBlank(patternConf)) {
       list = new PatternDecoder().decode(patternConf);
-    } else if (StringUtils.isNotBlank(fileLocation)) {
-      File file = locateFile(fileLocation);
-      LOG.info("Switch Off Violations plugin configured with: " + file.getAbsolutePath());
-      list = new PatternDecoder().decode(file);
+    } else if (configFile != null && CompiledPatterns.isCompiled(configFile)) {
+      list = CompiledPatterns.read(configFile);
+    } else if (configFile != null) {
+      list = new PatternDecoder().decode(configFile);
     }
 
     for (Pattern pattern : list) {
-      if (pattern.getResourcePattern() != null) {
+      if (pattern.getResourceKeyPattern() != null) {
         multicriteriaPatterns.add(pattern);
       } else if (pattern.getBeginBlockRegexp() != null) {
         blockPatterns.add(pattern);
@@ -141,6 +308,19 @@ public class PatternsInitializer implements BatchExtension {
     }
   }
 
+  /**
+   * @return the deprecated configuration file, or null if the patterns are not defined in a file
+   */
+  private File configFile() {
+    String fileLocation = settings.getString(Constants.LOCATION_PARAMETER_KEY);
+    if (StringUtils.isNotBlank(settings.getString(Constants.PATTERNS_PARAMETER_KEY)) || StringUtils.isBlank(fileLocation)) {
+      return null;
+    }
+    File file = locateFile(fileLocation);
+    LOG.info("Switch Off Violations plugin configured with: " + file.getAbsolutePath());
+    return file;
+  }
+
   private File locateFile(String location) {
     File file = new File(projectFileSystem.getBasedir(), location);
     if (!file.isFile()) {
@@ -150,11 +330,139 @@ public class PatternsInitializer implements BatchExtension {
   }
 
   public void addPatternToExcludeResource(Resource<?> resource) {
-    extraPatternByResource.put(resource, new Pattern(resource.getKey(), "*").setCheckLines(false));
+    if (mappedExclusions != null) {
+      mappedExclusions.putWholeFile(resource.getKey());
+    } else {
+      String key = keyOf(resource);
+      extraPatternByKey.put(key, new Pattern(key, "*").setCheckLines(false));
+    }
   }
 
   public void addPatternToExcludeLines(Resource<?> resource, Set<LineRange> lineRanges) {
-    extraPatternByResource.put(resource, new Pattern(resource.getKey(), "*", lineRanges));
+    if (mappedExclusions != null) {
+      mappedExclusions.putLineRanges(resource.getKey(), lineRanges);
+    } else {
+      String key = keyOf(resource);
+      extraPatternByKey.put(key, new Pattern(key, "*", lineRanges));
+    }
+  }
+
+  /**
+   * Same decision as the pattern of {@link #getExtraPattern(Resource)}, when the exclusions are stored outside of the heap.
+   *
+   * @return the code of the exclusion of the violation by the lines or the file excluded by the scan of its resource,
+   * or {@link ExclusionCode#NOT_IGNORED}
+   */
+  public long explainMappedExclusion(Violation violation) {
+    Resource<?> resource = violation.getResource();
+    if (mappedExclusions == null || violation.getRule() == null || resource == null || resource.getKey() == null) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    return mappedExclusions.explain(resource.getKey(), violation.getLineId());
+  }
+
+  /**
+   * Same decision as the exclusions of {@link #getRuleExclusions(Resource)}, when they are stored outside of the heap.
+   *
+   * @return the code of the exclusion of the violation by a rule marker, or {@link ExclusionCode#NOT_IGNORED}
+   */
+  public long explainMappedRuleExclusion(Violation violation) {
+    Resource<?> resource = violation.getResource();
+    if (mappedExclusions == null || violation.getRule() == null || resource == null || resource.getKey() == null) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    return mappedExclusions.explainRule(resource.getKey(), RuleKeys.of(violation.getRule()), violation.getLineId());
+  }
+
+  /**
+   * Releases the exclusions found in the source files and the applicable patterns of the files. Violations are not
+   * filtered as expected anymore, so this must only be called once all of them are filtered.
+   */
+  public void releaseScanState() {
+    extraPatternByKey.clear();
+    ruleExclusionsByKey.clear();
+    applicablePatternsByKey.clear();
+    if (mappedExclusions != null) {
+      mappedExclusions.close();
+      synchronized (applicablePatternsIds) {
+        applicablePatternsIds.clear();
+        distinctApplicablePatterns = new ApplicablePatterns[0];
+      }
+    }
+  }
+
+  /**
+   * Called by the container at the end of the analysis of the module
+   */
+  public void stop() {
+    releaseScanState();
+  }
+
+  /**
+   * @return the number of source files with applicable patterns or with exclusions stored on the heap
+   */
+  public int getScannedFileCount() {
+    Set<String> keys = Sets.newHashSet(applicablePatternsByKey.keySet());
+    keys.addAll(extraPatternByKey.keySet());
+    keys.addAll(ruleExclusionsByKey.keySet());
+    return keys.size();
+  }
+
+  /**
+   * @return the number of exclusions and applicable patterns stored outside of the heap
+   */
+  int getMappedExclusionCount() {
+    return mappedExclusions != null ? mappedExclusions.size() : 0;
+  }
+
+  /**
+   * @return an estimate of the heap retained by the exclusions found in the source files, by the applicable patterns
+   * of the files and by their interned keys, computed from the average sizes of the objects rather than measured
+   */
+  public long estimateRetainedBytes() {
+    return ScanStateFootprint.estimate(extraPatternByKey, ruleExclusionsByKey, applicablePatternsByKey);
+  }
+
+  public void addRuleExclusions(Resource<?> resource, RuleLineExclusions ruleExclusions) {
+    if (mappedExclusions != null) {
+      mappedExclusions.putRuleExclusions(resource.getKey(), ruleExclusions);
+    } else {
+      ruleExclusionsByKey.put(keyOf(resource), ruleExclusions);
+    }
+  }
+
+  /**
+   * Matches the resource keys of the multicriteria patterns once for the resource, before its violations are filtered.
+   */
+  public ApplicablePatterns computeApplicablePatterns(Resource<?> resource) {
+    ApplicablePatterns applicablePatterns = multicriteriaMatcher.applicablePatterns(resource.getKey());
+    if (mappedExclusions != null) {
+      mappedExclusions.putApplicablePatterns(resource.getKey(), idOf(applicablePatterns));
+    } else {
+      applicablePatternsByKey.put(keyOf(resource), applicablePatterns);
+    }
+    return applicablePatterns;
+  }
+
+  /**
+   * @return the identifier of the applicable patterns, shared by all the files to which the same patterns apply
+   */
+  private int idOf(ApplicablePatterns applicablePatterns) {
+    synchronized (applicablePatternsIds) {
+      Integer id = applicablePatternsIds.get(applicablePatterns);
+      if (id == null) {
+        id = applicablePatternsIds.size();
+        ApplicablePatterns[] array = distinctApplicablePatterns;
+        if (id == array.length) {
+          array = Arrays.copyOf(array, Math.max(INITIAL_DISTINCT_APPLICABLE_PATTERNS, 2 * id));
+        }
+        array[id] = applicablePatterns;
+        // published before the identifier is stored, so that readers always find it
+        distinctApplicablePatterns = array;
+        applicablePatternsIds.put(applicablePatterns, id);
+      }
+      return id;
+    }
   }
 
 }
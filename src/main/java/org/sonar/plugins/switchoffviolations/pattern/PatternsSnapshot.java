@@ -0,0 +1,122 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of patterns decoded from a configuration. Snapshots are shared by all the modules of a build which
+ * have the same configuration, so that the patterns are decoded and compiled only once per JVM.
+ */
+final class PatternsSnapshot {
+
+  private static final int MAX_CACHED_SNAPSHOTS = 16;
+
+  // configuration fingerprint -> snapshot, least recently used first
+  private static final Map<String, PatternsSnapshot> CACHE = new LinkedHashMap<String, PatternsSnapshot>(MAX_CACHED_SNAPSHOTS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PatternsSnapshot> eldest) {
+      return size() > MAX_CACHED_SNAPSHOTS;
+    }
+  };
+
+  private final List<Pattern> multicriteriaPatterns;
+  private final List<Pattern> blockPatterns;
+  private final List<Pattern> allFilePatterns;
+  private final List<RuleMarkerPattern> ruleMarkerPatterns;
+  private final PatternMatcher multicriteriaMatcher;
+  // ordinal of the pattern which replaces each pattern removed by the normalization
+  private final Map<Integer, Integer> replacedOrdinals;
+  private PatternMatcher compiledMulticriteriaMatcher;
+
+  PatternsSnapshot(List<Pattern> multicriteriaPatterns, List<Pattern> blockPatterns, List<Pattern> allFilePatterns,
+      List<RuleMarkerPattern> ruleMarkerPatterns) {
+    for (int i = 0; i < multicriteriaPatterns.size(); i++) {
+      multicriteriaPatterns.get(i).setOrdinal(i);
+    }
+    // the decoded patterns are replaced by lightweight views
+    List<Pattern> views = PatternTable.of(multicriteriaPatterns).getPatterns();
+    this.multicriteriaPatterns = views;
+    this.blockPatterns = Collections.unmodifiableList(blockPatterns);
+    this.allFilePatterns = Collections.unmodifiableList(allFilePatterns);
+    this.ruleMarkerPatterns = Collections.unmodifiableList(ruleMarkerPatterns);
+    Map<Integer, Integer> replaced = new HashMap<Integer, Integer>();
+    this.multicriteriaMatcher = PatternMatcher.of(PatternNormalizer.normalize(views, replaced));
+    this.replacedOrdinals = Collections.unmodifiableMap(replaced);
+  }
+
+  /**
+   * @return the ordinal of the pattern which switches off the violations of the given pattern: the pattern itself, or
+   * the pattern it was merged into or subsumed by
+   */
+  int getEffectiveOrdinal(int ordinal) {
+    int effective = ordinal;
+    Integer replacing = replacedOrdinals.get(effective);
+    // a merged pattern may itself be subsumed
+    while (replacing != null) {
+      effective = replacing;
+      replacing = replacedOrdinals.get(effective);
+    }
+    return effective;
+  }
+
+  List<Pattern> getMulticriteriaPatterns() {
+    return multicriteriaPatterns;
+  }
+
+  PatternMatcher getMulticriteriaMatcher() {
+    return multicriteriaMatcher;
+  }
+
+  /**
+   * The compiled matcher is only built for the configurations which use it, once per snapshot.
+   */
+  synchronized PatternMatcher getCompiledMulticriteriaMatcher() {
+    if (compiledMulticriteriaMatcher == null) {
+      compiledMulticriteriaMatcher = multicriteriaMatcher.compile();
+    }
+    return compiledMulticriteriaMatcher;
+  }
+
+  List<Pattern> getBlockPatterns() {
+    return blockPatterns;
+  }
+
+  List<Pattern> getAllFilePatterns() {
+    return allFilePatterns;
+  }
+
+  List<RuleMarkerPattern> getRuleMarkerPatterns() {
+    return ruleMarkerPatterns;
+  }
+
+  static synchronized PatternsSnapshot get(String fingerprint) {
+    return CACHE.get(fingerprint);
+  }
+
+  static synchronized void put(String fingerprint, PatternsSnapshot snapshot) {
+    CACHE.put(fingerprint, snapshot);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multicriteria patterns indexed by the literal segments which start their resource key pattern. For instance
+ * <code>com.acme.legacy.*</code> is stored under the segments <code>com.</code>, <code>acme.</code> and
+ * <code>legacy.</code>. Walking the segments of a resource key gives the only patterns which may match it, in a time
+ * proportional to the depth of the key. Patterns starting with a wildcard can not be indexed and are candidates for
+ * every resource.
+ * <p/>
+ * Candidates still have to be matched: the trie only discards patterns which can not match.
+ */
+final class ResourceKeyTrie {
+
+  private static final String SEPARATORS = "./";
+  private static final String WILDCARDS = "*?";
+
+  private final Node root = new Node(null);
+  private final List<Pattern> patterns = Lists.newArrayList();
+
+  void add(Pattern pattern) {
+    Node node = root;
+    for (String segment : literalSegments(pattern.getResourceKeyPattern())) {
+      node = node.child(segment);
+    }
+    node.patternIndexes.add(patterns.size());
+    patterns.add(pattern);
+  }
+
+  int size() {
+    return patterns.size();
+  }
+
+  /**
+   * @return the patterns which start with a wildcard, and which are candidates for every resource
+   */
+  List<Pattern> getResidualPatterns() {
+    return toPatterns(root.patternIndexes);
+  }
+
+  /**
+   * @return the patterns which may match the resource key, in the order they were added
+   */
+  List<Pattern> candidates(String resourceKey) {
+    return toPatterns(candidateIndexes(resourceKey));
+  }
+
+  /**
+   * @return the indexes, in the order of addition, of the patterns which may match the resource key
+   */
+  List<Integer> candidateIndexes(String resourceKey) {
+    List<Integer> indexes = Lists.newArrayList(root.patternIndexes);
+    // same normalization as WildcardPattern#match(String)
+    String key = StringUtils.removeEnd(StringUtils.removeStart(resourceKey, "/"), "/");
+    Node node = root;
+    int start = 0;
+    for (int i = 0; i < key.length() && node.children != null; i++) {
+      if (SEPARATORS.indexOf(key.charAt(i)) >= 0) {
+        node = node.children.get(key.substring(start, i + 1));
+        if (node == null) {
+          break;
+        }
+        indexes.addAll(node.patternIndexes);
+        start = i + 1;
+      }
+    }
+    if (indexes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Collections.sort(indexes);
+    return indexes;
+  }
+
+  /**
+   * Same indexes as {@link #candidateIndexes(String)}, in an array shared by all the resource keys which reach the
+   * same node of the trie. The array must not be modified.
+   */
+  int[] sharedCandidateIndexes(String resourceKey) {
+    String key = StringUtils.removeEnd(StringUtils.removeStart(resourceKey, "/"), "/");
+    Node node = root;
+    int start = 0;
+    for (int i = 0; i < key.length() && node.children != null; i++) {
+      if (SEPARATORS.indexOf(key.charAt(i)) >= 0) {
+        Node child = node.children.get(key.substring(start, i + 1));
+        if (child == null) {
+          break;
+        }
+        node = child;
+        start = i + 1;
+      }
+    }
+    return node.candidateIndexes();
+  }
+
+  private List<Pattern> toPatterns(List<Integer> indexes) {
+    List<Pattern> result = Lists.newArrayListWithCapacity(indexes.size());
+    for (Integer index : indexes) {
+      result.add(patterns.get(index));
+    }
+    return result;
+  }
+
+  /**
+   * Segments of the resource key pattern which precede its first wildcard, with their trailing separator.
+   * As for WildcardPattern, a leading slash is ignored and backslashes are slashes.
+   */
+  static List<String> literalSegments(String resourceKeyPattern) {
+    String pattern = resourceKeyPattern;
+    if (pattern.startsWith("/") || pattern.startsWith("\\")) {
+      pattern = pattern.substring(1);
+    }
+    pattern = pattern.replace('\\', '/');
+    int firstWildcard = StringUtils.indexOfAny(pattern, WILDCARDS);
+    String prefix = firstWildcard < 0 ? pattern : pattern.substring(0, firstWildcard);
+
+    List<String> segments = Lists.newArrayList();
+    int start = 0;
+    for (int i = 0; i < prefix.length(); i++) {
+      if (SEPARATORS.indexOf(prefix.charAt(i)) >= 0) {
+        segments.add(prefix.substring(start, i + 1));
+        start = i + 1;
+      }
+    }
+    return segments;
+  }
+
+  private static final class Node {
+    private final Node parent;
+    private Map<String, Node> children;
+    private final List<Integer> patternIndexes = Lists.newArrayListWithCapacity(1);
+    // indexes of the patterns of the node and of its ancestors, computed on demand once the trie is built
+    private volatile int[] candidateIndexes;
+
+    Node(Node parent) {
+      this.parent = parent;
+    }
+
+    int[] candidateIndexes() {
+      int[] indexes = candidateIndexes;
+      if (indexes == null) {
+        int[] inherited = parent == null ? new int[0] : parent.candidateIndexes();
+        indexes = Arrays.copyOf(inherited, inherited.length + patternIndexes.size());
+        for (int i = 0; i < patternIndexes.size(); i++) {
+          indexes[inherited.length + i] = patternIndexes.get(i);
+        }
+        Arrays.sort(indexes);
+        candidateIndexes = indexes;
+      }
+      return indexes;
+    }
+
+    Node child(String segment) {
+      if (children == null) {
+        children = Maps.newHashMap();
+      }
+      Node child = children.get(segment);
+      if (child == null) {
+        child = new Node(this);
+        children.put(segment, child);
+      }
+      return child;
+    }
+  }
+}
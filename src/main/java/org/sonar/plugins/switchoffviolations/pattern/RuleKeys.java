@@ -0,0 +1,70 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.MapMaker;
+import org.sonar.api.rules.Rule;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keys <code>repository:key</code> of the rules, as matched by the rule patterns. Violations share a few rule
+ * instances, so the key of each instance is built once instead of once per violation. The cache is weak, keyed by
+ * identity, and a key is built again when the rule was modified since it was cached.
+ */
+public final class RuleKeys {
+
+  private static final ConcurrentMap<Rule, CachedKey> CACHE = new MapMaker().weakKeys().makeMap();
+
+  private RuleKeys() {
+  }
+
+  /**
+   * @return the key of the rule, or null if the rule is null
+   */
+  public static String of(Rule rule) {
+    if (rule == null) {
+      return null;
+    }
+    CachedKey cached = CACHE.get(rule);
+    if (cached == null || !cached.isKeyOf(rule)) {
+      cached = new CachedKey(rule);
+      CACHE.put(rule, cached);
+    }
+    return cached.key;
+  }
+
+  private static final class CachedKey {
+    private final String repositoryKey;
+    private final String ruleKey;
+    private final String key;
+
+    CachedKey(Rule rule) {
+      repositoryKey = rule.getRepositoryKey();
+      ruleKey = rule.getKey();
+      key = new StringBuilder().append(repositoryKey).append(':').append(ruleKey).toString();
+    }
+
+    boolean isKeyOf(Rule rule) {
+      return repositoryKey == rule.getRepositoryKey() && ruleKey == rule.getKey();
+    }
+  }
+}
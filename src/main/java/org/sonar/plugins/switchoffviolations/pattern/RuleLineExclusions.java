@@ -0,0 +1,110 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lines of a resource on which some given rules are switched off, indexed by rule key (<code>repository:key</code>).
+ */
+public class RuleLineExclusions {
+
+  private final Map<String, Set<LineRange>> lineRangesByRule = Maps.newHashMap();
+
+  public RuleLineExclusions add(String ruleKey, LineRange lineRange) {
+    Set<LineRange> lineRanges = lineRangesByRule.get(ruleKey);
+    if (lineRanges == null) {
+      lineRanges = Sets.newLinkedHashSet();
+      lineRangesByRule.put(ruleKey, lineRanges);
+    }
+    lineRanges.add(lineRange);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return lineRangesByRule.isEmpty();
+  }
+
+  public Set<String> getRuleKeys() {
+    return Collections.unmodifiableSet(lineRangesByRule.keySet());
+  }
+
+  public Set<LineRange> getLineRanges(String ruleKey) {
+    Set<LineRange> lineRanges = lineRangesByRule.get(ruleKey);
+    return lineRanges == null ? Collections.<LineRange>emptySet() : Collections.unmodifiableSet(lineRanges);
+  }
+
+  /**
+   * Violations without line are never matched: a marker only applies to the lines it covers.
+   */
+  public boolean match(Violation violation) {
+    Rule rule = violation.getRule();
+    Integer lineId = violation.getLineId();
+    if (rule == null || lineId == null) {
+      return false;
+    }
+    return matchLine(RuleKeys.of(rule), lineId);
+  }
+
+  /**
+   * @return the code of the exclusion of the violation, or {@link ExclusionCode#NOT_IGNORED}
+   */
+  public long explain(Violation violation) {
+    Rule rule = violation.getRule();
+    Integer lineId = violation.getLineId();
+    if (rule == null || lineId == null) {
+      return ExclusionCode.NOT_IGNORED;
+    }
+    Set<LineRange> lineRanges = lineRangesByRule.get(RuleKeys.of(rule));
+    if (lineRanges != null) {
+      for (LineRange range : lineRanges) {
+        if (range.in(lineId)) {
+          return ExclusionCode.of(ExclusionCode.KIND_RULE_MARKER, ExclusionCode.NO_ORDINAL, ExclusionCode.range(range.getFrom(), range.getTo()));
+        }
+      }
+    }
+    return ExclusionCode.NOT_IGNORED;
+  }
+
+  boolean matchLine(String ruleKey, int lineId) {
+    Set<LineRange> lineRanges = lineRangesByRule.get(ruleKey);
+    if (lineRanges != null) {
+      for (LineRange range : lineRanges) {
+        if (range.in(lineId)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return lineRangesByRule.toString();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * Marker found in source code that switches off only the rules whose keys are captured by one of its groups,
+ * for example <code>switchoff(pmd:AvoidPrintStackTrace)</code>.
+ */
+public class RuleMarkerPattern {
+
+  public static final int DEFAULT_RULE_KEY_GROUP = 1;
+
+  private final String markerRegexp;
+  private final String endMarkerRegexp;
+  private final int ruleKeyGroup;
+
+  /**
+   * @param markerRegexp regular expression identifying the marker
+   * @param endMarkerRegexp if not blank, the marker starts a block that ends on the line matching this regular expression.
+   *                        Otherwise only the line of the marker is concerned.
+   * @param ruleKeyGroup index of the group of <code>markerRegexp</code> that captures a comma-separated list of rule keys
+   */
+  public RuleMarkerPattern(String markerRegexp, String endMarkerRegexp, int ruleKeyGroup) {
+    this.markerRegexp = markerRegexp;
+    this.endMarkerRegexp = endMarkerRegexp;
+    this.ruleKeyGroup = ruleKeyGroup;
+  }
+
+  public String getMarkerRegexp() {
+    return markerRegexp;
+  }
+
+  public String getEndMarkerRegexp() {
+    return endMarkerRegexp;
+  }
+
+  public int getRuleKeyGroup() {
+    return ruleKeyGroup;
+  }
+
+  @Override
+  public String toString() {
+    return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+  }
+}
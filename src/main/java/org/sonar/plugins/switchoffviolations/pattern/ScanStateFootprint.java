@@ -0,0 +1,90 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import java.util.Map;
+
+/**
+ * Estimates the heap retained by the exclusions found in the source files, by their applicable patterns and by the
+ * interned keys of the files, from the average sizes of the objects on a 64-bit JVM with compressed references. The
+ * estimate does not walk the objects: it is only as accurate as these averages.
+ */
+final class ScanStateFootprint {
+
+  // entry of a concurrent map, and its share of the table
+  private static final int MAP_ENTRY_BYTES = 40;
+  // string object and header of its array of characters
+  private static final int STRING_BYTES = 40;
+  // weak entry of the interner of the keys, and its share of the table
+  private static final int INTERNED_KEY_BYTES = 56;
+  // pattern, its matchers and its sets of lines
+  private static final int EXTRA_PATTERN_BYTES = 360;
+  // range, and its entry in a linked set
+  private static final int LINE_RANGE_BYTES = 64;
+  // rule exclusions and their map
+  private static final int RULE_EXCLUSIONS_BYTES = 150;
+  // entry of a rule in the map, and its set of ranges
+  private static final int RULE_BYTES = 150;
+  // applicable patterns of a file, without their array of indexes which is shared by the files with the same patterns
+  private static final int APPLICABLE_PATTERNS_BYTES = 32;
+
+  private ScanStateFootprint() {
+    // only static methods
+  }
+
+  static long estimate(Map<String, Pattern> extraPatternByKey, Map<String, RuleLineExclusions> ruleExclusionsByKey,
+      Map<String, ApplicablePatterns> applicablePatternsByKey) {
+    long bytes = 0;
+    // keys are interned, so each key is counted once
+    for (Map.Entry<String, ApplicablePatterns> entry : applicablePatternsByKey.entrySet()) {
+      bytes += MAP_ENTRY_BYTES + internedKeyBytes(entry.getKey());
+      if (entry.getValue() != ApplicablePatterns.NONE) {
+        bytes += APPLICABLE_PATTERNS_BYTES;
+      }
+    }
+    for (Map.Entry<String, Pattern> entry : extraPatternByKey.entrySet()) {
+      bytes += MAP_ENTRY_BYTES + keyBytes(entry.getKey(), applicablePatternsByKey);
+      bytes += EXTRA_PATTERN_BYTES + LINE_RANGE_BYTES * (entry.getValue().getLines().size() + entry.getValue().getLineRanges().size());
+    }
+    for (Map.Entry<String, RuleLineExclusions> entry : ruleExclusionsByKey.entrySet()) {
+      String key = entry.getKey();
+      bytes += MAP_ENTRY_BYTES + RULE_EXCLUSIONS_BYTES;
+      bytes += extraPatternByKey.containsKey(key) ? 0 : keyBytes(key, applicablePatternsByKey);
+      RuleLineExclusions ruleExclusions = entry.getValue();
+      for (String ruleKey : ruleExclusions.getRuleKeys()) {
+        bytes += RULE_BYTES + stringBytes(ruleKey) + LINE_RANGE_BYTES * ruleExclusions.getLineRanges(ruleKey).size();
+      }
+    }
+    return bytes;
+  }
+
+  private static long keyBytes(String key, Map<String, ApplicablePatterns> applicablePatternsByKey) {
+    return applicablePatternsByKey.containsKey(key) ? 0 : internedKeyBytes(key);
+  }
+
+  private static long internedKeyBytes(String key) {
+    return INTERNED_KEY_BYTES + stringBytes(key);
+  }
+
+  private static long stringBytes(String s) {
+    return STRING_BYTES + 2L * s.length();
+  }
+}
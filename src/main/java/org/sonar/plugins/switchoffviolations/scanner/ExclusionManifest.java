@@ -0,0 +1,165 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.utils.SonarException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exclusions found by the scan of the source files of a project, indexed by resource key. It can be written by an
+ * analysis and loaded by another one, which then does not need to read the sources.
+ * <p/>
+ * Format: a header, the fingerprint of the patterns used for the scan, then one line per scanned file made of the
+ * resource key followed by the encoded exclusions of the file (see {@link ScanResult}), separated by tabs.
+ */
+class ExclusionManifest {
+
+  static final String HEADER = "# switchoffviolations manifest v1";
+  private static final String FINGERPRINT_PREFIX = "# fingerprint ";
+  private static final char SEPARATOR = '\t';
+  private static final String UTF_8 = "UTF-8";
+
+  private final String fingerprint;
+  private final Map<String, ScanResult> resultsByResourceKey = Maps.newLinkedHashMap();
+
+  ExclusionManifest(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  String getFingerprint() {
+    return fingerprint;
+  }
+
+  void add(String resourceKey, ScanResult result) {
+    if (StringUtils.containsAny(resourceKey, "\t\r\n")) {
+      throw new SonarException("Resource key can not be written in the exclusion manifest: " + resourceKey);
+    }
+    if (resultsByResourceKey.containsKey(resourceKey)) {
+      throw new SonarException("The resource " + resourceKey + " is listed twice in the exclusion manifest");
+    }
+    resultsByResourceKey.put(resourceKey, result);
+  }
+
+  Map<String, ScanResult> getResults() {
+    return Collections.unmodifiableMap(resultsByResourceKey);
+  }
+
+  void write(File file) throws IOException {
+    FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+    try {
+      writer.write(HEADER);
+      writer.write('\n');
+      writer.write(FINGERPRINT_PREFIX);
+      writer.write(fingerprint);
+      writer.write('\n');
+      for (Map.Entry<String, ScanResult> entry : resultsByResourceKey.entrySet()) {
+        writer.write(entry.getKey());
+        for (String exclusion : entry.getValue().encode()) {
+          writer.write(SEPARATOR);
+          writer.write(exclusion);
+        }
+        writer.write('\n');
+      }
+    } finally {
+      IOUtils.closeQuietly(writer);
+    }
+  }
+
+  static ExclusionManifest read(File file) throws IOException {
+    LineIterator lines = FileUtils.lineIterator(file, UTF_8);
+    try {
+      if (!lines.hasNext() || !HEADER.equals(lines.nextLine())) {
+        throw new SonarException("Not an exclusion manifest: " + file.getAbsolutePath());
+      }
+      String fingerprintLine = lines.hasNext() ? lines.nextLine() : "";
+      if (!fingerprintLine.startsWith(FINGERPRINT_PREFIX)) {
+        throw new SonarException("Missing fingerprint in exclusion manifest: " + file.getAbsolutePath());
+      }
+      ExclusionManifest manifest = new ExclusionManifest(fingerprintLine.substring(FINGERPRINT_PREFIX.length()));
+      int lineIndex = 2;
+      while (lines.hasNext()) {
+        String line = lines.nextLine();
+        lineIndex++;
+        if (StringUtils.isBlank(line)) {
+          continue;
+        }
+        List<String> fields = Lists.newArrayList(Arrays.asList(StringUtils.splitPreserveAllTokens(line, SEPARATOR)));
+        String resourceKey = fields.remove(0);
+        try {
+          manifest.add(resourceKey, ScanResult.decode(fields));
+        } catch (SonarException e) {
+          throw new SonarException("Invalid line " + lineIndex + " in exclusion manifest " + file.getAbsolutePath() + ": " + line, e);
+        }
+      }
+      return manifest;
+    } finally {
+      LineIterator.closeQuietly(lines);
+    }
+  }
+
+  /**
+   * Merges manifests written by the shards of a scan. They must have been computed with the same patterns, and
+   * each file must be listed in only one of them.
+   */
+  static ExclusionManifest merge(List<File> files) throws IOException {
+    ExclusionManifest merged = null;
+    Map<String, File> manifestByResourceKey = Maps.newHashMap();
+    for (File file : files) {
+      ExclusionManifest manifest = read(file);
+      if (merged == null) {
+        merged = new ExclusionManifest(manifest.getFingerprint());
+      } else if (!merged.getFingerprint().equals(manifest.getFingerprint())) {
+        throw new SonarException("The exclusion manifests " + files.get(0).getAbsolutePath() + " and " + file.getAbsolutePath()
+          + " were computed with different patterns");
+      }
+      for (Map.Entry<String, ScanResult> entry : manifest.getResults().entrySet()) {
+        File previous = manifestByResourceKey.put(entry.getKey(), file);
+        if (previous != null) {
+          throw new SonarException("The resource " + entry.getKey() + " is listed in both exclusion manifests " + previous.getAbsolutePath()
+            + " and " + file.getAbsolutePath());
+        }
+        merged.add(entry.getKey(), entry.getValue());
+      }
+    }
+    if (merged == null) {
+      throw new SonarException("No exclusion manifest to merge");
+    }
+    return merged;
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+
+/**
+ * Regular expression searched in the lines of source files.
+ * <p/>
+ * Most expressions used to switch off violations are plain markers like <code>// SONAR-OFF</code>, or at least contain
+ * a literal that every match must include. Lines which do not contain this literal are discarded with
+ * {@link String#indexOf(String)}, which the JVM executes with wide vector instructions, before the regular expression
+ * engine is involved. Plain literals never use the regular expression engine at all.
+ */
+final class LinePattern {
+
+  private static final String META_CHARS = "\\[](){}.*+?^$|";
+  private static final String SIMPLE_ESCAPES = "dDsSwWbBAGZztnrfae";
+
+  // instances are immutable, so that the modules of a build share the compilation of identical expressions
+  private static final ConcurrentMap<String, LinePattern> COMPILED = new ConcurrentHashMap<String, LinePattern>();
+
+  private final java.util.regex.Pattern regexp;
+  private final String requiredLiteral;
+  private final boolean literal;
+
+  private LinePattern(java.util.regex.Pattern regexp, String requiredLiteral, boolean literal) {
+    this.regexp = regexp;
+    this.requiredLiteral = requiredLiteral;
+    this.literal = literal;
+  }
+
+  static LinePattern compile(String regexp) {
+    LinePattern pattern = COMPILED.get(regexp);
+    if (pattern == null) {
+      pattern = doCompile(regexp);
+      COMPILED.putIfAbsent(regexp, pattern);
+    }
+    return pattern;
+  }
+
+  private static LinePattern doCompile(String regexp) {
+    java.util.regex.Pattern compiled = java.util.regex.Pattern.compile(regexp);
+    if (regexp.length() > 0 && !containsMetaChar(regexp)) {
+      return new LinePattern(compiled, regexp, true);
+    }
+    return new LinePattern(compiled, extractRequiredLiteral(regexp), false);
+  }
+
+  /**
+   * Same result as <code>regexp.matcher(line).find()</code>
+   */
+  boolean find(String line) {
+    if (literal) {
+      return line.indexOf(requiredLiteral) >= 0;
+    }
+    return mayMatch(line) && regexp.matcher(line).find();
+  }
+
+  /**
+   * Fast check: <code>false</code> means that the line can not match.
+   */
+  boolean mayMatch(String line) {
+    return requiredLiteral == null || line.indexOf(requiredLiteral) >= 0;
+  }
+
+  Matcher matcher(String line) {
+    return regexp.matcher(line);
+  }
+
+  int groupCount() {
+    return regexp.matcher("").groupCount();
+  }
+
+  /**
+   * @return the literal that every match contains, or <code>null</code> if none could be determined
+   */
+  String getRequiredLiteral() {
+    return requiredLiteral;
+  }
+
+  boolean isLiteral() {
+    return literal;
+  }
+
+  @Override
+  public String toString() {
+    return regexp.pattern();
+  }
+
+  private static boolean containsMetaChar(String regexp) {
+    for (int i = 0; i < regexp.length(); i++) {
+      if (META_CHARS.indexOf(regexp.charAt(i)) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Conservative extraction of the longest sequence of characters that every match contains. Expressions with
+   * alternatives or groups are not analysed, as a quantifier or an alternative could make any part of them optional.
+   */
+  static String extractRequiredLiteral(String regexp) {
+    if (regexp.indexOf('|') >= 0 || regexp.indexOf('(') >= 0 || regexp.indexOf(')') >= 0) {
+      return null;
+    }
+    LiteralRuns runs = new LiteralRuns();
+    int index = 0;
+    while (index < regexp.length()) {
+      char c = regexp.charAt(index);
+      if (c == '\\') {
+        if (index + 1 >= regexp.length()) {
+          return null;
+        }
+        char escaped = regexp.charAt(index + 1);
+        if (SIMPLE_ESCAPES.indexOf(escaped) >= 0) {
+          // predefined character class, boundary or control character
+          runs.end();
+        } else if (Character.isLetterOrDigit(escaped)) {
+          // escapes followed by a payload (code points, properties, quotations...) are not analysed
+          return null;
+        } else {
+          runs.append(escaped);
+        }
+        index += 2;
+        continue;
+      }
+      if (c == '[') {
+        index = skipCharacterClass(regexp, index);
+        if (index < 0) {
+          return null;
+        }
+        runs.end();
+      } else if (c == '*' || c == '?') {
+        runs.dropLastAndEnd();
+      } else if (c == '{') {
+        runs.dropLastAndEnd();
+        index = regexp.indexOf('}', index);
+        if (index < 0) {
+          return null;
+        }
+      } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+        runs.end();
+      } else {
+        runs.append(c);
+      }
+      index++;
+    }
+    runs.end();
+    return runs.longest;
+  }
+
+  private static int skipCharacterClass(String regexp, int start) {
+    int index = start + 1;
+    if (index < regexp.length() && regexp.charAt(index) == '^') {
+      index++;
+    }
+    if (index < regexp.length() && regexp.charAt(index) == ']') {
+      index++;
+    }
+    while (index < regexp.length()) {
+      char c = regexp.charAt(index);
+      if (c == '\\') {
+        index += 2;
+      } else if (c == '[') {
+        // nested classes are not analysed
+        return -1;
+      } else if (c == ']') {
+        return index;
+      } else {
+        index++;
+      }
+    }
+    return -1;
+  }
+
+  private static final class LiteralRuns {
+    private StringBuilder current = new StringBuilder();
+    private String longest;
+
+    void append(char c) {
+      current.append(c);
+    }
+
+    void dropLastAndEnd() {
+      if (current.length() > 0) {
+        current.setLength(current.length() - 1);
+      }
+      end();
+    }
+
+    void end() {
+      if (current.length() > 0 && (longest == null || current.length() > longest.length())) {
+        longest = current.toString();
+      }
+      current.setLength(0);
+    }
+  }
+}
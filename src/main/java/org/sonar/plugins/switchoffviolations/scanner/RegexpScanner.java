@@ -21,133 +21,321 @@
 package org.sonar.plugins.switchoffviolations.scanner;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.BatchExtension;
 import org.sonar.api.resources.Resource;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.EventLog;
+import org.sonar.plugins.switchoffviolations.ExclusionMetrics;
 import org.sonar.plugins.switchoffviolations.pattern.LineRange;
 import org.sonar.plugins.switchoffviolations.pattern.Pattern;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
+import org.sonar.plugins.switchoffviolations.pattern.RuleMarkerPattern;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
 
 public class RegexpScanner implements BatchExtension {
 
   private static final Logger LOG = LoggerFactory.getLogger(RegexpScanner.class);
 
   private PatternsInitializer patternsInitializer;
-  private List<java.util.regex.Pattern> allFilePatterns;
+  private ScanResultStore resultStore;
+  // null if events are not recorded
+  private EventLog eventLog;
+  // null if metrics are not exposed
+  private ExclusionMetrics metrics;
+  private List<LinePattern> allFilePatterns;
   private List<DoubleRegexpMatcher> blockMatchers;
+  private List<RuleMarkerMatcher> ruleMarkerMatchers;
+  private String fingerprint;
+
+  /**
+   * The state of the scan of a file is kept in a {@link FileScan}, so that several files can be scanned in parallel.
+   */
+  public RegexpScanner(PatternsInitializer patternsInitializer, ScanResultStore resultStore) {
+    this(patternsInitializer, resultStore, null);
+  }
 
-  // fields to be reset at every new scan
-  private DoubleRegexpMatcher currentMatcher;
-  private int fileLength;
-  private List<LineExclusion> lineExclusions;
-  private LineExclusion currentLineExclusion;
+  public RegexpScanner(PatternsInitializer patternsInitializer, ScanResultStore resultStore, EventLog eventLog) {
+    this(patternsInitializer, resultStore, eventLog, null);
+  }
 
-  public RegexpScanner(PatternsInitializer patternsInitializer) {
+  public RegexpScanner(PatternsInitializer patternsInitializer, ScanResultStore resultStore, EventLog eventLog, ExclusionMetrics metrics) {
     this.patternsInitializer = patternsInitializer;
+    this.resultStore = resultStore;
+    this.eventLog = eventLog != null && eventLog.isEnabled() ? eventLog : null;
+    this.metrics = metrics != null && metrics.isEnabled() ? metrics : null;
 
-    lineExclusions = Lists.newArrayList();
     allFilePatterns = Lists.newArrayList();
     blockMatchers = Lists.newArrayList();
+    ruleMarkerMatchers = Lists.newArrayList();
 
     for (Pattern pattern : this.patternsInitializer.getAllFilePatterns()) {
-      allFilePatterns.add(java.util.regex.Pattern.compile(pattern.getAllFileRegexp()));
+      allFilePatterns.add(LinePattern.compile(pattern.getAllFileRegexp()));
     }
     for (Pattern pattern : this.patternsInitializer.getBlockPatterns()) {
       blockMatchers.add(new DoubleRegexpMatcher(
-          java.util.regex.Pattern.compile(pattern.getBeginBlockRegexp()),
-          java.util.regex.Pattern.compile(pattern.getEndBlockRegexp())));
+          LinePattern.compile(pattern.getBeginBlockRegexp()),
+          LinePattern.compile(pattern.getEndBlockRegexp())));
     }
-
-    init();
+    for (RuleMarkerPattern pattern : this.patternsInitializer.getRuleMarkerPatterns()) {
+      ruleMarkerMatchers.add(new RuleMarkerMatcher(pattern));
+    }
+    fingerprint = fingerprint();
   }
 
-  private void init() {
-    currentMatcher = null;
-    fileLength = 0;
-    lineExclusions.clear();
-    currentLineExclusion = null;
+  /**
+   * Registers the exclusions found in the file, and returns them.
+   */
+  public ScanResult scan(Resource<?> resource, File file, Charset sourcesEncoding) throws IOException {
+    return scan(resource, file, sourcesEncoding, true);
   }
 
-  public void scan(Resource<?> resource, File file, Charset sourcesEncoding) throws IOException {
+  /**
+   * Registers the exclusions found in the file, and returns them.
+   *
+   * @param mayHaveCopies false if no other file of the analysis has the same length, so that the content of the file
+   * does not need to be hashed to reuse the exclusions of a copy within the analysis
+   */
+  public ScanResult scan(Resource<?> resource, File file, Charset sourcesEncoding, boolean mayHaveCopies) throws IOException {
     LOG.debug("Scanning {}", resource.getKey());
-    init();
+    long start = System.nanoTime();
+    FileScan scan = new FileScan();
+    String mode = "full";
+    ScanResult result;
+    if (resultStore.isPersistent() || mayHaveCopies) {
+      // the file is read once: its content is hashed, then scanned from memory if no result is known for it
+      byte[] content = FileUtils.readFileToByteArray(file);
+      String key = resultStore.key(content, sourcesEncoding, fingerprint);
+      result = resultStore.get(key);
+      if (result == null) {
+        result = scanLines(scan, IOUtils.lineIterator(new ByteArrayInputStream(content), sourcesEncoding.name()));
+        resultStore.put(key, result);
+      } else {
+        LOG.debug("- Reusing exclusions of a file with the same content");
+        mode = "reused";
+      }
+    } else {
+      // lines are streamed so that only the current one is kept in memory, whatever the size of the file
+      result = scanLines(scan, FileUtils.lineIterator(file, sourcesEncoding.name()));
+    }
+    logResult(result);
+    result.applyTo(resource, patternsInitializer);
+    if (eventLog != null || metrics != null) {
+      long nanos = System.nanoTime() - start;
+      if (eventLog != null) {
+        eventLog.scanned(resource.getKey(), mode, file.length(), scan.linesRead, exclusionCount(result), nanos);
+      }
+      if (metrics != null) {
+        metrics.fileScanned(resource.getKey(), file.length(), nanos, "reused".equals(mode));
+      }
+    }
+    return result;
+  }
 
-    List<String> lines = FileUtils.readLines(file, sourcesEncoding.name());
+  private ScanResult scanLines(FileScan scan, LineIterator lines) {
     int lineIndex = 0;
-    for (String line : lines) {
-      lineIndex++;
-      if (line.trim().length() == 0) {
-        continue;
-      }
+    try {
+      while (lines.hasNext()) {
+        String line = lines.nextLine();
+        lineIndex++;
+        scan.linesRead = lineIndex;
+        if (line.trim().length() == 0) {
+          continue;
+        }
 
-      // first check the single regexp patterns that can be used to totally exclude a file
-      for (java.util.regex.Pattern pattern : allFilePatterns) {
-        if (pattern.matcher(line).find()) {
-          patternsInitializer.addPatternToExcludeResource(resource);
+        // first check the single regexp patterns that can be used to totally exclude a file
+        if (checkAllFilePatterns(line)) {
           // nothing more to do on this file
-          LOG.debug("- Exclusion pattern '{}': every violation in this file will be ignored.", pattern);
-          return;
+          return ScanResult.wholeFile();
         }
+
+        // then check the double regexps if we're still here
+        scan.checkDoubleRegexps(line, lineIndex);
+
+        // and finally the markers that switch off only some rules
+        scan.checkRuleMarkers(line, lineIndex);
       }
+    } finally {
+      LineIterator.closeQuietly(lines);
+    }
+
+    // now create the new line-based exclusions for this file
+    return scan.endOfFile(lineIndex);
+  }
 
-      // then check the double regexps if we're still here
-      checkDoubleRegexps(line, lineIndex);
+  /**
+   * Only checks the first lines of the file against the single regexp patterns. Block patterns and rule markers
+   * are ignored, as their extent can not be known without reading the whole file.
+   */
+  public ScanResult scanHeader(Resource<?> resource, File file, Charset sourcesEncoding, int maxLines) throws IOException {
+    LOG.debug("Scanning header of {}", resource.getKey());
+    long start = System.nanoTime();
+    ScanResult result = ScanResult.NO_EXCLUSION;
+    LineIterator lines = FileUtils.lineIterator(file, sourcesEncoding.name());
+    int lineIndex = 0;
+    try {
+      while (lineIndex < maxLines && lines.hasNext()) {
+        String line = lines.nextLine();
+        lineIndex++;
+        if (line.trim().length() > 0 && checkAllFilePatterns(line)) {
+          result = ScanResult.wholeFile();
+          break;
+        }
+      }
+    } finally {
+      LineIterator.closeQuietly(lines);
+    }
+    logResult(result);
+    result.applyTo(resource, patternsInitializer);
+    if (eventLog != null || metrics != null) {
+      long nanos = System.nanoTime() - start;
+      if (eventLog != null) {
+        eventLog.scanned(resource.getKey(), "header", file.length(), lineIndex, exclusionCount(result), nanos);
+      }
+      if (metrics != null) {
+        // the size of the lines read is not known
+        metrics.fileScanned(resource.getKey(), 0L, nanos, false);
+      }
+    }
+    return result;
+  }
+
+  private static int exclusionCount(ScanResult result) {
+    if (result.isWholeFile()) {
+      return 1;
     }
+    int count = result.getLineRanges().size();
+    for (String ruleKey : result.getRuleExclusions().getRuleKeys()) {
+      count += result.getRuleExclusions().getLineRanges(ruleKey).size();
+    }
+    return count;
+  }
 
-    // now create the new line-based pattern for this file if there are exclusions
-    fileLength = lineIndex;
-    if (!lineExclusions.isEmpty()) {
-      Set<LineRange> lineRanges = convertLineExclusionsToLineRanges();
-      LOG.debug("- Line exclusions found: {}", lineRanges);
-      patternsInitializer.addPatternToExcludeLines(resource, lineRanges);
+  private boolean checkAllFilePatterns(String line) {
+    for (LinePattern pattern : allFilePatterns) {
+      if (pattern.find(line)) {
+        LOG.debug("- Exclusion pattern '{}' found", pattern);
+        return true;
+      }
     }
+    return false;
   }
 
-  private Set<LineRange> convertLineExclusionsToLineRanges() {
-    Set<LineRange> lineRanges = Sets.newHashSet();
-    for (LineExclusion lineExclusion : lineExclusions) {
-      lineRanges.add(lineExclusion.toLineRange());
+  private static void logResult(ScanResult result) {
+    if (result.isWholeFile()) {
+      LOG.debug("- Every violation in this file will be ignored.");
+    }
+    if (!result.getLineRanges().isEmpty()) {
+      LOG.debug("- Line exclusions found: {}", result.getLineRanges());
+    }
+    if (!result.getRuleExclusions().isEmpty()) {
+      LOG.debug("- Rule exclusions found: {}", result.getRuleExclusions());
     }
-    return lineRanges;
   }
 
-  private void checkDoubleRegexps(String line, int lineIndex) {
-    if (currentMatcher == null) {
-      for (DoubleRegexpMatcher matcher : blockMatchers) {
-        if (matcher.matchesFirstPattern(line)) {
-          startExclusion(lineIndex);
-          currentMatcher = matcher;
-          break;
+  /**
+   * Identifies the configuration of the scanner: two scans of the same content with the same fingerprint give the same result.
+   */
+  String getFingerprint() {
+    return fingerprint;
+  }
+
+  private String fingerprint() {
+    StringBuilder sb = new StringBuilder();
+    for (LinePattern pattern : allFilePatterns) {
+      sb.append("file:").append(pattern).append('\n');
+    }
+    for (DoubleRegexpMatcher matcher : blockMatchers) {
+      sb.append("block:").append(matcher.firstPattern).append('\n').append(matcher.secondPattern).append('\n');
+    }
+    for (RuleMarkerMatcher matcher : ruleMarkerMatchers) {
+      sb.append("marker:").append(matcher.markerPattern).append('\n').append(matcher.endMarkerPattern).append('\n').append(matcher.ruleKeyGroup).append('\n');
+    }
+    return DigestUtils.shaHex(sb.toString());
+  }
+
+  /**
+   * Exclusions found in the file being scanned
+   */
+  private final class FileScan {
+
+    private DoubleRegexpMatcher currentMatcher;
+    private final List<LineExclusion> lineExclusions = Lists.newArrayList();
+    private LineExclusion currentLineExclusion;
+    private final RuleLineExclusions ruleExclusions = new RuleLineExclusions();
+    // rule key -> first line of the block, for blocks not ended yet, by rule marker matcher
+    private final List<Map<String, Integer>> openBlocks = Lists.newArrayList();
+    private int linesRead;
+
+    FileScan() {
+      for (int i = 0; i < ruleMarkerMatchers.size(); i++) {
+        openBlocks.add(Maps.<String, Integer>newLinkedHashMap());
+      }
+    }
+
+    void checkDoubleRegexps(String line, int lineIndex) {
+      if (currentMatcher == null) {
+        for (DoubleRegexpMatcher matcher : blockMatchers) {
+          if (matcher.matchesFirstPattern(line)) {
+            startExclusion(lineIndex);
+            currentMatcher = matcher;
+            break;
+          }
+        }
+      } else {
+        if (currentMatcher.matchesSecondPattern(line)) {
+          endExclusion(lineIndex);
+          currentMatcher = null;
         }
       }
-    } else {
-      if (currentMatcher.matchesSecondPattern(line)) {
-        endExclusion(lineIndex);
-        currentMatcher = null;
+    }
+
+    void checkRuleMarkers(String line, int lineIndex) {
+      for (int i = 0; i < ruleMarkerMatchers.size(); i++) {
+        ruleMarkerMatchers.get(i).check(line, lineIndex, openBlocks.get(i), ruleExclusions);
       }
     }
-  }
 
-  private void startExclusion(int lineIndex) {
-    currentLineExclusion = new LineExclusion(lineIndex);
-    lineExclusions.add(currentLineExclusion);
-  }
+    ScanResult endOfFile(int fileLength) {
+      for (int i = 0; i < ruleMarkerMatchers.size(); i++) {
+        RuleMarkerMatcher.closeBlocks(fileLength, openBlocks.get(i), ruleExclusions);
+      }
+      Set<LineRange> lineRanges = Sets.newHashSet();
+      for (LineExclusion lineExclusion : lineExclusions) {
+        lineRanges.add(lineExclusion.toLineRange(fileLength));
+      }
+      return ScanResult.of(lineRanges, ruleExclusions);
+    }
+
+    private void startExclusion(int lineIndex) {
+      currentLineExclusion = new LineExclusion(lineIndex);
+      lineExclusions.add(currentLineExclusion);
+    }
 
-  private void endExclusion(int lineIndex) {
-    currentLineExclusion.setEnd(lineIndex);
-    currentLineExclusion = null;
+    private void endExclusion(int lineIndex) {
+      currentLineExclusion.setEnd(lineIndex);
+      currentLineExclusion = null;
+    }
   }
 
-  private class LineExclusion {
+  private static class LineExclusion {
 
     private int start;
     private int end;
@@ -161,7 +349,7 @@ public class RegexpScanner implements BatchExtension {
       this.end = end;
     }
 
-    public LineRange toLineRange() {
+    public LineRange toLineRange(int fileLength) {
       return new LineRange(start, (end == -1 ? fileLength : end));
     }
 
@@ -169,20 +357,78 @@ public class RegexpScanner implements BatchExtension {
 
   private static class DoubleRegexpMatcher {
 
-    private java.util.regex.Pattern firstPattern;
-    private java.util.regex.Pattern secondPattern;
+    private LinePattern firstPattern;
+    private LinePattern secondPattern;
 
-    DoubleRegexpMatcher(java.util.regex.Pattern firstPattern, java.util.regex.Pattern secondPattern) {
+    DoubleRegexpMatcher(LinePattern firstPattern, LinePattern secondPattern) {
       this.firstPattern = firstPattern;
       this.secondPattern = secondPattern;
     }
 
     boolean matchesFirstPattern(String line) {
-      return firstPattern.matcher(line).find();
+      return firstPattern.find(line);
     }
 
     boolean matchesSecondPattern(String line) {
-      return secondPattern.matcher(line).find();
+      return secondPattern.find(line);
+    }
+
+  }
+
+  private static class RuleMarkerMatcher {
+
+    private static final String INVALID_RULE_KEY_CHARS = "*;\t";
+
+    private LinePattern markerPattern;
+    private LinePattern endMarkerPattern;
+    private int ruleKeyGroup;
+
+    RuleMarkerMatcher(RuleMarkerPattern pattern) {
+      markerPattern = LinePattern.compile(pattern.getMarkerRegexp());
+      if (StringUtils.isNotBlank(pattern.getEndMarkerRegexp())) {
+        endMarkerPattern = LinePattern.compile(pattern.getEndMarkerRegexp());
+      }
+      ruleKeyGroup = pattern.getRuleKeyGroup();
+      if (ruleKeyGroup < 0 || ruleKeyGroup > markerPattern.groupCount()) {
+        throw new SonarException("The regular expression '" + markerPattern + "' has no group " + ruleKeyGroup + " to capture rule keys");
+      }
+    }
+
+    void check(String line, int lineIndex, Map<String, Integer> openBlocks, RuleLineExclusions ruleExclusions) {
+      if (!openBlocks.isEmpty() && endMarkerPattern.find(line)) {
+        closeBlocks(lineIndex, openBlocks, ruleExclusions);
+        return;
+      }
+      if (!markerPattern.mayMatch(line)) {
+        return;
+      }
+      Matcher matcher = markerPattern.matcher(line);
+      while (matcher.find()) {
+        for (String ruleKey : StringUtils.split(StringUtils.defaultString(matcher.group(ruleKeyGroup)), ',')) {
+          String trimmedKey = ruleKey.trim();
+          if (trimmedKey.length() == 0) {
+            continue;
+          }
+          if (StringUtils.containsAny(trimmedKey, INVALID_RULE_KEY_CHARS)) {
+            // such keys would be read back from stored results as other exclusions, for example of all the rules
+            LOG.warn("Rule key '{}' captured by the marker '{}' on line {} is ignored, as it contains one of '*', ';' or a tab",
+                new Object[] {trimmedKey, markerPattern, lineIndex});
+            continue;
+          }
+          if (endMarkerPattern == null) {
+            ruleExclusions.add(trimmedKey, new LineRange(lineIndex, lineIndex));
+          } else if (!openBlocks.containsKey(trimmedKey)) {
+            openBlocks.put(trimmedKey, lineIndex);
+          }
+        }
+      }
+    }
+
+    static void closeBlocks(int lineIndex, Map<String, Integer> openBlocks, RuleLineExclusions ruleExclusions) {
+      for (Map.Entry<String, Integer> openBlock : openBlocks.entrySet()) {
+        ruleExclusions.add(openBlock.getKey(), new LineRange(openBlock.getValue(), lineIndex));
+      }
+      openBlocks.clear();
     }
 
   }
@@ -0,0 +1,135 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Limits the time and the amount of bytes spent by the {@link SourceScanner} on a project. Once a limit is reached,
+ * the remaining files are either skipped or only checked on their first lines, depending on the {@link Policy}.
+ */
+class ScanBudget {
+
+  enum Policy {
+    /**
+     * remaining files are not scanned at all
+     */
+    SKIP,
+    /**
+     * only the first lines of the remaining files are checked against the all-file patterns
+     */
+    HEADER
+  }
+
+  static final int DEFAULT_HEADER_LINES = 50;
+
+  private final long timeBudgetMillis;
+  private final long bytesBudget;
+  private final Policy policy;
+  private final int headerLines;
+
+  private final long startMillis;
+  private long bytesRead;
+  private String exceededBudget;
+  private final List<String> notFullyScannedFiles = Lists.newArrayList();
+
+  ScanBudget(long timeBudgetMillis, long bytesBudget, Policy policy, int headerLines) {
+    this.timeBudgetMillis = timeBudgetMillis;
+    this.bytesBudget = bytesBudget;
+    this.policy = policy;
+    this.headerLines = headerLines;
+    this.startMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts a new budget from the settings. Zero or negative limits mean no limit.
+   */
+  static ScanBudget start(Settings settings) {
+    long timeBudgetSeconds = settings.getLong(Constants.SCAN_TIME_BUDGET_KEY);
+    long bytesBudget = settings.getLong(Constants.SCAN_BYTES_BUDGET_KEY);
+    int headerLines = settings.getInt(Constants.SCAN_HEADER_LINES_KEY);
+    if (headerLines <= 0) {
+      headerLines = DEFAULT_HEADER_LINES;
+    }
+    return new ScanBudget(timeBudgetSeconds * 1000L, bytesBudget, decodePolicy(settings.getString(Constants.SCAN_BUDGET_POLICY_KEY)), headerLines);
+  }
+
+  private static Policy decodePolicy(String policy) {
+    if (StringUtils.isBlank(policy)) {
+      return Policy.SKIP;
+    }
+    try {
+      return Policy.valueOf(policy.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new SonarException("Invalid value for " + Constants.SCAN_BUDGET_POLICY_KEY + ": " + policy + ". Expected 'skip' or 'header'.", e);
+    }
+  }
+
+  Policy getPolicy() {
+    return policy;
+  }
+
+  int getHeaderLines() {
+    return headerLines;
+  }
+
+  void consume(long bytes) {
+    bytesRead += bytes;
+  }
+
+  long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Once exceeded, a budget remains exceeded so that the files are scanned in a predictable way.
+   */
+  boolean isExceeded() {
+    if (exceededBudget == null) {
+      if (timeBudgetMillis > 0 && System.currentTimeMillis() - startMillis >= timeBudgetMillis) {
+        exceededBudget = "time budget of " + timeBudgetMillis + " ms";
+      } else if (bytesBudget > 0 && bytesRead >= bytesBudget) {
+        exceededBudget = "budget of " + bytesBudget + " bytes";
+      }
+    }
+    return exceededBudget != null;
+  }
+
+  String getExceededBudget() {
+    return exceededBudget;
+  }
+
+  void notFullyScanned(String path) {
+    notFullyScannedFiles.add(path);
+  }
+
+  List<String> getNotFullyScannedFiles() {
+    return Collections.unmodifiableList(notFullyScannedFiles);
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.pattern.LineRange;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exclusions found by the {@link RegexpScanner} in a source file. It does not depend on the resource, so that it can be
+ * stored and reused for any file with the same content.
+ * <p/>
+ * Encoded form: one line per exclusion made of a rule key and a range of lines, separated by a semicolon, as in the
+ * configuration of multi-criteria patterns. <code>*</code> stands for every rule, or for the whole file.
+ */
+public final class ScanResult {
+
+  public static final ScanResult NO_EXCLUSION = new ScanResult(false, Collections.<LineRange>emptySet(), new RuleLineExclusions());
+
+  private static final String ANY = "*";
+  private static final char SEPARATOR = ';';
+
+  private final boolean wholeFile;
+  private final Set<LineRange> lineRanges;
+  private final RuleLineExclusions ruleExclusions;
+
+  private ScanResult(boolean wholeFile, Set<LineRange> lineRanges, RuleLineExclusions ruleExclusions) {
+    this.wholeFile = wholeFile;
+    this.lineRanges = lineRanges;
+    this.ruleExclusions = ruleExclusions;
+  }
+
+  static ScanResult wholeFile() {
+    return new ScanResult(true, Collections.<LineRange>emptySet(), new RuleLineExclusions());
+  }
+
+  static ScanResult of(Set<LineRange> lineRanges, RuleLineExclusions ruleExclusions) {
+    if (lineRanges.isEmpty() && ruleExclusions.isEmpty()) {
+      return NO_EXCLUSION;
+    }
+    return new ScanResult(false, lineRanges, ruleExclusions);
+  }
+
+  public boolean isWholeFile() {
+    return wholeFile;
+  }
+
+  public boolean isEmpty() {
+    return !wholeFile && lineRanges.isEmpty() && ruleExclusions.isEmpty();
+  }
+
+  public Set<LineRange> getLineRanges() {
+    return lineRanges;
+  }
+
+  public RuleLineExclusions getRuleExclusions() {
+    return ruleExclusions;
+  }
+
+  /**
+   * Registers the exclusions of the file in the {@link PatternsInitializer}
+   */
+  public void applyTo(Resource<?> resource, PatternsInitializer patternsInitializer) {
+    if (wholeFile) {
+      patternsInitializer.addPatternToExcludeResource(resource);
+      return;
+    }
+    if (!lineRanges.isEmpty()) {
+      patternsInitializer.addPatternToExcludeLines(resource, lineRanges);
+    }
+    if (!ruleExclusions.isEmpty()) {
+      patternsInitializer.addRuleExclusions(resource, ruleExclusions);
+    }
+  }
+
+  public List<String> encode() {
+    List<String> lines = Lists.newArrayList();
+    if (wholeFile) {
+      lines.add(ANY + SEPARATOR + ANY);
+    }
+    if (!lineRanges.isEmpty()) {
+      lines.add(ANY + SEPARATOR + encodeLineRanges(lineRanges));
+    }
+    for (String ruleKey : ruleExclusions.getRuleKeys()) {
+      lines.add(ruleKey + SEPARATOR + encodeLineRanges(ruleExclusions.getLineRanges(ruleKey)));
+    }
+    return lines;
+  }
+
+  public static ScanResult decode(List<String> lines) {
+    boolean wholeFile = false;
+    Set<LineRange> lineRanges = Sets.newLinkedHashSet();
+    RuleLineExclusions ruleExclusions = new RuleLineExclusions();
+    for (String line : lines) {
+      String ruleKey = StringUtils.substringBefore(line, String.valueOf(SEPARATOR));
+      String range = StringUtils.substringAfter(line, String.valueOf(SEPARATOR));
+      if (StringUtils.isBlank(ruleKey) || StringUtils.isBlank(range)) {
+        throw new SonarException("Invalid exclusion: " + line);
+      }
+      if (ANY.equals(range)) {
+        wholeFile = true;
+      } else if (ANY.equals(ruleKey)) {
+        lineRanges.addAll(decodeLineRanges(range));
+      } else {
+        for (LineRange lineRange : decodeLineRanges(range)) {
+          ruleExclusions.add(ruleKey, lineRange);
+        }
+      }
+    }
+    return wholeFile ? wholeFile() : of(lineRanges, ruleExclusions);
+  }
+
+  private static String encodeLineRanges(Set<LineRange> lineRanges) {
+    StringBuilder sb = new StringBuilder().append('[');
+    for (Iterator<LineRange> it = lineRanges.iterator(); it.hasNext();) {
+      LineRange lineRange = it.next();
+      sb.append(lineRange.getFrom()).append('-').append(lineRange.getTo());
+      if (it.hasNext()) {
+        sb.append(',');
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+  private static Set<LineRange> decodeLineRanges(String field) {
+    if (!field.startsWith("[") || !field.endsWith("]")) {
+      throw new SonarException("Invalid range of lines: " + field);
+    }
+    Set<LineRange> lineRanges = Sets.newLinkedHashSet();
+    try {
+      for (String part : StringUtils.split(field.substring(1, field.length() - 1), ',')) {
+        String from = StringUtils.substringBefore(part, "-");
+        String to = part.indexOf('-') < 0 ? from : StringUtils.substringAfter(part, "-");
+        lineRanges.add(new LineRange(Integer.parseInt(from.trim()), Integer.parseInt(to.trim())));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new SonarException("Invalid range of lines: " + field, e);
+    }
+    return lineRanges;
+  }
+
+  @Override
+  public String toString() {
+    return encode().toString();
+  }
+}
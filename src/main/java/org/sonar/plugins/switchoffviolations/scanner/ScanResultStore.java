@@ -0,0 +1,247 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store of {@link ScanResult}s, keyed by the hash of the content of a file and by the fingerprint of
+ * the patterns used to scan it.
+ * <p/>
+ * Results are kept in memory for the duration of the analysis, so that duplicated files are scanned once. If a
+ * directory is configured, they are also stored on disk, where they can be shared by the analyses of several branches
+ * or by several build agents. Entries are written in a temporary file then renamed, so that concurrent processes never
+ * read partial entries. Unreadable entries are considered as missing.
+ */
+public class ScanResultStore implements BatchExtension {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScanResultStore.class);
+
+  static final String HEADER = "# switchoffviolations scan result v1";
+  static final long DEFAULT_MAX_SIZE_MB = 100;
+  private static final long MEGABYTE = 1024L * 1024L;
+  private static final String UTF_8 = "UTF-8";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final long TEMP_FILE_EXPIRATION_MS = 60L * 60L * 1000L;
+
+  private final File directory;
+  private final long maxSize;
+  // files may be scanned in parallel
+  private final Map<String, ScanResult> resultsOfThisRun = new ConcurrentHashMap<String, ScanResult>();
+
+  public ScanResultStore(Settings settings, ProjectFileSystem fileSystem) {
+    String path = settings.getString(Constants.SCAN_CACHE_PATH_KEY);
+    if (StringUtils.isBlank(path)) {
+      directory = null;
+    } else {
+      File dir = new File(path);
+      directory = dir.isAbsolute() ? dir : new File(fileSystem.getBasedir(), path);
+    }
+    long maxSizeMb = settings.getLong(Constants.SCAN_CACHE_MAX_SIZE_KEY);
+    maxSize = (maxSizeMb > 0 ? maxSizeMb : DEFAULT_MAX_SIZE_MB) * MEGABYTE;
+  }
+
+  /**
+   * @return true if the results are also stored in a directory, where they outlive the analysis
+   */
+  public boolean isPersistent() {
+    return directory != null;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Hash of the content of the file, of its encoding and of the fingerprint of the patterns.
+   */
+  String key(File file, Charset sourcesEncoding, String fingerprint) throws IOException {
+    return key(FileUtils.readFileToByteArray(file), sourcesEncoding, fingerprint);
+  }
+
+  /**
+   * Hash of the content of a file, of its encoding and of the fingerprint of the patterns.
+   */
+  String key(byte[] content, Charset sourcesEncoding, String fingerprint) {
+    MessageDigest digest = newDigest();
+    digest.update(content);
+    digest.update(utf8(sourcesEncoding.name() + '\n' + fingerprint));
+    return new String(Hex.encodeHex(digest.digest()));
+  }
+
+  /**
+   * @return <code>null</code> if no result is known for this key
+   */
+  ScanResult get(String key) {
+    ScanResult result = resultsOfThisRun.get(key);
+    if (result == null && isPersistent()) {
+      result = read(entryFile(key));
+      if (result != null) {
+        resultsOfThisRun.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  void put(String key, ScanResult result) {
+    resultsOfThisRun.put(key, result);
+    if (isPersistent()) {
+      write(entryFile(key), result);
+    }
+  }
+
+  /**
+   * Releases the results kept in memory once all the files are scanned. Stored results are kept.
+   */
+  void releaseResultsOfThisRun() {
+    resultsOfThisRun.clear();
+  }
+
+  private File entryFile(String key) {
+    return new File(new File(directory, key.substring(0, 2)), key);
+  }
+
+  private static ScanResult read(File entry) {
+    if (!entry.isFile()) {
+      return null;
+    }
+    try {
+      List<String> lines = FileUtils.readLines(entry, UTF_8);
+      if (lines.isEmpty() || !HEADER.equals(lines.get(0))) {
+        return null;
+      }
+      ScanResult result = ScanResult.decode(lines.subList(1, lines.size()));
+      // least recently used entries are evicted first
+      entry.setLastModified(System.currentTimeMillis());
+      return result;
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + entry.getAbsolutePath(), e);
+      return null;
+    } catch (SonarException e) {
+      LOG.debug("Invalid scan result: " + entry.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+  private static void write(File entry, ScanResult result) {
+    File temp = null;
+    try {
+      File parent = entry.getParentFile();
+      FileUtils.forceMkdir(parent);
+      temp = File.createTempFile(entry.getName(), TEMP_SUFFIX, parent);
+      List<String> lines = Lists.newArrayList(HEADER);
+      lines.addAll(result.encode());
+      FileUtils.writeLines(temp, UTF_8, lines);
+      if (!temp.renameTo(entry)) {
+        // another process stored the same entry in the meantime
+        FileUtils.deleteQuietly(temp);
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to store scan result in " + entry.getAbsolutePath() + ": " + e.getMessage());
+      FileUtils.deleteQuietly(temp);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the size of the directory is under the limit.
+   */
+  public void evict() {
+    if (!isPersistent() || !directory.isDirectory()) {
+      return;
+    }
+    // modification dates are read once, as other processes may touch the entries while they are sorted
+    final Map<File, Long> lastModifiedByEntry = Maps.newHashMap();
+    long size = 0;
+    long now = System.currentTimeMillis();
+    for (File file : FileUtils.listFiles(directory, null, true)) {
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        // left by an interrupted process
+        if (now - file.lastModified() > TEMP_FILE_EXPIRATION_MS) {
+          FileUtils.deleteQuietly(file);
+        }
+      } else {
+        lastModifiedByEntry.put(file, file.lastModified());
+        size += file.length();
+      }
+    }
+    if (size <= maxSize) {
+      return;
+    }
+    List<File> entries = Lists.newArrayList(lastModifiedByEntry.keySet());
+    Collections.sort(entries, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        return lastModifiedByEntry.get(f1).compareTo(lastModifiedByEntry.get(f2));
+      }
+    });
+    int evicted = 0;
+    for (File entry : entries) {
+      if (size <= maxSize) {
+        break;
+      }
+      long length = entry.length();
+      if (entry.delete()) {
+        size -= length;
+        evicted++;
+      }
+    }
+    LOG.info("{} scan results evicted from {}", evicted, directory.getAbsolutePath());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not supported", e);
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes(UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+/**
+ * Share of the source files scanned by an analysis when the scan is split over several machines. Files are assigned
+ * to shards by a hash of their relative path, so that every machine computes the same assignment.
+ */
+final class ScanShard {
+
+  private final int index;
+  private final int count;
+
+  /**
+   * @param index the shard, from 1 to count
+   * @param count the number of shards
+   */
+  ScanShard(int index, int count) {
+    if (count < 1 || index < 1 || index > count) {
+      throw new SonarException("Invalid scan shard " + index + " of " + count + ": the shard index must be between 1 and the number of shards");
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * @return the shard configured in the settings, or null if the scan is not sharded
+   */
+  static ScanShard fromSettings(Settings settings) {
+    if (!settings.hasKey(Constants.SCAN_SHARD_COUNT_KEY)) {
+      return null;
+    }
+    if (StringUtils.isBlank(settings.getString(Constants.SCAN_SHARD_INDEX_KEY))) {
+      throw new SonarException("The property " + Constants.SCAN_SHARD_INDEX_KEY + " is required when " + Constants.SCAN_SHARD_COUNT_KEY + " is set");
+    }
+    return new ScanShard(settings.getInt(Constants.SCAN_SHARD_INDEX_KEY), settings.getInt(Constants.SCAN_SHARD_COUNT_KEY));
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  boolean contains(String relativePath) {
+    // separators are normalized so that Windows and Unix machines agree on the assignment
+    String path = StringUtils.replaceChars(relativePath, '\\', '/');
+    return (path.hashCode() & Integer.MAX_VALUE) % count == index - 1;
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.PostJob;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Project;
+import org.sonar.plugins.switchoffviolations.Constants;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+
+/**
+ * Releases the exclusions found in the source files once the decorators, which filter the violations, are executed,
+ * so that they are not retained until the end of the analysis of the module. An estimate of the memory they retained
+ * is reported with the exclusion report.
+ */
+public final class ScanStateRelease implements PostJob {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScanStateRelease.class);
+
+  private final Settings settings;
+  private final PatternsInitializer patternsInitializer;
+
+  public ScanStateRelease(Settings settings, PatternsInitializer patternsInitializer) {
+    this.settings = settings;
+    this.patternsInitializer = patternsInitializer;
+  }
+
+  public void executeOn(Project project, SensorContext context) {
+    if (settings.getBoolean(Constants.EXCLUSION_REPORT_KEY)) {
+      int files = patternsInitializer.getScannedFileCount();
+      long bytes = patternsInitializer.estimateRetainedBytes();
+      LOG.info("Exclusions of {} source files retained an estimated {} bytes of heap, {} bytes per file",
+          new Object[] {files, bytes, files == 0 ? 0 : bytes / files});
+    }
+    patternsInitializer.releaseScanState();
+  }
+
+  @Override
+  public String toString() {
+    return "Switch Off Plugin - Scan State Release";
+  }
+}
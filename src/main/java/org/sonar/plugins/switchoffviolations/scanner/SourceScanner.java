@@ -20,9 +20,15 @@
 
 package org.sonar.plugins.switchoffviolations.scanner;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.Phase;
 import org.sonar.api.batch.Sensor;
 import org.sonar.api.batch.SensorContext;
+import org.sonar.api.config.Settings;
 import org.sonar.api.resources.InputFile;
 import org.sonar.api.resources.Java;
 import org.sonar.api.resources.JavaFile;
@@ -30,57 +36,249 @@ import org.sonar.api.resources.Project;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.resources.Resource;
 import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+import org.sonar.plugins.switchoffviolations.ExclusionMetrics;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Phase(name = Phase.Name.PRE)
 public final class SourceScanner implements Sensor {
 
+  private static final Logger LOG = LoggerFactory.getLogger(SourceScanner.class);
+
   private final RegexpScanner regexpScanner;
   private final PatternsInitializer patternsInitializer;
   private final ProjectFileSystem fileSystem;
+  private final Settings settings;
+  private final ScanResultStore resultStore;
+  // null if metrics are not exposed
+  private final ExclusionMetrics metrics;
+
+  public SourceScanner(RegexpScanner regexpScanner, PatternsInitializer patternsInitializer, ProjectFileSystem fileSystem, Settings settings,
+      ScanResultStore resultStore) {
+    this(regexpScanner, patternsInitializer, fileSystem, settings, resultStore, null);
+  }
 
-  public SourceScanner(RegexpScanner regexpScanner, PatternsInitializer patternsInitializer, ProjectFileSystem fileSystem) {
+  public SourceScanner(RegexpScanner regexpScanner, PatternsInitializer patternsInitializer, ProjectFileSystem fileSystem, Settings settings,
+      ScanResultStore resultStore, ExclusionMetrics metrics) {
+    this.metrics = metrics != null && metrics.isEnabled() ? metrics : null;
     this.regexpScanner = regexpScanner;
     this.patternsInitializer = patternsInitializer;
     this.fileSystem = fileSystem;
+    this.settings = settings;
+    this.resultStore = resultStore;
   }
 
   public boolean shouldExecuteOnProject(Project project) {
-    return patternsInitializer.getAllFilePatterns().size() > 0 || patternsInitializer.getBlockPatterns().size() > 0;
+    return !patternsInitializer.getMulticriteriaPatterns().isEmpty() || shouldScan();
+  }
+
+  private boolean shouldScan() {
+    return patternsInitializer.getAllFilePatterns().size() > 0 || patternsInitializer.getBlockPatterns().size() > 0
+      || patternsInitializer.getRuleMarkerPatterns().size() > 0 || StringUtils.isNotBlank(settings.getString(Constants.MANIFEST_IMPORT_KEY));
   }
 
   /**
    * {@inheritDoc}
    */
   public void analyse(Project project, SensorContext context) {
-    parseDirs(project, false);
-    parseDirs(project, true);
+    // listed once, as listing the files of a big module walks its source directories
+    List<InputFile> mainFiles = fileSystem.mainFiles(project.getLanguageKey());
+    List<InputFile> testFiles = fileSystem.testFiles(project.getLanguageKey());
+    if (!patternsInitializer.getMulticriteriaPatterns().isEmpty()) {
+      computeApplicablePatterns(project, mainFiles, testFiles);
+      if (!shouldScan()) {
+        // only multicriteria patterns are defined
+        return;
+      }
+    }
+    if (StringUtils.isNotBlank(settings.getString(Constants.MANIFEST_IMPORT_KEY))) {
+      List<File> manifestsToImport = Lists.newArrayList();
+      for (String path : settings.getStringArray(Constants.MANIFEST_IMPORT_KEY)) {
+        manifestsToImport.add(fileSystem.resolvePath(path));
+      }
+      importManifests(project, mainFiles, testFiles, manifestsToImport);
+      return;
+    }
+
+    String manifestToExport = settings.getString(Constants.MANIFEST_EXPORT_KEY);
+    ScanShard shard = ScanShard.fromSettings(settings);
+    if (shard != null) {
+      if (StringUtils.isBlank(manifestToExport)) {
+        throw new SonarException("The property " + Constants.MANIFEST_EXPORT_KEY + " is required to scan a shard of the source files");
+      }
+      LOG.info("Scanning shard {} of the source files", shard);
+    }
+    ExclusionManifest manifest = StringUtils.isNotBlank(manifestToExport) ? new ExclusionManifest(regexpScanner.getFingerprint()) : null;
+    ScanBudget budget = ScanBudget.start(settings);
+    if (metrics != null) {
+      metrics.scanStarted(mainFiles.size() + testFiles.size());
+    }
+    Set<Long> sharedLengths = sharedLengths(mainFiles, testFiles);
+    parseDirs(project, mainFiles, false, sharedLengths, shard, budget, manifest);
+    parseDirs(project, testFiles, true, sharedLengths, shard, budget, manifest);
+    reportBudget(budget);
+    resultStore.evict();
+    resultStore.releaseResultsOfThisRun();
+    if (manifest != null) {
+      exportManifest(manifest, fileSystem.resolvePath(manifestToExport));
+    }
+  }
+
+  /**
+   * @return the lengths of the files which have the same length as another file, and may then be copies of it
+   */
+  private static Set<Long> sharedLengths(List<InputFile> mainFiles, List<InputFile> testFiles) {
+    Set<Long> lengths = Sets.newHashSet();
+    Set<Long> sharedLengths = Sets.newHashSet();
+    for (boolean isTest : new boolean[] {false, true}) {
+      for (InputFile inputFile : isTest ? testFiles : mainFiles) {
+        Long length = inputFile.getFile().length();
+        if (!lengths.add(length)) {
+          sharedLengths.add(length);
+        }
+      }
+    }
+    return sharedLengths;
   }
 
-  protected void parseDirs(Project project, boolean isTest) {
+  protected void parseDirs(Project project, List<InputFile> files, boolean isTest, Set<Long> sharedLengths, ScanShard shard, ScanBudget budget,
+      ExclusionManifest manifest) {
     Charset sourcesEncoding = fileSystem.getSourceCharset();
 
-    List<InputFile> files;
-    if (isTest) {
-      files = fileSystem.testFiles(project.getLanguageKey());
+    for (InputFile inputFile : files) {
+      if (shard == null || shard.contains(inputFile.getRelativePath())) {
+        parseFile(project, isTest, inputFile, sourcesEncoding, sharedLengths, budget, manifest);
+      }
+      if (metrics != null) {
+        metrics.fileProcessed();
+      }
+    }
+  }
+
+  private void parseFile(Project project, boolean isTest, InputFile inputFile, Charset sourcesEncoding, Set<Long> sharedLengths, ScanBudget budget,
+      ExclusionManifest manifest) {
+    Resource<?> resource = defineResource(inputFile, project, isTest);
+    if (resource != null) {
+      File file = inputFile.getFile();
+      try {
+        scan(resource, inputFile, sourcesEncoding, sharedLengths.contains(file.length()), budget, manifest);
+      } catch (Exception e) {
+        throw new SonarException("Unable to read the source file : '" + file.getAbsolutePath() + "' with the charset : '"
+          + sourcesEncoding.name() + "'.", e);
+      }
+    }
+  }
+
+  /**
+   * The resource keys of the multicriteria patterns are matched once per source file, so that the violations of the
+   * files which no pattern concerns are not matched at all.
+   */
+  private void computeApplicablePatterns(Project project, List<InputFile> mainFiles, List<InputFile> testFiles) {
+    int concernedFiles = 0;
+    int files = 0;
+    for (boolean isTest : new boolean[] {false, true}) {
+      for (InputFile inputFile : isTest ? testFiles : mainFiles) {
+        Resource<?> resource = defineResource(inputFile, project, isTest);
+        if (resource == null) {
+          continue;
+        }
+        if (!patternsInitializer.computeApplicablePatterns(resource).isEmpty()) {
+          concernedFiles++;
+        }
+        files++;
+      }
+    }
+    LOG.debug("Multi-criteria exclusion patterns apply to {} of {} source files", concernedFiles, files);
+  }
+
+  private void scan(Resource<?> resource, InputFile inputFile, Charset sourcesEncoding, boolean mayHaveCopies, ScanBudget budget,
+      ExclusionManifest manifest) throws IOException {
+    File file = inputFile.getFile();
+    ScanResult result = null;
+    if (!budget.isExceeded()) {
+      result = regexpScanner.scan(resource, file, sourcesEncoding, mayHaveCopies);
+      budget.consume(file.length());
     } else {
-      files = fileSystem.mainFiles(project.getLanguageKey());
+      if (budget.getPolicy() == ScanBudget.Policy.HEADER) {
+        regexpScanner.scanHeader(resource, file, sourcesEncoding, budget.getHeaderLines());
+      }
+      budget.notFullyScanned(inputFile.getRelativePath());
     }
+    // files which are not fully scanned are not exported, as their exclusions are not known
+    if (manifest != null && result != null) {
+      manifest.add(resource.getKey(), result);
+    }
+  }
 
-    for (InputFile inputFile : files) {
-      Resource<?> resource = defineResource(inputFile, project, isTest);
-      if (resource != null) {
-        File file = inputFile.getFile();
-        try {
-          regexpScanner.scan(resource, file, sourcesEncoding);
-        } catch (Exception e) {
-          throw new SonarException("Unable to read the source file : '" + file.getAbsolutePath() + "' with the charset : '"
-            + sourcesEncoding.name() + "'.", e);
+  private static void exportManifest(ExclusionManifest manifest, File file) {
+    try {
+      manifest.write(file);
+      LOG.info("Exclusions of {} files exported to {}", manifest.getResults().size(), file.getAbsolutePath());
+    } catch (IOException e) {
+      throw new SonarException("Unable to write the exclusion manifest: " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Loads the exclusions computed by previous scans instead of reading the source files. Several manifests are
+   * merged, and must then cover all the source files.
+   */
+  private void importManifests(Project project, List<InputFile> mainFiles, List<InputFile> testFiles, List<File> files) {
+    ExclusionManifest manifest;
+    try {
+      manifest = files.size() == 1 ? ExclusionManifest.read(files.get(0)) : ExclusionManifest.merge(files);
+    } catch (IOException e) {
+      throw new SonarException("Unable to read the exclusion manifests: " + files, e);
+    }
+    if (!StringUtils.equals(manifest.getFingerprint(), regexpScanner.getFingerprint())) {
+      if (files.size() > 1) {
+        throw new SonarException("The merged exclusion manifests " + files + " were computed with other block, file or rule marker patterns " +
+          "than the ones of this analysis, scan the shards again");
+      }
+      LOG.warn("The exclusion manifests {} were computed with other block, file or rule marker patterns than the ones of this analysis", files);
+    }
+
+    Map<String, ScanResult> results = manifest.getResults();
+    List<String> missingFiles = Lists.newArrayList();
+    for (boolean isTest : new boolean[] {false, true}) {
+      for (InputFile inputFile : isTest ? testFiles : mainFiles) {
+        Resource<?> resource = defineResource(inputFile, project, isTest);
+        if (resource == null) {
+          continue;
         }
+        ScanResult result = results.get(resource.getKey());
+        if (result == null) {
+          missingFiles.add(inputFile.getRelativePath());
+        } else {
+          result.applyTo(resource, patternsInitializer);
+        }
+      }
+    }
+    LOG.info("Exclusions imported from {}", files);
+    if (!missingFiles.isEmpty()) {
+      if (files.size() > 1) {
+        throw new SonarException(missingFiles.size() + " source files are not listed in the merged exclusion manifests, " +
+          "check that the manifests of all the shards are imported. First missing file: " + missingFiles.get(0));
+      }
+      LOG.warn("{} source files are not listed in the exclusion manifest: exclusions defined in these files are ignored", missingFiles.size());
+    }
+  }
+
+  private static void reportBudget(ScanBudget budget) {
+    List<String> notFullyScannedFiles = budget.getNotFullyScannedFiles();
+    if (!notFullyScannedFiles.isEmpty()) {
+      String action = budget.getPolicy() == ScanBudget.Policy.HEADER ? "only scanned on their first " + budget.getHeaderLines() + " lines" : "not scanned";
+      LOG.warn("The {} is exceeded: {} files were {}. Exclusions defined in these files may be missed.",
+          new Object[] {budget.getExceededBudget(), notFullyScannedFiles.size(), action});
+      for (String path : notFullyScannedFiles) {
+        LOG.warn("- Not fully scanned: {}", path);
       }
     }
   }
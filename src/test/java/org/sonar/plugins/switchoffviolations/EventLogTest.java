@@ -0,0 +1,139 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.ProjectFileSystem;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventLogTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void shouldBeDisabledByDefault() {
+    EventLog eventLog = new EventLog(new Settings(), null);
+
+    assertThat(eventLog.isEnabled()).isFalse();
+    eventLog.scanned("org.foo.Bar", "full", 100, 10, 0, 1000);
+    eventLog.decided(true, 1000);
+    eventLog.stop();
+  }
+
+  @Test
+  public void shouldResolveRelativePathFromBasedir() {
+    ProjectFileSystem fileSystem = mock(ProjectFileSystem.class);
+    when(fileSystem.getBasedir()).thenReturn(temp.getRoot());
+    Settings settings = new Settings();
+    settings.setProperty(Constants.EVENT_LOG_KEY, "target/events.tsv");
+
+    assertThat(new EventLog(settings, fileSystem).getFile()).isEqualTo(new File(temp.getRoot(), "target/events.tsv"));
+  }
+
+  @Test
+  public void shouldAppendEvents() throws Exception {
+    File file = new File(temp.getRoot(), "events.tsv");
+    Settings settings = new Settings();
+    settings.setProperty(Constants.EVENT_LOG_KEY, file.getAbsolutePath());
+
+    EventLog eventLog = new EventLog(settings, null);
+    eventLog.scanned("org.foo.Bar", "full", 1200, 40, 2, 3000000);
+    eventLog.decided(true, 1000);
+    eventLog.decided(false, 2000);
+    eventLog.stop();
+    // the events of another module are appended
+    EventLog otherModule = new EventLog(settings, null);
+    otherModule.filtered(10, 4, 5000);
+    otherModule.stop();
+
+    List<String> lines = FileUtils.readLines(file, "UTF-8");
+    assertThat(lines).hasSize(4);
+    assertThat(lines.get(0)).isEqualTo(EventLog.HEADER);
+    assertThat(lines.get(1)).matches("scan\\t\\d+\\t3000\\torg.foo.Bar\\tfull\\t1200\\t40\\t2");
+    assertThat(lines.get(2)).matches("filter\\t\\d+\\t3\\t2\\t1");
+    assertThat(lines.get(3)).matches("filter\\t\\d+\\t5\\t10\\t4");
+  }
+
+  @Test
+  public void shouldWriteDecisionsOfEachThreadInBatches() throws Exception {
+    File file = new File(temp.getRoot(), "events.tsv");
+    Settings settings = new Settings();
+    settings.setProperty(Constants.EVENT_LOG_KEY, file.getAbsolutePath());
+    final EventLog eventLog = new EventLog(settings, null);
+    final int decisionsPerThread = EventLog.DECISION_BATCH_SIZE * 3 + 10;
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < decisionsPerThread; i++) {
+            eventLog.decided(i % 2 == 0, 1000);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    eventLog.stop();
+
+    List<String> lines = FileUtils.readLines(file, "UTF-8");
+    // three full batches per thread, then the remaining decisions of each thread
+    assertThat(lines).hasSize(1 + threads.length * 4);
+    int violations = 0;
+    int ignored = 0;
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split("\t");
+      assertThat(fields[0]).isEqualTo("filter");
+      violations += Integer.parseInt(fields[3]);
+      ignored += Integer.parseInt(fields[4]);
+    }
+    assertThat(violations).isEqualTo(threads.length * decisionsPerThread);
+    assertThat(ignored).isEqualTo(threads.length * (decisionsPerThread / 2));
+  }
+
+  @Test
+  public void shouldKeepSlowestScans() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.EVENT_LOG_KEY, new File(temp.getRoot(), "events.tsv").getAbsolutePath());
+    EventLog eventLog = new EventLog(settings, null);
+    for (int i = 0; i < 50; i++) {
+      eventLog.scanned("File" + i, "full", 100, 10, 0, (i * 7) % 50);
+    }
+
+    List<String> slowest = eventLog.getSlowestScans();
+    assertThat(slowest).hasSize(10);
+    assertThat(slowest.get(0)).isEqualTo("File7");
+    eventLog.stop();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import org.junit.Test;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExclusionMetricsTest {
+
+  @Test
+  public void shouldBeDisabledByDefault() {
+    ExclusionMetrics metrics = new ExclusionMetrics(new Settings());
+
+    assertThat(metrics.isEnabled()).isFalse();
+    metrics.start();
+    metrics.stop();
+    assertThat(metrics.getObjectName()).isNull();
+  }
+
+  @Test
+  public void shouldRegisterMBeanDuringTheAnalysisOfTheModule() throws Exception {
+    ExclusionMetrics metrics = new ExclusionMetrics(settings("org.foo:bar"));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = metrics.getObjectName();
+    assertThat(name.getKeyProperty("module")).isEqualTo(ObjectName.quote("org.foo:bar"));
+
+    metrics.start();
+    try {
+      assertThat(server.isRegistered(name)).isTrue();
+      metrics.fileScanned("org.foo.Bar", 100, 1000, false);
+      assertThat(server.getAttribute(name, "FilesScanned")).isEqualTo(1L);
+      assertThat(server.getAttribute(name, "SlowestFile")).isEqualTo("org.foo.Bar (0 ms)");
+    } finally {
+      metrics.stop();
+    }
+    assertThat(server.isRegistered(name)).isFalse();
+  }
+
+  @Test
+  public void shouldReplaceMBeanOfPreviousAnalysis() {
+    ExclusionMetrics previous = new ExclusionMetrics(settings("foo"));
+    ExclusionMetrics metrics = new ExclusionMetrics(settings("foo"));
+    previous.start();
+    metrics.start();
+    try {
+      assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(metrics.getObjectName())).isTrue();
+    } finally {
+      metrics.stop();
+      previous.stop();
+    }
+  }
+
+  @Test
+  public void shouldFollowScan() {
+    ExclusionMetrics metrics = new ExclusionMetrics(settings("foo"));
+    assertThat(metrics.getScanThroughput()).isEqualTo(0L);
+    assertThat(metrics.getSlowestFile()).isNull();
+
+    metrics.scanStarted(4);
+    metrics.fileScanned("Foo", 1000, TimeUnit.MILLISECONDS.toNanos(20), false);
+    metrics.fileProcessed();
+    metrics.fileScanned("Bar", 3000, TimeUnit.MILLISECONDS.toNanos(50), true);
+    metrics.fileProcessed();
+    metrics.fileScanned("Baz", 3000, TimeUnit.MILLISECONDS.toNanos(30), false);
+    metrics.fileProcessed();
+
+    assertThat(metrics.getFilesScanned()).isEqualTo(3L);
+    assertThat(metrics.getFilesRemaining()).isEqualTo(1L);
+    assertThat(metrics.getBytesRead()).isEqualTo(7000L);
+    assertThat(metrics.getScanThroughput()).isGreaterThan(0L);
+    assertThat(metrics.getScanResultStoreHitRate()).isEqualTo(1.0 / 3);
+    assertThat(metrics.getSlowestFile()).isEqualTo("Bar (50 ms)");
+  }
+
+  @Test
+  public void shouldCountDecisionsByKind() {
+    ExclusionMetrics metrics = new ExclusionMetrics(settings("foo"));
+    assertThat(metrics.getApplicablePatternsHitRate()).isEqualTo(0.0);
+
+    metrics.violationChecked(ExclusionCode.NOT_IGNORED, true);
+    metrics.violationChecked(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 2, ExclusionCode.ANY_LINE), true);
+    metrics.violationChecked(ExclusionCode.of(ExclusionCode.KIND_BLOCK, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE), false);
+    metrics.violationChecked(ExclusionCode.of(ExclusionCode.KIND_BLOCK, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE), false);
+    metrics.violationChecked(ExclusionCode.of(ExclusionCode.KIND_RULE_MARKER, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE), false);
+
+    assertThat(metrics.getViolationsChecked()).isEqualTo(5L);
+    assertThat(metrics.getViolationsIgnored()).isEqualTo(4L);
+    assertThat(metrics.getIgnoredByMulticriteriaPatterns()).isEqualTo(1L);
+    assertThat(metrics.getIgnoredByBlocks()).isEqualTo(2L);
+    assertThat(metrics.getIgnoredByFilePatterns()).isEqualTo(0L);
+    assertThat(metrics.getIgnoredByRuleMarkers()).isEqualTo(1L);
+    assertThat(metrics.getApplicablePatternsHitRate()).isEqualTo(0.4);
+  }
+
+  @Test
+  public void shouldCountFromSeveralThreads() throws Exception {
+    final StripedCounter counter = new StripedCounter();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(counter.get()).isEqualTo(80000L);
+  }
+
+  private static Settings settings(String moduleKey) {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.JMX_METRICS_KEY, true);
+    settings.setProperty(CoreProperties.PROJECT_KEY_PROPERTY, moduleKey);
+    return settings;
+  }
+}
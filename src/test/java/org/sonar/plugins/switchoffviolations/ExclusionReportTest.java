@@ -0,0 +1,91 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ExclusionReportTest {
+
+  @Test
+  public void shouldCountDecisions() {
+    ExclusionReport report = newReport(true);
+    report.record(ExclusionCode.NOT_IGNORED);
+    report.record(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 1, ExclusionCode.ANY_LINE));
+    report.record(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 1, ExclusionCode.ANY_LINE));
+    report.record(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE));
+    report.record(ExclusionCode.of(ExclusionCode.KIND_BLOCK, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE));
+
+    assertThat(report.isEnabled()).isTrue();
+    assertThat(report.getCount(ExclusionCode.KIND_NONE)).isEqualTo(1);
+    assertThat(report.getCount(ExclusionCode.KIND_MULTICRITERIA)).isEqualTo(3);
+    assertThat(report.getCount(ExclusionCode.KIND_BLOCK)).isEqualTo(1);
+    assertThat(report.getCount(ExclusionCode.KIND_RULE_MARKER)).isEqualTo(0);
+    assertThat(report.getPatternCount(0)).isEqualTo(0);
+    assertThat(report.getPatternCount(1)).isEqualTo(2);
+
+    report.executeOn(null, null);
+  }
+
+  @Test
+  public void shouldNotReportRedundantPatternsAsUnused() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;*;*\norg.foo.Bar;checkstyle:*;[1]\norg.foo.*;*;*\norg.bar.*;*;*");
+    settings.setProperty(Constants.EXCLUSION_REPORT_KEY, true);
+    PatternsInitializer patternsInitializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    ExclusionReport report = new ExclusionReport(settings, patternsInitializer);
+    report.record(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 0, ExclusionCode.ANY_LINE));
+
+    assertThat(patternsInitializer.getEffectiveOrdinal(0)).isEqualTo(0);
+    assertThat(patternsInitializer.getEffectiveOrdinal(1)).isEqualTo(0);
+    assertThat(patternsInitializer.getEffectiveOrdinal(2)).isEqualTo(0);
+    assertThat(patternsInitializer.getEffectiveOrdinal(3)).isEqualTo(3);
+    assertThat(report.getUnusedPatterns()).containsExactly(3);
+
+    report.executeOn(null, null);
+  }
+
+  @Test
+  public void shouldBeDisabledByDefault() {
+    ExclusionReport report = newReport(false);
+
+    assertThat(report.isEnabled()).isFalse();
+    report.executeOn(null, null);
+  }
+
+  @Test
+  public void testToString() {
+    assertThat(newReport(false).toString()).isEqualTo("Switch Off Plugin - Exclusion Report");
+  }
+
+  private static ExclusionReport newReport(boolean enabled) {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;*;*\norg.foo.*;checkstyle:*;[10-20]");
+    settings.setProperty(Constants.EXCLUSION_REPORT_KEY, enabled);
+    return new ExclusionReport(settings, new PatternsInitializer(settings, mock(ProjectFileSystem.class)));
+  }
+}
@@ -20,18 +20,36 @@
 
 package org.sonar.plugins.switchoffviolations;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.sonar.api.config.Settings;
 import org.sonar.api.resources.JavaFile;
+import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.Violation;
+import org.sonar.plugins.switchoffviolations.pattern.ApplicablePatterns;
+import org.sonar.plugins.switchoffviolations.pattern.ExclusionCode;
+import org.sonar.plugins.switchoffviolations.pattern.LineRange;
 import org.sonar.plugins.switchoffviolations.pattern.Pattern;
 import org.sonar.plugins.switchoffviolations.pattern.PatternDecoder;
+import org.sonar.plugins.switchoffviolations.pattern.PatternMatcher;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -48,7 +66,7 @@ public class SwitchOffViolationsFilterTest {
   @Before
   public void init() {
     patternsInitializer = mock(PatternsInitializer.class);
-    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(Collections.<Pattern> emptyList());
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(PatternMatcher.of(Collections.<Pattern> emptyList()));
 
     filter = new SwitchOffViolationsFilter(patternsInitializer);
   }
@@ -60,14 +78,14 @@ public class SwitchOffViolationsFilterTest {
 
   @Test
   public void shouldBeIgnoredWithStandardPatterns() throws IOException {
-    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(createPatterns("org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]"));
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(createMatcher("org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]"));
 
     assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(150))).isTrue();
   }
 
   @Test
   public void shouldNotBeIgnoredWithStandardPatterns() throws IOException {
-    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(createPatterns("org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]"));
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(createMatcher("org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]"));
 
     assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(5))).isFalse();
   }
@@ -86,6 +104,282 @@ public class SwitchOffViolationsFilterTest {
     assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(5))).isFalse();
   }
 
+  @Test
+  public void shouldBeIgnoredWithRuleExclusions() {
+    when(patternsInitializer.getRuleExclusions(JAVA_FILE)).thenReturn(new RuleLineExclusions().add("checkstyle:MagicNumber", new LineRange(15, 20)));
+
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(18))).isTrue();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(5))).isFalse();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE))).isFalse();
+  }
+
+  @Test
+  public void shouldNotBeIgnoredWithRuleExclusionsOfOtherRule() {
+    when(patternsInitializer.getRuleExclusions(JAVA_FILE)).thenReturn(new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(15, 20)));
+
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(18))).isFalse();
+  }
+
+  @Test
+  public void shouldBeIgnoredWithLiteralAndWildcardPatterns() {
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(createMatcher("org.foo.Hello;checkstyle:MagicNumber;[15-20]\norg.foo.*;checkstyle:Magic*;[30]"));
+
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(18))).isTrue();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(30))).isTrue();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(25))).isFalse();
+  }
+
+  @Test
+  public void shouldUseApplicablePatternsOfResource() {
+    PatternMatcher matcher = createMatcher("org.foo.Hello;checkstyle:MagicNumber;[15-20]\norg.foo.*;checkstyle:Magic*;[30]");
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(matcher);
+    when(patternsInitializer.getApplicablePatterns(JAVA_FILE)).thenReturn(matcher.applicablePatterns(JAVA_FILE.getKey()));
+
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(18))).isTrue();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(30))).isTrue();
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(25))).isFalse();
+  }
+
+  @Test
+  public void shouldNotMatchResourcesWithoutApplicablePatterns() {
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(createMatcher("org.foo.*;*;*"));
+    when(patternsInitializer.getApplicablePatterns(JAVA_FILE)).thenReturn(ApplicablePatterns.NONE);
+
+    assertThat(filter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(18))).isFalse();
+  }
+
+  @Test
+  public void shouldFilterBatchLikeEachViolation() {
+    JavaFile fileWithRuleExclusions = new JavaFile("org.foo.Bar");
+    JavaFile fileWithApplicablePatterns = new JavaFile("org.foo.Baz");
+    JavaFile otherFile = new JavaFile("org.other.Bar");
+    PatternMatcher matcher = createMatcher("org.foo.Baz;checkstyle:MagicNumber;[15-20]\norg.*;pmd:*;[30]\norg.foo.*;*;[40-45]");
+    when(patternsInitializer.getMulticriteriaMatcher()).thenReturn(matcher);
+    when(patternsInitializer.getExtraPattern(JAVA_FILE)).thenReturn(createPatterns("org.foo.Hello;*;[15-200]").get(0));
+    when(patternsInitializer.getRuleExclusions(fileWithRuleExclusions)).thenReturn(new RuleLineExclusions().add("checkstyle:MagicNumber", new LineRange(15, 20)));
+    when(patternsInitializer.getApplicablePatterns(fileWithApplicablePatterns)).thenReturn(matcher.applicablePatterns(fileWithApplicablePatterns.getKey()));
+
+    List<Violation> violations = Lists.newArrayList();
+    for (JavaFile file : new JavaFile[] {JAVA_FILE, fileWithRuleExclusions, fileWithApplicablePatterns, otherFile, null}) {
+      for (Rule rule : new Rule[] {CHECKSTYLE_RULE, Rule.create("pmd", "AvoidPrintStackTrace", ""), null}) {
+        for (Integer line : new Integer[] {null, 5, 18, 30, 42, 300}) {
+          violations.add(Violation.create(rule, file).setLineId(line));
+        }
+      }
+    }
+    Collections.shuffle(violations, new Random(42));
+
+    BitSet ignored = filter.getIgnored(violations);
+    for (int i = 0; i < violations.size(); i++) {
+      assertThat(ignored.get(i)).as(violations.get(i).toString()).isEqualTo(filter.isIgnored(violations.get(i)));
+    }
+    assertThat(ignored.cardinality()).isGreaterThan(10);
+    assertThat(filter.getIgnored(Collections.<Violation>emptyList()).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void shouldExplainDecisions() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;pmd:*;*\norg.foo.*;checkstyle:*;[10-20,25]");
+    settings.setProperty(Constants.EXCLUSION_REPORT_KEY, true);
+    PatternsInitializer initializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    JavaFile blockFile = new JavaFile("org.other.Block");
+    JavaFile excludedFile = new JavaFile("org.other.Excluded");
+    JavaFile markedFile = new JavaFile("org.other.Marked");
+    initializer.addPatternToExcludeLines(blockFile, Sets.newHashSet(new LineRange(5, 8)));
+    initializer.addPatternToExcludeResource(excludedFile);
+    initializer.addRuleExclusions(markedFile, new RuleLineExclusions().add("checkstyle:MagicNumber", new LineRange(3, 4)));
+    ExclusionReport report = new ExclusionReport(settings, initializer);
+    SwitchOffViolationsFilter reportingFilter = new SwitchOffViolationsFilter(initializer, report);
+
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(15))))
+        .isEqualTo("multicriteria pattern #1 on lines [10-20]");
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(25))))
+        .isEqualTo("multicriteria pattern #1 on lines [25-25]");
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(Rule.create("pmd", "Foo", ""), new JavaFile("org.foo.Bar")))))
+        .isEqualTo("multicriteria pattern #0");
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, blockFile).setLineId(6))))
+        .isEqualTo("block on lines [5-8]");
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, excludedFile).setLineId(6))))
+        .isEqualTo("file exclusion pattern");
+    assertThat(ExclusionCode.toString(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, markedFile).setLineId(4))))
+        .isEqualTo("rule marker on lines [3-4]");
+    assertThat(reportingFilter.explain(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(30))).isEqualTo(ExclusionCode.NOT_IGNORED);
+
+    assertThat(reportingFilter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(15))).isTrue();
+    assertThat(reportingFilter.isIgnored(Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(30))).isFalse();
+    assertThat(reportingFilter.getIgnored(Lists.newArrayList(Violation.create(CHECKSTYLE_RULE, markedFile).setLineId(4))).get(0)).isTrue();
+    assertThat(report.getPatternCount(1)).isEqualTo(1);
+    assertThat(report.getCount(ExclusionCode.KIND_NONE)).isEqualTo(1);
+    assertThat(report.getCount(ExclusionCode.KIND_RULE_MARKER)).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldTakeSameDecisionsWithExclusionsOutsideOfHeap() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Multi*;checkstyle:*;[1-10]");
+    PatternsInitializer onHeap = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    settings.setProperty(Constants.OFF_HEAP_EXCLUSIONS_KEY, true);
+    PatternsInitializer offHeap = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    Random random = new Random(7);
+    List<Violation> violations = Lists.newArrayList();
+    for (int i = 0; i < 300; i++) {
+      JavaFile resource = new JavaFile((i % 3 == 0 ? "org.foo.Multi" : "org.foo.File") + i);
+      for (PatternsInitializer initializer : new PatternsInitializer[] {onHeap, offHeap}) {
+        if (i % 5 == 0) {
+          initializer.addPatternToExcludeResource(resource);
+        } else if (i % 5 < 3) {
+          initializer.addPatternToExcludeLines(resource, Sets.newHashSet(new LineRange(20, 30), new LineRange(i, i + 5)));
+        }
+        if (i % 7 < 2) {
+          initializer.addRuleExclusions(resource, new RuleLineExclusions().add("checkstyle:MagicNumber", new LineRange(i + 8, i + 12)));
+        }
+        if (i % 2 == 0) {
+          initializer.computeApplicablePatterns(resource);
+        }
+      }
+      for (int n = 0; n < 5; n++) {
+        Rule rule = random.nextBoolean() ? CHECKSTYLE_RULE : (random.nextBoolean() ? Rule.create("pmd", "Foo", "") : null);
+        Violation violation = Violation.create(rule, resource);
+        violations.add(random.nextInt(10) == 0 ? violation : violation.setLineId(random.nextInt(i + 40)));
+      }
+    }
+
+    SwitchOffViolationsFilter onHeapFilter = new SwitchOffViolationsFilter(onHeap);
+    SwitchOffViolationsFilter offHeapFilter = new SwitchOffViolationsFilter(offHeap);
+    try {
+      for (Violation violation : violations) {
+        assertThat(offHeapFilter.isIgnored(violation)).as(violation.toString()).isEqualTo(onHeapFilter.isIgnored(violation));
+        assertThat(ExclusionCode.kind(offHeapFilter.explain(violation))).isEqualTo(ExclusionCode.kind(onHeapFilter.explain(violation)));
+      }
+      assertThat(offHeapFilter.getIgnored(violations)).isEqualTo(onHeapFilter.getIgnored(violations));
+    } finally {
+      offHeap.stop();
+    }
+  }
+
+  @Test
+  public void shouldCountDecisionsInMetrics() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.JMX_METRICS_KEY, true);
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;checkstyle:*;[10-20]");
+    ExclusionMetrics metrics = new ExclusionMetrics(settings);
+    PatternsInitializer initializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    SwitchOffViolationsFilter plainFilter = new SwitchOffViolationsFilter(initializer);
+    SwitchOffViolationsFilter measuredFilter = new SwitchOffViolationsFilter(initializer, null, null, metrics);
+
+    List<Violation> violations = Lists.newArrayList();
+    int ignored = 0;
+    for (int i = 0; i < 30; i++) {
+      Violation violation = Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(i);
+      boolean isIgnored = plainFilter.isIgnored(violation);
+      assertThat(measuredFilter.isIgnored(violation)).isEqualTo(isIgnored);
+      ignored += isIgnored ? 1 : 0;
+      violations.add(violation);
+    }
+    assertThat(measuredFilter.getIgnored(violations)).isEqualTo(plainFilter.getIgnored(violations));
+
+    assertThat(metrics.getViolationsChecked()).isEqualTo(60L);
+    assertThat(metrics.getViolationsIgnored()).isEqualTo(2L * ignored);
+    assertThat(metrics.getIgnoredByMulticriteriaPatterns()).isEqualTo(2L * ignored);
+    assertThat(metrics.getApplicablePatternsHitRate()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void shouldRecordFilterEvents() throws IOException {
+    Settings settings = new Settings();
+    File events = File.createTempFile("events", ".tsv");
+    events.delete();
+    settings.setProperty(Constants.EVENT_LOG_KEY, events.getAbsolutePath());
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;checkstyle:*;[10-20]");
+    EventLog eventLog = new EventLog(settings, null);
+    PatternsInitializer initializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    SwitchOffViolationsFilter plainFilter = new SwitchOffViolationsFilter(initializer);
+    SwitchOffViolationsFilter recordingFilter = new SwitchOffViolationsFilter(initializer, null, eventLog);
+
+    List<Violation> violations = Lists.newArrayList();
+    for (int i = 0; i < EventLog.DECISION_BATCH_SIZE + 10; i++) {
+      Violation violation = Violation.create(CHECKSTYLE_RULE, JAVA_FILE).setLineId(i % 30);
+      assertThat(recordingFilter.isIgnored(violation)).isEqualTo(plainFilter.isIgnored(violation));
+      violations.add(violation);
+    }
+    BitSet ignored = recordingFilter.getIgnored(violations);
+    eventLog.stop();
+
+    try {
+      List<String> lines = FileUtils.readLines(events, "UTF-8");
+      assertThat(lines).hasSize(4);
+      assertThat(lines.get(0)).isEqualTo(EventLog.HEADER);
+      String[] batch = lines.get(1).split("\\t");
+      assertThat(batch[0]).isEqualTo("filter");
+      assertThat(batch[3]).isEqualTo(String.valueOf(EventLog.DECISION_BATCH_SIZE));
+      assertThat(lines.get(2).split("\\t")[3]).isEqualTo(String.valueOf(violations.size()));
+      assertThat(lines.get(2).split("\\t")[4]).isEqualTo(String.valueOf(ignored.cardinality()));
+      assertThat(lines.get(3).split("\\t")[3]).isEqualTo("10");
+    } finally {
+      events.delete();
+    }
+  }
+
+  @Test
+  public void shouldFilterViolationsWhileExclusionsArePublished() throws Exception {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Multi*;checkstyle:*;[1-10]");
+    final PatternsInitializer initializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    final SwitchOffViolationsFilter concurrentFilter = new SwitchOffViolationsFilter(initializer);
+    final int resourceCount = 500;
+    final AtomicIntegerArray published = new AtomicIntegerArray(resourceCount);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> futures = Lists.newArrayList();
+    for (int publisher = 0; publisher < 2; publisher++) {
+      final int parity = publisher;
+      futures.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          for (int i = parity; i < resourceCount; i += 2) {
+            JavaFile resource = new JavaFile("org.foo.File" + i);
+            initializer.computeApplicablePatterns(resource);
+            if (i % 4 < 2) {
+              initializer.addPatternToExcludeLines(resource, Sets.newHashSet(new LineRange(20, 30)));
+            } else {
+              initializer.addRuleExclusions(resource, new RuleLineExclusions().add("checkstyle:MagicNumber", new LineRange(20, 30)));
+            }
+            published.set(i, 1);
+          }
+          return true;
+        }
+      }));
+    }
+    for (int reader = 0; reader < 6; reader++) {
+      final Random random = new Random(reader);
+      futures.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          JavaFile multicriteriaFile = new JavaFile("org.foo.MultiCriteria");
+          for (int n = 0; n < 20000; n++) {
+            int i = random.nextInt(resourceCount);
+            boolean wasPublished = published.get(i) == 1;
+            JavaFile resource = new JavaFile("org.foo.File" + i);
+            boolean ignored = concurrentFilter.isIgnored(Violation.create(CHECKSTYLE_RULE, resource).setLineId(25));
+            if ((wasPublished && !ignored)
+              || concurrentFilter.isIgnored(Violation.create(CHECKSTYLE_RULE, resource).setLineId(50))
+              || !concurrentFilter.isIgnored(Violation.create(CHECKSTYLE_RULE, multicriteriaFile).setLineId(5))) {
+              return false;
+            }
+          }
+          return true;
+        }
+      }));
+    }
+    for (Future<Boolean> future : futures) {
+      assertThat(future.get()).isTrue();
+    }
+    executor.shutdown();
+  }
+
+  private PatternMatcher createMatcher(String lines) {
+    return PatternMatcher.of(createPatterns(lines));
+  }
+
   private List<Pattern> createPatterns(String line) {
     return new PatternDecoder().decode(line);
   }
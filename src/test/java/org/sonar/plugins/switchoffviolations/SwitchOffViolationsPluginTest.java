@@ -27,6 +27,6 @@ import static org.fest.assertions.Assertions.assertThat;
 public class SwitchOffViolationsPluginTest {
   @Test
   public void justForCoverage() {
-    assertThat(new SwitchOffViolationsPlugin().getExtensions()).hasSize(4);
+    assertThat(new SwitchOffViolationsPlugin().getExtensions()).hasSize(9);
   }
 }
@@ -0,0 +1,103 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AdaptivePatternOrderTest {
+
+  @Test
+  public void shouldStartInConfigurationOrder() {
+    assertThat(new AdaptivePatternOrder(3).getRanks()).isEqualTo(new int[] {0, 1, 2});
+  }
+
+  @Test
+  public void shouldPutFrequentMatchesFirst() {
+    AdaptivePatternOrder order = new AdaptivePatternOrder(3);
+    for (int i = 0; i < 100; i++) {
+      order.record(0, false, 100);
+      order.record(1, i % 10 == 0, 100);
+      order.record(2, true, 100);
+    }
+    order.reorder();
+
+    assertThat(order.getRanks()).isEqualTo(new int[] {2, 1, 0});
+  }
+
+  @Test
+  public void shouldPutCheapPatternsFirst() {
+    AdaptivePatternOrder order = new AdaptivePatternOrder(2);
+    for (int i = 0; i < 100; i++) {
+      order.record(0, true, 5000);
+      order.record(1, true, 50);
+    }
+    order.reorder();
+
+    assertThat(order.getRanks()).isEqualTo(new int[] {1, 0});
+  }
+
+  @Test
+  public void shouldSortEachSetOfCandidatesOncePerOrder() {
+    AdaptivePatternOrder order = new AdaptivePatternOrder(4);
+    int[] candidates = {0, 2, 3};
+    int[] ordered = order.inRankOrder(candidates);
+    assertThat(ordered).isEqualTo(new int[] {0, 2, 3});
+    assertThat(order.inRankOrder(candidates)).isSameAs(ordered);
+
+    for (int i = 0; i < 100; i++) {
+      order.record(0, false, 100);
+      order.record(3, true, 100);
+    }
+    order.reorder();
+
+    assertThat(order.inRankOrder(candidates)).isEqualTo(new int[] {3, 2, 0});
+    assertThat(ordered).isEqualTo(new int[] {0, 2, 3});
+  }
+
+  @Test
+  public void shouldReorderPeriodically() {
+    AdaptivePatternOrder order = new AdaptivePatternOrder(2);
+    int[] initialRanks = order.getRanks();
+    for (int i = 0; i < AdaptivePatternOrder.REORDER_PERIOD - 1; i++) {
+      order.record(1, true, -1L);
+    }
+    assertThat(order.getRanks()).isSameAs(initialRanks);
+
+    order.record(1, true, -1L);
+    assertThat(order.getRanks()).isEqualTo(new int[] {1, 0});
+    assertThat(initialRanks).isEqualTo(new int[] {0, 1});
+  }
+
+  @Test
+  public void shouldSampleEvaluationTime() {
+    AdaptivePatternOrder order = new AdaptivePatternOrder(1);
+    int samples = 0;
+    for (int i = 0; i < 10 * AdaptivePatternOrder.SAMPLING_PERIOD; i++) {
+      if (order.shouldSample(0)) {
+        samples++;
+      }
+      order.record(0, false, -1L);
+    }
+    assertThat(samples).isEqualTo(10);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.SonarException;
+import org.sonar.test.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CompiledPatternsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void shouldCompileAndLoadPatterns() throws IOException {
+    File textFile = TestUtils.getResource(getClass(), "patterns.txt");
+    File compiledFile = new File(temp.getRoot(), "patterns.sovp");
+
+    assertThat(CompiledPatterns.compile(textFile, compiledFile)).isEqualTo(5);
+    assertThat(CompiledPatterns.isCompiled(compiledFile)).isTrue();
+    assertThat(CompiledPatterns.isCompiled(textFile)).isFalse();
+
+    List<Pattern> patterns = CompiledPatterns.read(compiledFile);
+    assertThat(patterns).hasSize(5);
+
+    Pattern literal = patterns.get(0);
+    assertThat(literal.getResourceKeyPattern()).isEqualTo("org.foo.Bar");
+    assertThat(literal.isLiteralResourceKey()).isTrue();
+    assertThat(literal.isLiteralRuleKey()).isFalse();
+    assertThat(literal.isCheckLines()).isFalse();
+
+    Pattern withLines = patterns.get(1);
+    assertThat(withLines.isLiteralResourceKey()).isFalse();
+    assertThat(withLines.isLiteralRuleKey()).isTrue();
+    assertThat(withLines.isCheckLines()).isTrue();
+    assertThat(withLines.getLines()).isEmpty();
+    assertThat(withLines.getLineRanges()).containsOnly(new LineRange(5, 6), new LineRange(15, 200));
+    assertThat(withLines.matchLine(5)).isTrue();
+    assertThat(withLines.matchLine(7)).isFalse();
+    assertThat(withLines.matchLine(120)).isTrue();
+
+    assertThat(patterns.get(2).getResourcePattern().toString()).isEqualTo("*");
+    assertThat(patterns.get(3).getBeginBlockRegexp()).isEqualTo("// SONAR-OFF");
+    assertThat(patterns.get(3).getEndBlockRegexp()).isEqualTo("// SONAR-ON");
+    assertThat(patterns.get(4).getAllFileRegexp()).isEqualTo("@generated");
+  }
+
+  @Test
+  public void shouldIdentifyContentByDigest() throws IOException {
+    File textFile = temp.newFile("patterns.txt");
+    File compiledFile = new File(temp.getRoot(), "patterns.sovp");
+    FileUtils.writeStringToFile(textFile, "org.foo.Bar;*;*");
+    CompiledPatterns.compile(textFile, compiledFile);
+    String digest = CompiledPatterns.digest(compiledFile);
+
+    CompiledPatterns.compile(textFile, compiledFile);
+    assertThat(CompiledPatterns.digest(compiledFile)).isEqualTo(digest);
+
+    FileUtils.writeStringToFile(textFile, "org.foo.Hello;*;*");
+    CompiledPatterns.compile(textFile, compiledFile);
+    assertThat(CompiledPatterns.digest(compiledFile)).isNotEqualTo(digest);
+  }
+
+  @Test
+  public void shouldRejectCorruptedFile() throws IOException {
+    File compiledFile = new File(temp.getRoot(), "patterns.sovp");
+    CompiledPatterns.compile(TestUtils.getResource(getClass(), "patterns.txt"), compiledFile);
+    byte[] bytes = FileUtils.readFileToByteArray(compiledFile);
+    bytes[bytes.length - 3] ^= 1;
+    FileUtils.writeByteArrayToFile(compiledFile, bytes);
+
+    try {
+      CompiledPatterns.read(compiledFile);
+      fail();
+    } catch (SonarException e) {
+      assertThat(e.getMessage()).startsWith("Corrupted compiled configuration of patterns");
+    }
+  }
+
+  @Test
+  public void shouldRejectTruncatedFile() throws IOException {
+    File compiledFile = new File(temp.getRoot(), "patterns.sovp");
+    CompiledPatterns.compile(TestUtils.getResource(getClass(), "patterns.txt"), compiledFile);
+    byte[] bytes = FileUtils.readFileToByteArray(compiledFile);
+    FileUtils.writeByteArrayToFile(compiledFile, Arrays.copyOf(bytes, bytes.length - 10));
+
+    try {
+      CompiledPatterns.read(compiledFile);
+      fail();
+    } catch (SonarException e) {
+      assertThat(e.getMessage()).startsWith("Corrupted compiled configuration of patterns");
+    }
+  }
+
+  @Test
+  public void shouldRecognizeCompiledFilesByExtension() throws IOException {
+    // text configuration which begins with the magic number
+    File textFile = temp.newFile("patterns.txt");
+    FileUtils.writeStringToFile(textFile, "SOVP;*;*");
+
+    assertThat(CompiledPatterns.isCompiled(textFile)).isFalse();
+    assertThat(CompiledPatterns.isCompiled(new File("patterns.SOVP"))).isTrue();
+    assertThat(new PatternDecoder().decode(textFile)).hasSize(1);
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailToLoadTextFile() {
+    CompiledPatterns.read(TestUtils.getResource(getClass(), "patterns.txt"));
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExclusionCodeTest {
+
+  @Test
+  public void shouldPackKindOrdinalAndRange() {
+    long code = ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 12345, ExclusionCode.range(10, 200));
+
+    assertThat(ExclusionCode.kind(code)).isEqualTo(ExclusionCode.KIND_MULTICRITERIA);
+    assertThat(ExclusionCode.ordinal(code)).isEqualTo(12345);
+    assertThat(ExclusionCode.from(code)).isEqualTo(10);
+    assertThat(ExclusionCode.to(code)).isEqualTo(200);
+    assertThat(ExclusionCode.isIgnored(code)).isTrue();
+    assertThat(ExclusionCode.toString(code)).isEqualTo("multicriteria pattern #12345 on lines [10-200]");
+  }
+
+  @Test
+  public void shouldSaturateValuesWhichDoNotFit() {
+    long code = ExclusionCode.of(ExclusionCode.KIND_RULE_MARKER, -1, ExclusionCode.range(5, 1000000));
+
+    assertThat(ExclusionCode.kind(code)).isEqualTo(ExclusionCode.KIND_RULE_MARKER);
+    assertThat(ExclusionCode.ordinal(code)).isEqualTo(ExclusionCode.NO_ORDINAL);
+    assertThat(ExclusionCode.from(code)).isEqualTo(5);
+    assertThat(ExclusionCode.to(code)).isEqualTo(ExclusionCode.MAX_LINE);
+    assertThat(ExclusionCode.ordinal(ExclusionCode.of(ExclusionCode.KIND_MULTICRITERIA, 1 << 30, ExclusionCode.ANY_LINE))).isEqualTo(ExclusionCode.NO_ORDINAL);
+  }
+
+  @Test
+  public void shouldDescribeCodes() {
+    assertThat(ExclusionCode.isIgnored(ExclusionCode.NOT_IGNORED)).isFalse();
+    assertThat(ExclusionCode.toString(ExclusionCode.NOT_IGNORED)).isEqualTo("not switched off");
+    assertThat(ExclusionCode.toString(ExclusionCode.of(ExclusionCode.KIND_ALL_FILE, ExclusionCode.NO_ORDINAL, ExclusionCode.ANY_LINE)))
+        .isEqualTo("file exclusion pattern");
+    assertThat(ExclusionCode.toString(ExclusionCode.of(ExclusionCode.KIND_BLOCK, ExclusionCode.NO_ORDINAL, ExclusionCode.range(3, 8))))
+        .isEqualTo("block on lines [3-8]");
+  }
+}
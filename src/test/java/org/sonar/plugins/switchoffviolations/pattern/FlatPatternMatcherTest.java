@@ -0,0 +1,146 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.sonar.api.resources.File;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class FlatPatternMatcherTest {
+
+  private static final String[] RESOURCE_GLOBS = {"*", "**", "org.foo.*", "org.*", "*Bar", "*foo*", "org.foo.Bar", "org.?oo.*",
+    "/org.foo.*", "src/**/*.php", "src/*/Bar.php", "**/Bar.php"};
+  private static final String[] RULE_GLOBS = {"*", "pmd:*", "checkstyle:MagicNumber", "*:*Magic*", "?md:Avoid*"};
+  private static final String[] RESOURCE_KEYS = {"org.foo.Bar", "org.foo.Hello", "org.bar.Bar", "com.foo.Bar", "src/foo/Bar.php",
+    "src/Bar.php", "src/a/b/Bar.php"};
+  private static final Rule[] RULES = {Rule.create("pmd", "AvoidPrintStackTrace", ""), Rule.create("checkstyle", "MagicNumber", ""),
+    Rule.create("squid", "S00100", "")};
+
+  @Test
+  public void shouldShareMatchersOfSameGlobs() {
+    FlatPatternMatcher matcher = new FlatPatternMatcher(new PatternDecoder().decode(
+        "org.foo.*;pmd:*;[1-10]\n" +
+          "/org.foo.*;checkstyle:*;*\n" +
+          "org.*;pmd:*;[20]\n"));
+
+    assertThat(matcher.getResourceMatcherCount()).isEqualTo(2);
+    assertThat(matcher.getRuleMatcherCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldNotMatchViolationsWithoutRuleOrResource() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode("**;*;*\n")).compile();
+
+    assertThat(matcher.match(Violation.create((Rule) null, new JavaFile("org.foo.Bar")))).isNull();
+    assertThat(matcher.match(Violation.create(RULES[0], null))).isNull();
+    assertThat(matcher.match(Violation.create(RULES[0], new JavaFile("org.foo.Bar")))).isNotNull();
+  }
+
+  @Test
+  public void shouldFindSamePatternsAsInterpretedMatcher() {
+    Random random = new Random(42);
+    for (int run = 0; run < 50; run++) {
+      List<Pattern> patterns = randomPatterns(random, 1 + random.nextInt(20));
+      PatternMatcher interpreted = PatternMatcher.of(patterns);
+      PatternMatcher compiled = interpreted.compile();
+
+      for (String resourceKey : RESOURCE_KEYS) {
+        Resource<?> resource = resourceKey.endsWith(".php") ? new File(resourceKey) : new JavaFile(resourceKey);
+        for (Rule rule : RULES) {
+          for (Integer line : new Integer[] {null, 1, 5, 10, 11, 20, 30, 31}) {
+            Violation violation = Violation.create(rule, resource).setLineId(line);
+            assertThat(compiled.match(violation)).as(patterns + " " + violation).isSameAs(interpreted.match(violation));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldEvaluateFromSeveralThreads() throws Exception {
+    List<Pattern> patterns = randomPatterns(new Random(7), 200);
+    final PatternMatcher interpreted = PatternMatcher.of(patterns);
+    final PatternMatcher compiled = interpreted.compile();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = Lists.newArrayList();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() {
+            for (int run = 0; run < 20; run++) {
+              for (String resourceKey : RESOURCE_KEYS) {
+                Resource<?> resource = resourceKey.endsWith(".php") ? new File(resourceKey) : new JavaFile(resourceKey);
+                for (Rule rule : RULES) {
+                  for (Integer line : new Integer[] {null, 1, 10, 20, 31}) {
+                    Violation violation = Violation.create(rule, resource).setLineId(line);
+                    if (compiled.match(violation) != interpreted.match(violation)) {
+                      return false;
+                    }
+                  }
+                }
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertThat(result.get()).isTrue();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<Pattern> randomPatterns(Random random, int count) {
+    List<Pattern> patterns = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Pattern pattern = new Pattern(RESOURCE_GLOBS[random.nextInt(RESOURCE_GLOBS.length)], RULE_GLOBS[random.nextInt(RULE_GLOBS.length)]);
+      switch (random.nextInt(3)) {
+        case 0:
+          pattern.setCheckLines(false);
+          break;
+        case 1:
+          int from = 1 + random.nextInt(30);
+          pattern.addLineRange(from, from + random.nextInt(10));
+          break;
+        default:
+          pattern.addLine(1 + random.nextInt(30)).addLine(1 + random.nextInt(30));
+          break;
+      }
+      patterns.add(pattern);
+    }
+    return patterns;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+import org.sonar.api.utils.WildcardPattern;
+
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class GlobMatcherTest {
+
+  private static final String[] GLOBS = {"*", "**", "org.foo.*", "*Test", "*generated*", "org.foo.Bar", "src/foo.php", "/org.foo.*",
+    "\\src\\*.php", "*/", "/", "", "org.*.Bar", "**/generated/**", "?rg.foo.Bar", "*.*", "*/foo*", "*foo/*", "**Test", "org.foo.**", "*a/b*"};
+
+  private static final String[] KEYS = {"org.foo.Bar", "org.foo.sub.Bar", "org.foo", "/org.foo.Bar/", "//org.foo.Bar", "FooTest", "src/FooTest",
+    "src/generated/Foo.java", "generated", "src/foo.php", "/src/foo.php", "src\\foo.php", "x/", "x//", "", "/", "//", "a\nb", "foo/bar",
+    "bar/foo", "a/b", "xa/by", "a/b/c", "org.foo.Bar "};
+
+  @Test
+  public void shouldPickSpecializedMatchers() {
+    assertThat(GlobMatcher.compile("**").getClass().getSimpleName()).isEqualTo("Any");
+    assertThat(GlobMatcher.compile("*").getClass().getSimpleName()).isEqualTo("WithoutSlash");
+    assertThat(GlobMatcher.compile("org.foo.Bar").getClass().getSimpleName()).isEqualTo("Equals");
+    assertThat(GlobMatcher.compile("org.foo.*").getClass().getSimpleName()).isEqualTo("StartsWith");
+    assertThat(GlobMatcher.compile("*Test").getClass().getSimpleName()).isEqualTo("EndsWith");
+    assertThat(GlobMatcher.compile("*generated*").getClass().getSimpleName()).isEqualTo("Contains");
+    assertThat(GlobMatcher.compile("org.*.Bar").getClass().getSimpleName()).isEqualTo("Regexp");
+    assertThat(GlobMatcher.compile("?rg.foo.Bar").getClass().getSimpleName()).isEqualTo("Regexp");
+    assertThat(GlobMatcher.compile("org.foo.*").toString()).isEqualTo("org.foo.*");
+  }
+
+  @Test
+  public void shouldMatchLikeWildcardPattern() {
+    for (String glob : GLOBS) {
+      for (String key : KEYS) {
+        assertSameMatch(glob, key);
+      }
+    }
+  }
+
+  @Test
+  public void shouldMatchRandomGlobsLikeWildcardPattern() {
+    // regexp metacharacters must be matched literally
+    char[] globChars = {'a', 'b', '.', '/', '\\', '*', '*', '?', ':', '$', '^', '(', ')', '[', ']', '{', '}', '+', '|'};
+    char[] keyChars = {'a', 'b', '.', '/', '\\', ':', '\n', '$', '^', '(', ')', '[', ']', '{', '}', '+', '|'};
+    Random random = new Random(42);
+    for (int i = 0; i < 3000; i++) {
+      String glob = randomString(random, globChars, 6);
+      for (int j = 0; j < 10; j++) {
+        assertSameMatch(glob, randomString(random, keyChars, 8));
+      }
+    }
+  }
+
+  @Test
+  public void shouldOnlyContainGlobsWhoseKeysItMatches() {
+    char[] globChars = {'a', 'b', '/', '*', '*', '?'};
+    char[] keyChars = {'a', 'b', '/'};
+    Random random = new Random(42);
+    int containments = 0;
+    for (int i = 0; i < 20000; i++) {
+      GlobMatcher broader = GlobMatcher.compile(randomString(random, globChars, 4));
+      GlobMatcher narrower = GlobMatcher.compile(randomString(random, globChars, 4));
+      if (broader.contains(narrower)) {
+        containments++;
+        for (int j = 0; j < 50; j++) {
+          String key = randomString(random, keyChars, 6);
+          if (narrower.match(key)) {
+            assertThat(broader.match(key)).as("'" + broader + "' contains '" + narrower + "' but not '" + key + "'").isTrue();
+          }
+        }
+      }
+    }
+    assertThat(containments).isGreaterThan(1000);
+  }
+
+  private static void assertSameMatch(String glob, String key) {
+    boolean expected = WildcardPattern.create(glob).match(key);
+    assertThat(GlobMatcher.compile(glob).match(key)).as("'" + glob + "' on '" + key + "'").isEqualTo(expected);
+  }
+
+  private static String randomString(Random random, char[] chars, int maxLength) {
+    int length = random.nextInt(maxLength + 1);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append(chars[random.nextInt(chars.length)]);
+    }
+    return sb.toString();
+  }
+}
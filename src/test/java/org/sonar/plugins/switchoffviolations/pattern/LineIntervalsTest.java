@@ -0,0 +1,67 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LineIntervalsTest {
+
+  @Test
+  public void shouldMergeRanges() {
+    assertThat(LineIntervals.merge(Arrays.asList(new LineRange(10, 20), new LineRange(1, 2), new LineRange(3, 5), new LineRange(15, 30), new LineRange(40, 40))))
+        .containsExactly(new LineRange(1, 5), new LineRange(10, 30), new LineRange(40, 40));
+  }
+
+  @Test
+  public void shouldSearchLines() {
+    LineIntervals intervals = new LineIntervals(Arrays.asList(new LineRange(40, 40), new LineRange(1, 5), new LineRange(10, 30)));
+
+    assertThat(intervals.size()).isEqualTo(3);
+    for (int line = 0; line < 50; line++) {
+      boolean expected = (line >= 1 && line <= 5) || (line >= 10 && line <= 30) || line == 40;
+      assertThat(intervals.contains(line)).as("line " + line).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void shouldSearchRanges() {
+    LineIntervals intervals = new LineIntervals(Arrays.asList(new LineRange(1, 5), new LineRange(10, 30)));
+
+    assertThat(intervals.contains(new LineRange(1, 5))).isTrue();
+    assertThat(intervals.contains(new LineRange(12, 20))).isTrue();
+    assertThat(intervals.contains(new LineRange(4, 10))).isFalse();
+    assertThat(intervals.contains(new LineRange(25, 31))).isFalse();
+    assertThat(intervals.contains(new LineRange(7, 8))).isFalse();
+  }
+
+  @Test
+  public void shouldContainNothingWhenEmpty() {
+    LineIntervals intervals = new LineIntervals(Collections.<LineRange>emptyList());
+
+    assertThat(intervals.size()).isEqualTo(0);
+    assertThat(intervals.contains(1)).isFalse();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MappedLineExclusionsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File directory;
+  private MappedLineExclusions exclusions;
+
+  @Before
+  public void init() throws Exception {
+    directory = temp.newFolder("exclusions");
+    exclusions = new MappedLineExclusions(directory);
+  }
+
+  @After
+  public void close() {
+    exclusions.close();
+  }
+
+  @Test
+  public void shouldNotCreateFilesWithoutExclusions() {
+    assertThat(exclusions.explain("org.foo.Bar", 10)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.size()).isEqualTo(0);
+    assertThat(directory.list()).isEmpty();
+  }
+
+  @Test
+  public void shouldExplainExcludedLines() {
+    exclusions.putLineRanges("org.foo.Bar", Lists.newArrayList(new LineRange(20, 30), new LineRange(5, 8), new LineRange(9, 10)));
+    exclusions.putWholeFile("org.foo.Generated");
+
+    assertThat(ExclusionCode.toString(exclusions.explain("org.foo.Bar", 7))).isEqualTo("block on lines [5-10]");
+    assertThat(ExclusionCode.toString(exclusions.explain("org.foo.Bar", 30))).isEqualTo("block on lines [20-30]");
+    assertThat(ExclusionCode.toString(exclusions.explain("org.foo.Bar", null))).isEqualTo("block");
+    assertThat(exclusions.explain("org.foo.Bar", 11)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explain("org.foo.Bar", 31)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(ExclusionCode.toString(exclusions.explain("org.foo.Generated", 1000))).isEqualTo("file exclusion pattern");
+    assertThat(exclusions.explain("org.foo.Ba", 7)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explain("org.foo.BarX", 7)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldExplainLinesExcludedForRules() {
+    exclusions.putLineRanges("org.foo.Bar", Lists.newArrayList(new LineRange(1, 2)));
+    exclusions.putRuleExclusions("org.foo.Bar", new RuleLineExclusions().add("pmd:Foo", new LineRange(5, 8)).add("pmd:Foo", new LineRange(20, 20))
+      .add("checkstyle:MagicNumber", new LineRange(10, 12)));
+
+    assertThat(ExclusionCode.toString(exclusions.explainRule("org.foo.Bar", "pmd:Foo", 6))).isEqualTo("rule marker on lines [5-8]");
+    assertThat(ExclusionCode.toString(exclusions.explainRule("org.foo.Bar", "pmd:Foo", 20))).isEqualTo("rule marker on lines [20-20]");
+    assertThat(exclusions.explainRule("org.foo.Bar", "pmd:Foo", 11)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explainRule("org.foo.Bar", "pmd:Foo", null)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explainRule("org.foo.Bar", "pmd:Fo", 6)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explainRule("org.foo.Bar", "checkstyle:MagicNumber", 11)).isNotEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explainRule("org.foo.Bar", "checkstyle:MagicNumber", 1)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(exclusions.explainRule("org.foo.Other", "pmd:Foo", 6)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    // the exclusions of the file are not the exclusions for rules
+    assertThat(exclusions.explain("org.foo.Bar", 6)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(ExclusionCode.kind(exclusions.explain("org.foo.Bar", 1))).isEqualTo(ExclusionCode.KIND_BLOCK);
+  }
+
+  @Test
+  public void shouldStoreIdentifiersOfApplicablePatterns() {
+    exclusions.putApplicablePatterns("org.foo.Bar", 3);
+    exclusions.putWholeFile("org.foo.Bar");
+    exclusions.putApplicablePatterns("org.foo.Other", 0);
+
+    assertThat(exclusions.getApplicablePatterns("org.foo.Bar")).isEqualTo(3);
+    assertThat(exclusions.getApplicablePatterns("org.foo.Other")).isEqualTo(0);
+    assertThat(exclusions.getApplicablePatterns("org.foo.Unknown")).isEqualTo(-1);
+    assertThat(ExclusionCode.kind(exclusions.explain("org.foo.Bar", 1))).isEqualTo(ExclusionCode.KIND_ALL_FILE);
+    assertThat(exclusions.explain("org.foo.Other", 1)).isEqualTo(ExclusionCode.NOT_IGNORED);
+  }
+
+  @Test
+  public void shouldReplaceExclusionsOfSameFile() {
+    exclusions.putLineRanges("org.foo.Bar", Lists.newArrayList(new LineRange(5, 8)));
+    exclusions.putWholeFile("org.foo.Bar");
+
+    assertThat(ExclusionCode.kind(exclusions.explain("org.foo.Bar", 100))).isEqualTo(ExclusionCode.KIND_ALL_FILE);
+    assertThat(exclusions.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldGrowBeyondInitialSizes() {
+    Random random = new Random(42);
+    Map<String, Integer> excludedLineByKey = Maps.newHashMap();
+    for (int i = 0; i < 20000; i++) {
+      String key = "src/main/java/org/foo/package" + (i % 97) + "/File" + i + ".java";
+      int line = 1 + random.nextInt(1000);
+      List<LineRange> ranges = Lists.newArrayList();
+      for (int r = 0; r < 10; r++) {
+        ranges.add(new LineRange(line + 10 * r, line + 10 * r + 2));
+      }
+      exclusions.putLineRanges(key, ranges);
+      excludedLineByKey.put(key, line);
+    }
+
+    assertThat(exclusions.size()).isEqualTo(20000);
+    for (Map.Entry<String, Integer> entry : excludedLineByKey.entrySet()) {
+      int line = entry.getValue();
+      assertThat(ExclusionCode.from(exclusions.explain(entry.getKey(), line + 51))).isEqualTo(line + 50);
+      assertThat(exclusions.explain(entry.getKey(), line + 53)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    }
+  }
+
+  @Test
+  public void shouldFindStoredExclusionsWhileStoringOthers() throws Exception {
+    final AtomicInteger storedCount = new AtomicInteger();
+    final AtomicInteger missedCount = new AtomicInteger();
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        Random random = new Random(7);
+        while (!done.get()) {
+          int stored = storedCount.get();
+          if (stored > 0) {
+            int i = random.nextInt(stored);
+            if (exclusions.explain("org.foo.File" + i, i + 1) == ExclusionCode.NOT_IGNORED) {
+              missedCount.incrementAndGet();
+            }
+          }
+        }
+      }
+    };
+    reader.start();
+    for (int i = 0; i < 20000; i++) {
+      exclusions.putLineRanges("org.foo.File" + i, Lists.newArrayList(new LineRange(i, i + 2)));
+      storedCount.set(i + 1);
+    }
+    done.set(true);
+    reader.join();
+
+    assertThat(missedCount.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldDeleteFilesWhenClosed() {
+    exclusions.putWholeFile("org.foo.Generated");
+    assertThat(directory.list()).hasSize(2);
+
+    exclusions.close();
+
+    assertThat(exclusions.explain("org.foo.Generated", 1)).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(directory.list()).isEmpty();
+  }
+}
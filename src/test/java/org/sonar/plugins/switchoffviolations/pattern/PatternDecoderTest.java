@@ -20,16 +20,20 @@
 
 package org.sonar.plugins.switchoffviolations.pattern;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.sonar.api.utils.SonarException;
 import org.sonar.test.TestUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class PatternDecoderTest {
 
@@ -38,6 +42,9 @@ public class PatternDecoderTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Test
   public void shouldReadFileWithAllTypesOfPatterns() {
     File file = TestUtils.getResource(getClass(), "valid.txt");
@@ -64,6 +71,68 @@ public class PatternDecoderTest {
     assertThat(patterns).hasSize(5);
   }
 
+  @Test
+  public void shouldKeepOrderOfBigFiles() throws IOException {
+    File file = temp.newFile("patterns.txt");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10500; i++) {
+      sb.append("org.foo.File").append(i).append(";*;[").append(i + 1).append("]\n");
+      if (i % 7 == 0) {
+        sb.append("# comment\n\n");
+      }
+    }
+    FileUtils.writeStringToFile(file, sb.toString());
+
+    List<Pattern> patterns = decoder.decode(file);
+
+    assertThat(patterns).hasSize(10500);
+    for (int i = 0; i < 10500; i++) {
+      assertThat(patterns.get(i).getResourceKeyPattern()).isEqualTo("org.foo.File" + i);
+      assertThat(patterns.get(i).getLines()).containsOnly(i + 1);
+    }
+  }
+
+  @Test
+  public void shouldReportAllInvalidLines() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= 2500; i++) {
+      sb.append(i == 3 || i == 2001 ? "*;*;blabla" : "org.foo.Bar;*;*").append('\n');
+    }
+
+    try {
+      decoder.decode(sb.toString());
+      fail();
+    } catch (SonarException e) {
+      assertThat(e.getMessage()).startsWith("2 invalid pattern(s)");
+      assertThat(e.getMessage()).contains("line 3: Invalid format. The third field does not define a range of lines: *;*;blabla");
+      assertThat(e.getMessage()).contains("line 2001: Invalid format. The third field does not define a range of lines");
+    }
+  }
+
+  @Test
+  public void shouldReportInvalidRangesWithTheirLineNumbers() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= 2500; i++) {
+      if (i == 10) {
+        sb.append("x;*;[10-5]");
+      } else if (i == 1500) {
+        sb.append("x;*;[99999999999]");
+      } else {
+        sb.append("org.foo.Bar;*;*");
+      }
+      sb.append('\n');
+    }
+
+    try {
+      decoder.decode(sb.toString());
+      fail();
+    } catch (SonarException e) {
+      assertThat(e.getMessage()).startsWith("2 invalid pattern(s)");
+      assertThat(e.getMessage()).contains("line 10: Invalid format. The third field does not define a valid range of lines: [10-5]");
+      assertThat(e.getMessage()).contains("line 1500: Invalid format. The third field does not define a valid range of lines: [99999999999]");
+    }
+  }
+
   @Test
   public void shouldCheckFormatOfResource() {
     assertThat(decoder.isResource("")).isFalse();
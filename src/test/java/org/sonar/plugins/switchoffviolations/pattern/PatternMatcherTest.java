@@ -0,0 +1,205 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PatternMatcherTest {
+
+  private static final Rule MAGIC_NUMBER = Rule.create("checkstyle", "MagicNumber", "");
+  private static final Rule PRINT_STACK_TRACE = Rule.create("pmd", "AvoidPrintStackTrace", "");
+
+  @Test
+  public void shouldIndexLiteralPatterns() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.Bar;checkstyle:MagicNumber;[10-20]\n" +
+          "org.foo.Bar;checkstyle:MagicNumber;[25]\n" +
+          "org.foo.Bar;pmd:AvoidPrintStackTrace;*\n" +
+          "org.foo.*;checkstyle:MagicNumber;[30]\n" +
+          "org.foo.Hello;pmd:*;*\n"));
+
+    assertThat(matcher.getLiteralPatternIndex().size()).isEqualTo(3);
+    assertThat(matcher.getWildcardPatterns()).hasSize(2);
+  }
+
+  @Test
+  public void shouldMatchLikeEachPattern() {
+    List<Pattern> patterns = new PatternDecoder().decode(
+        "org.foo.Bar;checkstyle:MagicNumber;[10-20]\n" +
+          "org.foo.Bar;checkstyle:MagicNumber;[25,27-28]\n" +
+          "org.foo.Bar;pmd:AvoidPrintStackTrace;*\n" +
+          "org.foo.*;checkstyle:MagicNumber;[30]\n" +
+          "org.foo.Hello;pmd:*;*\n" +
+          "org.foo.Hello;checkstyle:MagicNumber;[5]\n");
+    PatternMatcher matcher = PatternMatcher.of(patterns);
+
+    for (String resourceKey : new String[] {"org.foo.Bar", "org.foo.Hello", "org.other.Bar"}) {
+      for (Rule rule : new Rule[] {MAGIC_NUMBER, PRINT_STACK_TRACE}) {
+        for (Integer line : new Integer[] {null, 1, 5, 10, 15, 20, 21, 25, 26, 27, 28, 30}) {
+          Violation violation = Violation.create(rule, new JavaFile(resourceKey)).setLineId(line);
+          boolean expected = false;
+          for (Pattern pattern : patterns) {
+            expected |= pattern.match(violation);
+          }
+          Pattern match = matcher.match(violation);
+          assertThat(match != null).as(violation.toString()).isEqualTo(expected);
+          if (match != null) {
+            assertThat(match.match(violation)).isTrue();
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldNotChangeDecisionsInAdaptiveOrder() {
+    List<Pattern> patterns = new PatternDecoder().decode(
+        "org.foo.*;checkstyle:MagicNumber;[30]\n" +
+          "org.*.B?r;pmd:*;[1-5]\n" +
+          "*;pmd:AvoidPrintStackTrace;[10-20]\n" +
+          "org.foo.Hel*;*;*\n");
+    PatternMatcher matcher = PatternMatcher.of(patterns);
+    PatternMatcher adaptiveMatcher = matcher.withAdaptiveOrder();
+
+    for (int i = 0; i < 2 * AdaptivePatternOrder.REORDER_PERIOD / 100; i++) {
+      for (String resourceKey : new String[] {"org.foo.Bar", "org.foo.Hello", "org.other.Bar"}) {
+        for (Rule rule : new Rule[] {MAGIC_NUMBER, PRINT_STACK_TRACE}) {
+          for (Integer line : new Integer[] {null, 1, 5, 10, 15, 20, 21, 30}) {
+            Violation violation = Violation.create(rule, new JavaFile(resourceKey)).setLineId(line);
+            Pattern match = adaptiveMatcher.match(violation);
+            assertThat(match != null).as(violation.toString()).isEqualTo(matcher.match(violation) != null);
+            if (match != null) {
+              assertThat(match.match(violation)).isTrue();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldMatchLikeApplicablePatterns() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.Bar;checkstyle:MagicNumber;[10-20]\n" +
+          "org.foo.*;checkstyle:MagicNumber;[30]\n" +
+          "org.*.Hel*;pmd:*;[1-5]\n" +
+          "*Bar;pmd:AvoidPrintStackTrace;*\n"));
+
+    assertThat(matcher.applicablePatterns("com.foo.Hello")).isSameAs(ApplicablePatterns.NONE);
+    assertThat(matcher.applicablePatterns(null)).isSameAs(ApplicablePatterns.NONE);
+    assertThat(matcher.applicablePatterns("org.foo.Hello").getWildcardPatterns()).hasSize(2);
+    assertThat(matcher.applicablePatterns("org.foo.Bar").isEmpty()).isFalse();
+
+    for (String resourceKey : new String[] {"org.foo.Bar", "org.foo.Hello", "org.other.Bar", "com.foo.Hello"}) {
+      ApplicablePatterns applicablePatterns = matcher.applicablePatterns(resourceKey);
+      for (Rule rule : new Rule[] {MAGIC_NUMBER, PRINT_STACK_TRACE}) {
+        for (Integer line : new Integer[] {null, 1, 5, 10, 15, 20, 21, 30}) {
+          Violation violation = Violation.create(rule, new JavaFile(resourceKey)).setLineId(line);
+          assertThat(applicablePatterns.match(violation)).as(violation.toString()).isSameAs(matcher.match(violation));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldRestrictApplicablePatternsToRule() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.Bar;checkstyle:MagicNumber;[10-20]\n" +
+          "org.foo.*;checkstyle:Magic*;[30]\n" +
+          "org.*;pmd:*;[1-5]\n"));
+    ApplicablePatterns applicablePatterns = matcher.applicablePatterns("org.foo.Bar");
+    ApplicablePatterns patternsOfRule = applicablePatterns.forRule(MAGIC_NUMBER);
+
+    assertThat(applicablePatterns.getWildcardPatterns()).hasSize(2);
+    assertThat(patternsOfRule.getWildcardPatterns()).hasSize(1);
+    assertThat(patternsOfRule.forRule(MAGIC_NUMBER)).isSameAs(patternsOfRule);
+    assertThat(applicablePatterns.forRule(null)).isSameAs(ApplicablePatterns.NONE);
+    assertThat(ApplicablePatterns.NONE.forRule(MAGIC_NUMBER)).isSameAs(ApplicablePatterns.NONE);
+    for (Integer line : new Integer[] {null, 1, 15, 30, 31}) {
+      Violation violation = Violation.create(MAGIC_NUMBER, new JavaFile("org.foo.Bar")).setLineId(line);
+      assertThat(patternsOfRule.match(violation)).as(violation.toString()).isSameAs(matcher.match(violation));
+    }
+  }
+
+  @Test
+  public void shouldLearnAdaptiveOrderFromApplicablePatterns() {
+    PatternMatcher adaptiveMatcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.*;pmd:*;*\n" +
+          "org.*;checkstyle:MagicNumber;*\n")).withAdaptiveOrder();
+    ApplicablePatterns applicablePatterns = adaptiveMatcher.applicablePatterns("org.foo.Bar");
+    assertThat(applicablePatterns.getMatcher()).isSameAs(adaptiveMatcher);
+
+    Violation violation = Violation.create(MAGIC_NUMBER, new JavaFile("org.foo.Bar")).setLineId(10);
+    for (int i = 0; i < AdaptivePatternOrder.REORDER_PERIOD; i++) {
+      assertThat(applicablePatterns.match(violation)).isNotNull();
+    }
+    assertThat(adaptiveMatcher.getAdaptiveOrder().getRanks()).isEqualTo(new int[] {1, 0});
+  }
+
+  @Test
+  public void shouldEvaluateApplicablePatternsWithCompiledMatcher() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.Bar;checkstyle:MagicNumber;[10-20]\n" +
+          "org.foo.*;checkstyle:Magic*;[30]\n" +
+          "org.*.Hel*;pmd:*;[1-5]\n" +
+          "*Bar;pmd:AvoidPrintStackTrace;*\n"));
+    PatternMatcher compiledMatcher = matcher.compile();
+
+    for (String resourceKey : new String[] {"org.foo.Bar", "org.foo.Hello", "org.other.Bar"}) {
+      ApplicablePatterns applicablePatterns = compiledMatcher.applicablePatterns(resourceKey);
+      assertThat(applicablePatterns.getMatcher()).isSameAs(compiledMatcher);
+      for (Rule rule : new Rule[] {MAGIC_NUMBER, PRINT_STACK_TRACE}) {
+        for (Integer line : new Integer[] {null, 1, 5, 10, 15, 20, 21, 30}) {
+          Violation violation = Violation.create(rule, new JavaFile(resourceKey)).setLineId(line);
+          assertThat(applicablePatterns.match(violation)).as(violation.toString()).isSameAs(matcher.match(violation));
+          assertThat(applicablePatterns.forRule(rule).match(violation)).as(violation.toString()).isSameAs(matcher.match(violation));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldShareIndexesOfSameApplicablePatterns() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode(
+        "org.foo.*;checkstyle:MagicNumber;[30]\n" +
+          "org.*.Hel*;pmd:*;[1-5]\n"));
+
+    assertThat(matcher.applicablePatterns("org.foo.Bar")).isEqualTo(matcher.applicablePatterns("org.foo.Baz"));
+    assertThat(matcher.applicablePatterns("org.foo.Bar")).isNotEqualTo(matcher.applicablePatterns("org.foo.Hello"));
+    assertThat(matcher.applicablePatterns("org.foo.Hello").forRule(PRINT_STACK_TRACE))
+      .isEqualTo(matcher.applicablePatterns("org.bar.Hello").forRule(PRINT_STACK_TRACE));
+  }
+
+  @Test
+  public void shouldNotMatchViolationsWithoutRuleOrResource() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode("org.foo.Bar;checkstyle:MagicNumber;*"));
+
+    assertThat(matcher.match(Violation.create((Rule) null, new JavaFile("org.foo.Bar")))).isNull();
+    assertThat(matcher.match(Violation.create(MAGIC_NUMBER, null))).isNull();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PatternNormalizerTest {
+
+  @Test
+  public void shouldMergePatternsWithSameKeys() {
+    List<Pattern> patterns = PatternNormalizer.normalize(decode(
+        "org.foo.Bar;pmd:AvoidPrintStackTrace;[10-20]\n" +
+          "org.foo.Bar;pmd:AvoidPrintStackTrace;[10-20]\n" +
+          "/org.foo.Bar;pmd:AvoidPrintStackTrace;[21,30]\n" +
+          "org.foo.Hello;pmd:AvoidPrintStackTrace;[5]\n" +
+          "org.foo.Hello;pmd:AvoidPrintStackTrace;*\n"));
+
+    assertThat(patterns).hasSize(2);
+    assertThat(patterns.get(0).getResourceKeyPattern()).isEqualTo("org.foo.Bar");
+    assertThat(patterns.get(0).isCheckLines()).isTrue();
+    assertThat(patterns.get(0).getMergedLineRanges()).containsExactly(new LineRange(10, 21), new LineRange(30, 30));
+    assertThat(patterns.get(1).getResourceKeyPattern()).isEqualTo("org.foo.Hello");
+    assertThat(patterns.get(1).isCheckLines()).isFalse();
+  }
+
+  @Test
+  public void shouldRemoveSubsumedPatterns() {
+    List<Pattern> patterns = PatternNormalizer.normalize(decode(
+        "org.foo.Bar;pmd:AvoidPrintStackTrace;[5]\n" +
+          "*;pmd:*;*\n" +
+          "org.foo.*;pmd:Avoid*;[1-10]\n" +
+          "org.foo.Bar;checkstyle:MagicNumber;[5]\n" +
+          "org.foo.*;checkstyle:*;[1-10]\n" +
+          "org.foo.Hello;checkstyle:MagicNumber;[5-12]\n" +
+          "org.foo.Hello;checkstyle:MagicNumber;*\n" +
+          "src/foo/Bar.php;pmd:AvoidPrintStackTrace;*\n"));
+
+    assertThat(patterns).hasSize(4);
+    assertThat(patterns.get(0).toString()).contains("resourcePattern=*,rulePattern=pmd:*");
+    assertThat(patterns.get(1).toString()).contains("resourcePattern=org.foo.*,rulePattern=checkstyle:*");
+    assertThat(patterns.get(2).toString()).contains("resourcePattern=org.foo.Hello,rulePattern=checkstyle:MagicNumber");
+    assertThat(patterns.get(3).toString()).contains("resourcePattern=src/foo/Bar.php");
+  }
+
+  @Test
+  public void shouldRecordReplacedOrdinals() {
+    List<Pattern> patterns = decode(
+        "org.foo.Bar;pmd:AvoidPrintStackTrace;[10-20]\n" +
+          "org.foo.*;pmd:*;*\n" +
+          "org.foo.Bar;pmd:AvoidPrintStackTrace;[21]\n" +
+          "org.foo.*;pmd:*;[1-10]\n" +
+          "org.foo.Hello;checkstyle:MagicNumber;[5]\n");
+    for (int i = 0; i < patterns.size(); i++) {
+      patterns.get(i).setOrdinal(i);
+    }
+    Map<Integer, Integer> replacedOrdinals = Maps.newHashMap();
+
+    List<Pattern> normalized = PatternNormalizer.normalize(patterns, replacedOrdinals);
+
+    assertThat(normalized).hasSize(2);
+    assertThat(replacedOrdinals).hasSize(3);
+    assertThat(replacedOrdinals.get(2)).isEqualTo(0);
+    assertThat(replacedOrdinals.get(0)).isEqualTo(1);
+    assertThat(replacedOrdinals.get(3)).isEqualTo(1);
+    assertThat(replacedOrdinals.containsKey(4)).isFalse();
+  }
+
+  @Test
+  public void shouldDecideSubsumption() {
+    assertThat(subsumes("*;*;*", "org.foo.Bar;pmd:Foo;[1]")).isTrue();
+    assertThat(subsumes("**;**;*", "org/foo/Bar;pmd:Foo;*")).isTrue();
+    assertThat(subsumes("org.foo.*;pmd:*;[1-10]", "org.foo.sub.Bar;pmd:Foo;[2-3,5]")).isTrue();
+    assertThat(subsumes("*Test;*;*", "org.foo.*Test;*;*")).isFalse();
+    assertThat(subsumes("*Test;*;*", "*FooTest;*;*")).isTrue();
+    assertThat(subsumes("*foo*;*;*", "org.foo.*;*;*")).isTrue();
+
+    assertThat(subsumes("*;*;*", "org/foo/Bar;pmd:Foo;[1]")).isFalse();
+    assertThat(subsumes("org.foo.*;pmd:*;[1-10]", "org.foo.Bar;pmd:Foo;[9-11]")).isFalse();
+    assertThat(subsumes("org.foo.*;pmd:*;[1-10]", "org.foo.Bar;pmd:Foo;*")).isFalse();
+    assertThat(subsumes("org.*.Bar;*;*", "org.foo.Bar;pmd:Foo;*")).isTrue();
+    assertThat(subsumes("org.*.Bar;*;*", "org.foo.*;pmd:Foo;*")).isFalse();
+  }
+
+  @Test
+  public void shouldNotChangeDecisions() {
+    List<Pattern> patterns = decode(
+        "org.foo.Bar;pmd:AvoidPrintStackTrace;[5]\n" +
+          "*;pmd:Avoid*;[1-7]\n" +
+          "org.foo.*;pmd:Avoid*;[1-10]\n" +
+          "org.foo.Bar;checkstyle:MagicNumber;[5]\n" +
+          "org.foo.Bar;checkstyle:MagicNumber;[7-8]\n" +
+          "org.*;checkstyle:*;[1-10]\n" +
+          "org.foo.Hello;checkstyle:MagicNumber;[5-12]\n");
+    PatternMatcher raw = PatternMatcher.of(patterns);
+    PatternMatcher normalized = PatternMatcher.of(PatternNormalizer.normalize(patterns));
+
+    for (String resourceKey : new String[] {"org.foo.Bar", "org.foo.Hello", "org.Bar", "com.Bar"}) {
+      for (Rule rule : new Rule[] {Rule.create("pmd", "AvoidPrintStackTrace", ""), Rule.create("checkstyle", "MagicNumber", "")}) {
+        for (Integer line : new Integer[] {null, 1, 5, 6, 7, 8, 9, 10, 11, 12, 13}) {
+          Violation violation = Violation.create(rule, new JavaFile(resourceKey)).setLineId(line);
+          assertThat(normalized.match(violation) != null).as(violation.toString()).isEqualTo(raw.match(violation) != null);
+        }
+      }
+    }
+  }
+
+  private static boolean subsumes(String broader, String narrower) {
+    return PatternNormalizer.subsumes(decode(broader).get(0), decode(narrower).get(0));
+  }
+
+  private static List<Pattern> decode(String patterns) {
+    return new PatternDecoder().decode(patterns);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.Violation;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PatternTableTest {
+
+  @Test
+  public void shouldTakeSameDecisionsAsSourcePatterns() {
+    Random random = new Random(11);
+    List<Pattern> patterns = Lists.newArrayList();
+    String[] resourceKeys = {"org.foo.Bar", "org.foo.*", "*Bar", "**", "org.*.?ar"};
+    String[] ruleKeys = {"checkstyle:MagicNumber", "checkstyle:*", "*", "pmd:*"};
+    for (int i = 0; i < 200; i++) {
+      Pattern pattern = new Pattern(resourceKeys[random.nextInt(resourceKeys.length)], ruleKeys[random.nextInt(ruleKeys.length)]);
+      if (random.nextInt(4) == 0) {
+        pattern.setCheckLines(false);
+      }
+      for (int r = random.nextInt(12); r > 0; r--) {
+        int from = random.nextInt(100);
+        if (random.nextBoolean()) {
+          pattern.addLine(from);
+        } else {
+          pattern.addLineRange(from, from + random.nextInt(20));
+        }
+      }
+      patterns.add(pattern.setOrdinal(i));
+    }
+    PatternTable table = PatternTable.of(patterns);
+
+    assertThat(table.size()).isEqualTo(patterns.size());
+    Rule[] rules = {Rule.create("checkstyle", "MagicNumber", ""), Rule.create("pmd", "Foo", ""), null};
+    JavaFile[] resources = {new JavaFile("org.foo.Bar"), new JavaFile("org.other.Bar"), new JavaFile("org.foo.Hello")};
+    for (int i = 0; i < patterns.size(); i++) {
+      Pattern pattern = patterns.get(i);
+      Pattern view = table.getPatterns().get(i);
+      assertThat(view.isView()).isTrue();
+      assertThat(view.getOrdinal()).isEqualTo(i);
+      assertThat(view.isCheckLines()).isEqualTo(pattern.isCheckLines());
+      if (pattern.isCheckLines()) {
+        assertThat(view.getMergedLineRanges()).isEqualTo(pattern.getMergedLineRanges());
+        assertThat(view.getAllLines()).isEqualTo(Sets.newTreeSet(pattern.getAllLines()));
+      }
+      for (int n = 0; n < 50; n++) {
+        Violation violation = Violation.create(rules[random.nextInt(rules.length)], resources[random.nextInt(resources.length)]);
+        if (random.nextInt(5) > 0) {
+          violation.setLineId(random.nextInt(130));
+        }
+        assertThat(view.match(violation)).as(pattern + " " + violation).isEqualTo(pattern.match(violation));
+        if (pattern.match(violation)) {
+          long code = view.exclusionCode(violation, ExclusionCode.KIND_MULTICRITERIA);
+          assertThat(ExclusionCode.ordinal(code)).isEqualTo(i);
+          if (violation.getLineId() != null && pattern.isCheckLines()) {
+            assertThat(ExclusionCode.from(code) <= violation.getLineId() && violation.getLineId() <= ExclusionCode.to(code)).isTrue();
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldShareKeyPatternsAndMatchers() {
+    PatternTable table = PatternTable.of(Lists.newArrayList(
+        new Pattern(new String("org.foo.*"), "checkstyle:*"),
+        new Pattern(new String("org.foo.*"), "pmd:*")));
+
+    Pattern first = table.getPatterns().get(0);
+    Pattern second = table.getPatterns().get(1);
+    assertThat(second.getResourceMatcher()).isSameAs(first.getResourceMatcher());
+    assertThat(second.getResourceKeyPattern()).isSameAs(first.getResourceKeyPattern());
+    assertThat(second.getRuleMatcher()).isNotSameAs(first.getRuleMatcher());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void viewsShouldBeImmutable() {
+    PatternTable.of(Lists.newArrayList(new Pattern("*", "*"))).getPatterns().get(0).addLine(3);
+  }
+
+  @Test
+  public void shouldPrintViews() {
+    Pattern pattern = new Pattern("org.foo.Bar", "checkstyle:*").addLine(3).addLineRange(5, 10);
+
+    assertThat(PatternTable.of(Lists.newArrayList(pattern)).getPatterns().get(0).toString()).isEqualTo(
+        "Pattern[resourcePattern=org.foo.Bar,rulePattern=checkstyle:*,lines=[],lineRanges=[[3-3], [5-10]],beginBlockRegexp=<null>,"
+          + "endBlockRegexp=<null>,allFileRegexp=<null>,checkLines=true]");
+  }
+
+  /**
+   * Patterns as decoded from a configuration have their own strings, matchers and sets of lines: in a table, the
+   * matchers of the same key pattern are shared and the lines are merged into the pool of ranges.
+   */
+  @Test
+  public void shouldShareMatchersAndPoolRangesOfManyPatterns() {
+    int count = 1000;
+    PatternTable table = PatternTable.of(newPatterns(count));
+
+    Set<GlobMatcher> resourceMatchers = Sets.newIdentityHashSet();
+    Set<GlobMatcher> ruleMatchers = Sets.newIdentityHashSet();
+    for (int i = 0; i < count; i++) {
+      Pattern view = table.getPatterns().get(i);
+      resourceMatchers.add(view.getResourceMatcher());
+      ruleMatchers.add(view.getRuleMatcher());
+      // the line 25 and the range [10-20] are merged into two ranges of the pool
+      assertThat(table.getRangeCount(i)).isEqualTo(2);
+      assertThat(table.getLineRanges(i)).containsExactly(new LineRange(10, 20), new LineRange(25, 25));
+    }
+    assertThat(table.size()).isEqualTo(count);
+    assertThat(resourceMatchers).hasSize(count);
+    assertThat(ruleMatchers).hasSize(50);
+  }
+
+  private static List<Pattern> newPatterns(int count) {
+    List<Pattern> patterns = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      // as decoded, each pattern has its own strings
+      Pattern pattern = new Pattern("org.foo.package" + (i % 1000) + ".File" + i, "checkstyle:Rule" + (i % 50));
+      patterns.add(pattern.addLineRange(10, 20).addLine(25));
+    }
+    return patterns;
+  }
+}
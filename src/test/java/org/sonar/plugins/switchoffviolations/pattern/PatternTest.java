@@ -25,6 +25,7 @@ import org.sonar.api.resources.JavaFile;
 import org.sonar.api.resources.Resource;
 import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.Violation;
+import org.sonar.api.utils.WildcardPattern;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -43,6 +44,14 @@ public class PatternTest {
     assertThat(pattern.matchLine(6599)).isFalse();
   }
 
+  @Test
+  public void shouldMergeLineRanges() {
+    Pattern pattern = new Pattern("*", "*");
+    pattern.addLine(3).addLine(4).addLineRange(10, 20).addLineRange(15, 30).addLine(31).addLine(40).addLineRange(1, 2);
+
+    assertThat(pattern.getMergedLineRanges()).containsExactly(new LineRange(1, 4), new LineRange(10, 31), new LineRange(40, 40));
+  }
+
   @Test
   public void shouldMatchJavaFile() {
     JavaFile javaFile = new JavaFile("org.foo.Bar");
@@ -59,6 +68,21 @@ public class PatternTest {
     assertThat(new Pattern("org.*.??ar", "*").matchResource(mock(Resource.class))).isFalse();
   }
 
+  @Test
+  public void shouldCompareKeysWithoutWildcardAsStrings() {
+    Pattern pattern = new Pattern("org.foo.Bar", "checkstyle:IllegalRegexp");
+    assertThat(pattern.isLiteralResourceKey()).isTrue();
+    assertThat(pattern.isLiteralRuleKey()).isTrue();
+    assertThat(new Pattern("org.foo.*", "checkstyle:*").isLiteralResourceKey()).isFalse();
+    assertThat(new Pattern("src/foo.php", "*").isLiteralResourceKey()).isFalse();
+
+    for (String key : new String[] {"org.foo.Bar", "/org.foo.Bar/", "org.foo.Bar/", "org.foo.BarX", "org.foo.bar", "org.foo.Ba", "//org.foo.Bar"}) {
+      Resource<?> resource = new JavaFile(key);
+      assertThat(pattern.matchResource(resource)).as(key).isEqualTo(WildcardPattern.create("org.foo.Bar").match(resource.getKey()));
+    }
+    assertThat(pattern.getResourcePattern().toString()).isEqualTo("org.foo.Bar");
+  }
+
   @Test
   public void shouldMatchRule() {
     Rule rule = Rule.create("checkstyle", "IllegalRegexp", "");
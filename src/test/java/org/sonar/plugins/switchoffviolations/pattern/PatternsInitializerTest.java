@@ -20,12 +20,18 @@
 
 package org.sonar.plugins.switchoffviolations.pattern;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
+import org.sonar.api.resources.JavaFile;
 import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.api.rules.Violation;
 import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.switchoffviolations.Constants;
 import org.sonar.plugins.switchoffviolations.SwitchOffViolationsPlugin;
@@ -33,6 +39,8 @@ import org.sonar.test.TestUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.Set;
 
 import static org.fest.assertions.Assertions.assertThat;
@@ -46,6 +54,9 @@ public class PatternsInitializerTest {
   private Settings settings;
   private ProjectFileSystem projectFileSystem = mock(ProjectFileSystem.class);
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Before
   public void init() {
     settings = new Settings(new PropertyDefinitions(new SwitchOffViolationsPlugin()));
@@ -58,6 +69,63 @@ public class PatternsInitializerTest {
     assertThat(patternsInitializer.getMulticriteriaPatterns().size()).isEqualTo(0);
   }
 
+  @Test
+  public void shouldLearnPatternOrderForEachModule() {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;*;*\norg.*;checkstyle:MagicNumber;[15-200]");
+    patternsInitializer.initPatterns();
+    assertThat(patternsInitializer.getMulticriteriaMatcher().getAdaptiveOrder()).isNull();
+
+    settings.setProperty(Constants.ADAPTIVE_ORDER_KEY, true);
+    patternsInitializer.initPatterns();
+    AdaptivePatternOrder order = patternsInitializer.getMulticriteriaMatcher().getAdaptiveOrder();
+    assertThat(order).isNotNull();
+
+    PatternsInitializer otherModule = new PatternsInitializer(settings, projectFileSystem);
+    otherModule.initPatterns();
+    assertThat(otherModule.getMulticriteriaMatcher().getAdaptiveOrder()).isNotSameAs(order);
+  }
+
+  @Test
+  public void shouldCompileMatcherOncePerConfiguration() {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;*;*\norg.*;checkstyle:*;[15-200]");
+    settings.setProperty(Constants.COMPILED_MATCHER_KEY, true);
+    patternsInitializer.initPatterns();
+    PatternMatcher matcher = patternsInitializer.getMulticriteriaMatcher();
+    assertThat(matcher.getFlatMatcher()).isNotNull();
+
+    PatternsInitializer otherModule = new PatternsInitializer(settings, projectFileSystem);
+    otherModule.initPatterns();
+    assertThat(otherModule.getMulticriteriaMatcher()).isSameAs(matcher);
+  }
+
+  @Test
+  public void shouldEvaluateApplicablePatternsWithConfiguredMatcher() {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;*;*\norg.*;checkstyle:*;[15-200]");
+    JavaFile file = new JavaFile("org.foo.Bar");
+
+    patternsInitializer.initPatterns();
+    assertThat(patternsInitializer.computeApplicablePatterns(file).getMatcher()).isSameAs(patternsInitializer.getMulticriteriaMatcher());
+
+    settings.setProperty(Constants.ADAPTIVE_ORDER_KEY, true);
+    patternsInitializer.initPatterns();
+    PatternMatcher adaptiveMatcher = patternsInitializer.getMulticriteriaMatcher();
+    assertThat(patternsInitializer.computeApplicablePatterns(file).getMatcher()).isSameAs(adaptiveMatcher);
+    assertThat(adaptiveMatcher.getAdaptiveOrder()).isNotNull();
+
+    settings.setProperty(Constants.COMPILED_MATCHER_KEY, true);
+    patternsInitializer.initPatterns();
+    PatternMatcher compiledMatcher = patternsInitializer.getMulticriteriaMatcher();
+    assertThat(patternsInitializer.computeApplicablePatterns(file).getMatcher()).isSameAs(compiledMatcher);
+    assertThat(compiledMatcher.getFlatMatcher()).isNotNull();
+  }
+
+  @Test
+  public void shouldNotFindExclusionsOfNullResource() {
+    assertThat(patternsInitializer.getExtraPattern(null)).isNull();
+    assertThat(patternsInitializer.getRuleExclusions(null)).isNull();
+    assertThat(patternsInitializer.getApplicablePatterns(null)).isNull();
+  }
+
   @Test
   public void shouldUsePatternsPluginParameter() {
     settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]");
@@ -86,6 +154,56 @@ public class PatternsInitializerTest {
     assertThat(patternsInitializer.getMulticriteriaPatterns().size()).isEqualTo(3);
   }
 
+  @Test
+  public void shouldShareTheSnapshotOfIdenticalConfigurations() {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]");
+    patternsInitializer.initPatterns();
+
+    Settings otherModuleSettings = new Settings(new PropertyDefinitions(new SwitchOffViolationsPlugin()));
+    otherModuleSettings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;*;*\norg.foo.Hello;checkstyle:MagicNumber;[15-200]");
+    otherModuleSettings.setProperty("sonar.projectKey", "other");
+    PatternsInitializer otherModule = new PatternsInitializer(otherModuleSettings, projectFileSystem);
+
+    assertThat(otherModule.getMulticriteriaPatterns()).isSameAs(patternsInitializer.getMulticriteriaPatterns());
+  }
+
+  @Test
+  public void shouldNotShareTheSnapshotOfDifferentConfigurations() {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Bar;*;*");
+    patternsInitializer.initPatterns();
+    List<Pattern> patterns = patternsInitializer.getMulticriteriaPatterns();
+
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.Hello;*;*");
+    patternsInitializer.initPatterns();
+
+    assertThat(patternsInitializer.getMulticriteriaPatterns()).isNotSameAs(patterns);
+    assertThat(patternsInitializer.getMulticriteriaPatterns().get(0).getResourcePattern().toString()).isEqualTo("org.foo.Hello");
+  }
+
+  @Test
+  public void shouldReloadConfigurationFileWhenItsContentChanges() throws IOException {
+    File file = temp.newFile("filter.txt");
+    FileUtils.writeStringToFile(file, "org.foo.Bar;*;*");
+    settings.setProperty(Constants.LOCATION_PARAMETER_KEY, file.getCanonicalPath());
+    patternsInitializer.initPatterns();
+    assertThat(patternsInitializer.getMulticriteriaPatterns()).hasSize(1);
+
+    FileUtils.writeStringToFile(file, "org.foo.Bar;*;*\norg.foo.Hello;*;*");
+    patternsInitializer.initPatterns();
+
+    assertThat(patternsInitializer.getMulticriteriaPatterns()).hasSize(2);
+  }
+
+  @Test
+  public void shouldLoadCompiledConfigurationFile() throws IOException {
+    File compiledFile = new File(temp.getRoot(), "filter.sovp");
+    CompiledPatterns.compile(TestUtils.getResource(getClass(), "filter.txt"), compiledFile);
+    settings.setProperty(Constants.LOCATION_PARAMETER_KEY, compiledFile.getCanonicalPath());
+    patternsInitializer.initPatterns();
+
+    assertThat(patternsInitializer.getMulticriteriaPatterns().size()).isEqualTo(3);
+  }
+
   @Test
   public void shouldUsePatternsPluginParameterBeforeConfigurationFile() throws IOException {
     // filter.txt defines 2 patterns
@@ -178,4 +296,218 @@ public class PatternsInitializerTest {
     assertThat(patternsInitializer.getBlockPatterns().size()).isEqualTo(0);
     assertThat(patternsInitializer.getAllFilePatterns().size()).isEqualTo(2);
   }
+
+  @Test
+  public void shouldReturnRuleMarkerPattern() {
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY, "1,2");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".1." + Constants.MARKER_REGEXP, "switchoff\\(([^)]*)\\)");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".2." + Constants.MARKER_REGEXP, "(NOSONAR)\\(([^)]*)\\)");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".2." + Constants.END_MARKER_REGEXP, "// ON");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".2." + Constants.RULE_KEY_GROUP, "2");
+    patternsInitializer.initPatterns();
+
+    assertThat(patternsInitializer.getMulticriteriaPatterns().size()).isEqualTo(0);
+    assertThat(patternsInitializer.getRuleMarkerPatterns().size()).isEqualTo(2);
+    RuleMarkerPattern first = patternsInitializer.getRuleMarkerPatterns().get(0);
+    assertThat(first.getEndMarkerRegexp()).isEmpty();
+    assertThat(first.getRuleKeyGroup()).isEqualTo(1);
+    RuleMarkerPattern second = patternsInitializer.getRuleMarkerPatterns().get(1);
+    assertThat(second.getEndMarkerRegexp()).isEqualTo("// ON");
+    assertThat(second.getRuleKeyGroup()).isEqualTo(2);
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailIfRuleKeyGroupIsNotANumber() {
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY, "1");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".1." + Constants.MARKER_REGEXP, "switchoff\\(([^)]*)\\)");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".1." + Constants.RULE_KEY_GROUP, "one");
+    patternsInitializer.initPatterns();
+  }
+
+  @Test
+  public void shouldReturnRuleExclusionsForResource() {
+    org.sonar.api.resources.File file = new org.sonar.api.resources.File("foo");
+    RuleLineExclusions ruleExclusions = new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(12, 12));
+    patternsInitializer.addRuleExclusions(file, ruleExclusions);
+
+    assertThat(patternsInitializer.getRuleExclusions(file)).isSameAs(ruleExclusions);
+    assertThat(patternsInitializer.getRuleExclusions(new org.sonar.api.resources.File("bar"))).isNull();
+  }
+
+  @Test
+  public void shouldStoreScanExclusionsOutsideOfHeap() throws Exception {
+    Settings offHeapSettings = new Settings();
+    offHeapSettings.setProperty(Constants.OFF_HEAP_EXCLUSIONS_KEY, true);
+    when(projectFileSystem.getSonarWorkingDirectory()).thenReturn(temp.newFolder("work"));
+    PatternsInitializer offHeap = new PatternsInitializer(offHeapSettings, projectFileSystem);
+    JavaFile blockFile = new JavaFile("org.foo.Block");
+    JavaFile generatedFile = new JavaFile("org.foo.Generated");
+    org.sonar.api.rules.Rule rule = org.sonar.api.rules.Rule.create("pmd", "AvoidPrintStackTrace", "");
+
+    offHeap.addPatternToExcludeLines(blockFile, Sets.newHashSet(new LineRange(3, 5)));
+    offHeap.addPatternToExcludeResource(generatedFile);
+
+    assertThat(offHeap.getExtraPattern(blockFile)).isNull();
+    assertThat(ExclusionCode.toString(offHeap.explainMappedExclusion(Violation.create(rule, blockFile).setLineId(4)))).isEqualTo("block on lines [3-5]");
+    assertThat(offHeap.explainMappedExclusion(Violation.create(rule, blockFile).setLineId(6))).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(offHeap.explainMappedExclusion(Violation.create((org.sonar.api.rules.Rule) null, blockFile).setLineId(4))).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(ExclusionCode.kind(offHeap.explainMappedExclusion(Violation.create(rule, generatedFile)))).isEqualTo(ExclusionCode.KIND_ALL_FILE);
+    assertThat(patternsInitializer.explainMappedExclusion(Violation.create(rule, generatedFile))).isEqualTo(ExclusionCode.NOT_IGNORED);
+
+    offHeap.stop();
+    assertThat(offHeap.explainMappedExclusion(Violation.create(rule, generatedFile))).isEqualTo(ExclusionCode.NOT_IGNORED);
+  }
+
+  @Test
+  public void shouldStoreRuleExclusionsAndApplicablePatternsOutsideOfHeap() throws Exception {
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;*;*\norg.bar.Baz;pmd:*;[1-2]");
+    settings.setProperty(Constants.OFF_HEAP_EXCLUSIONS_KEY, true);
+    when(projectFileSystem.getSonarWorkingDirectory()).thenReturn(temp.newFolder("work"));
+    PatternsInitializer offHeap = new PatternsInitializer(settings, projectFileSystem);
+    JavaFile file = new JavaFile("org.foo.Bar");
+    JavaFile otherFile = new JavaFile("org.foo.Other");
+    org.sonar.api.rules.Rule rule = org.sonar.api.rules.Rule.create("pmd", "AvoidPrintStackTrace", "");
+
+    offHeap.addRuleExclusions(file, new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(12, 14)));
+    ApplicablePatterns applicablePatterns = offHeap.computeApplicablePatterns(file);
+    offHeap.computeApplicablePatterns(otherFile);
+
+    assertThat(offHeap.getRuleExclusions(file)).isNull();
+    assertThat(ExclusionCode.toString(offHeap.explainMappedRuleExclusion(Violation.create(rule, file).setLineId(13)))).isEqualTo("rule marker on lines [12-14]");
+    assertThat(offHeap.explainMappedRuleExclusion(Violation.create(rule, file).setLineId(15))).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(offHeap.explainMappedRuleExclusion(Violation.create(rule, otherFile).setLineId(13))).isEqualTo(ExclusionCode.NOT_IGNORED);
+    assertThat(offHeap.getApplicablePatterns(file)).isEqualTo(applicablePatterns);
+    assertThat(offHeap.getApplicablePatterns(otherFile)).isSameAs(offHeap.getApplicablePatterns(file));
+    assertThat(offHeap.getApplicablePatterns(new JavaFile("org.foo.Unknown"))).isNull();
+    assertThat(offHeap.getScannedFileCount()).isEqualTo(0);
+
+    offHeap.stop();
+    assertThat(offHeap.getApplicablePatterns(file)).isNull();
+  }
+
+  @Test
+  public void shouldIdentifyManyDistinctApplicablePatternsOutsideOfHeap() throws Exception {
+    StringBuilder patterns = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      patterns.append("org.foo.package").append(i).append(".*;*;*\n");
+    }
+    settings.setProperty(Constants.PATTERNS_PARAMETER_KEY, patterns.toString());
+    settings.setProperty(Constants.OFF_HEAP_EXCLUSIONS_KEY, true);
+    when(projectFileSystem.getSonarWorkingDirectory()).thenReturn(temp.newFolder("work"));
+    PatternsInitializer offHeap = new PatternsInitializer(settings, projectFileSystem);
+
+    List<ApplicablePatterns> computed = Lists.newArrayList();
+    for (int i = 0; i < 40; i++) {
+      computed.add(offHeap.computeApplicablePatterns(new JavaFile("org.foo.package" + i + ".Bar")));
+    }
+    for (int i = 0; i < 40; i++) {
+      assertThat(offHeap.getApplicablePatterns(new JavaFile("org.foo.package" + i + ".Bar"))).isEqualTo(computed.get(i));
+    }
+    offHeap.stop();
+  }
+
+  /**
+   * Outside of the heap, the maps of the scan state stay empty whatever the number of files, so that the millions of
+   * files of a big repository do not exhaust a small heap.
+   */
+  @Test
+  public void shouldNotRetainScanStateOnHeapOutsideOfHeap() throws Exception {
+    when(projectFileSystem.getSonarWorkingDirectory()).thenReturn(temp.newFolder("work"));
+    int fileCount = 1000;
+    PatternsInitializer onHeap = scanFiles(false, fileCount);
+    PatternsInitializer offHeap = scanFiles(true, fileCount);
+
+    assertThat(onHeap.getScannedFileCount()).isEqualTo(fileCount);
+    assertThat(onHeap.estimateRetainedBytes()).isGreaterThan(0);
+    assertThat(onHeap.getMappedExclusionCount()).isEqualTo(0);
+
+    assertThat(offHeap.getScannedFileCount()).isEqualTo(0);
+    assertThat(offHeap.estimateRetainedBytes()).isEqualTo(0);
+    // applicable patterns and exclusions of each file
+    assertThat(offHeap.getMappedExclusionCount()).isEqualTo(2 * fileCount);
+    assertThat(offHeap.getApplicablePatterns(new JavaFile("org.foo.package1.File1"))).isNotNull()
+      .isSameAs(offHeap.getApplicablePatterns(new JavaFile("org.foo.package1.File11")));
+
+    onHeap.stop();
+    offHeap.stop();
+    assertThat(offHeap.getMappedExclusionCount()).isEqualTo(0);
+  }
+
+  private PatternsInitializer scanFiles(boolean offHeapExclusions, int fileCount) {
+    Settings offHeapSettings = new Settings();
+    offHeapSettings.setProperty(Constants.PATTERNS_PARAMETER_KEY, "org.foo.*;checkstyle:*;*\norg.foo.package1.*;pmd:*;[1-10]");
+    offHeapSettings.setProperty(Constants.OFF_HEAP_EXCLUSIONS_KEY, offHeapExclusions);
+    PatternsInitializer initializer = new PatternsInitializer(offHeapSettings, projectFileSystem);
+    for (int i = 0; i < fileCount; i++) {
+      JavaFile resource = new JavaFile("org.foo.package" + (i % 10) + ".File" + i);
+      initializer.computeApplicablePatterns(resource);
+      if (i % 2 == 0) {
+        initializer.addPatternToExcludeLines(resource, Sets.newHashSet(new LineRange(3, 5)));
+      } else {
+        initializer.addRuleExclusions(resource, new RuleLineExclusions().add("pmd:Foo", new LineRange(1, 2)));
+      }
+    }
+    return initializer;
+  }
+
+  @Test
+  public void shouldIndexExclusionsByInternedResourceKey() {
+    patternsInitializer.addPatternToExcludeLines(new JavaFile(new String("org.foo.Bar")), Sets.newHashSet(new LineRange(3, 5)));
+    patternsInitializer.addRuleExclusions(new JavaFile(new String("org.foo.Bar")), new RuleLineExclusions().add("pmd:Foo", new LineRange(1, 2)));
+
+    JavaFile sameFile = new JavaFile("org.foo.Bar");
+    Pattern extraPattern = patternsInitializer.getExtraPattern(sameFile);
+    assertThat(extraPattern.getLineRanges()).containsOnly(new LineRange(3, 5));
+    assertThat(patternsInitializer.getRuleExclusions(sameFile)).isNotNull();
+    assertThat(patternsInitializer.getScannedFileCount()).isEqualTo(1);
+    assertThat(patternsInitializer.getExtraPattern(new JavaFile("org.foo.Other"))).isNull();
+  }
+
+  @Test
+  public void shouldNotRetainResources() {
+    JavaFile resource = new JavaFile("org.foo.Bar");
+    WeakReference<JavaFile> reference = new WeakReference<JavaFile>(resource);
+    patternsInitializer.addPatternToExcludeResource(resource);
+    patternsInitializer.computeApplicablePatterns(resource);
+    resource = null;
+
+    for (int i = 0; i < 10 && reference.get() != null; i++) {
+      System.gc();
+    }
+
+    assertThat(reference.get()).isNull();
+    assertThat(patternsInitializer.getExtraPattern(new JavaFile("org.foo.Bar"))).isNotNull();
+  }
+
+  @Test
+  public void shouldReleaseScanState() {
+    JavaFile resource = new JavaFile("org.foo.Bar");
+    patternsInitializer.addPatternToExcludeResource(resource);
+    patternsInitializer.addRuleExclusions(resource, new RuleLineExclusions().add("pmd:Foo", new LineRange(1, 2)));
+    patternsInitializer.computeApplicablePatterns(resource);
+    assertThat(patternsInitializer.estimateRetainedBytes()).isGreaterThan(0);
+
+    patternsInitializer.releaseScanState();
+
+    assertThat(patternsInitializer.getExtraPattern(resource)).isNull();
+    assertThat(patternsInitializer.getRuleExclusions(resource)).isNull();
+    assertThat(patternsInitializer.getApplicablePatterns(resource)).isNull();
+    assertThat(patternsInitializer.getScannedFileCount()).isEqualTo(0);
+    assertThat(patternsInitializer.estimateRetainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReleaseInternedKeys() {
+    String key = new String("org.foo.Released");
+    WeakReference<String> reference = new WeakReference<String>(key);
+    patternsInitializer.addPatternToExcludeResource(new JavaFile(key));
+    key = null;
+
+    patternsInitializer.releaseScanState();
+    for (int i = 0; i < 10 && reference.get() != null; i++) {
+      System.gc();
+    }
+
+    assertThat(reference.get()).isNull();
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+import org.sonar.api.utils.WildcardPattern;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ResourceKeyTrieTest {
+
+  private static final String[] PATTERNS = {"com.acme.legacy.*", "com.acme.*.Foo", "com.acme.legacy.Bar", "com.*", "**/generated/**",
+    "/src/main/**", "src\\test\\*.php", "*", "com.acme.leg?cy.*", "**", "src/*/foo/*.java", "?om.acme.*", "com.acme.legacy.**"};
+
+  private static final String[] KEYS = {"com.acme.legacy.Foo", "com.acme.legacy.sub.Foo", "com.acme.Foo", "com.acme.legacy.Bar", "com.acme.legacy",
+    "com", "org.acme.legacy.Foo", "src/main/java/Foo.java", "/src/main/java/Foo.java/", "src/generated/Foo.java", "src/test/foo.php",
+    "src/test/sub/foo.php", "src/java/foo/Bar.java", "com/acme/legacy/Foo", "", "/"};
+
+  @Test
+  public void shouldIndexLiteralSegments() {
+    assertThat(ResourceKeyTrie.literalSegments("com.acme.legacy.*")).containsExactly("com.", "acme.", "legacy.");
+    assertThat(ResourceKeyTrie.literalSegments("com.acme.leg*")).containsExactly("com.", "acme.");
+    assertThat(ResourceKeyTrie.literalSegments("/src\\main/**")).containsExactly("src/", "main/");
+    assertThat(ResourceKeyTrie.literalSegments("**/generated/**")).isEmpty();
+    assertThat(ResourceKeyTrie.literalSegments("com.acme.Foo")).containsExactly("com.", "acme.");
+  }
+
+  @Test
+  public void shouldKeepPatternsStartingWithWildcardsApart() {
+    ResourceKeyTrie trie = newTrie();
+
+    assertThat(trie.size()).isEqualTo(PATTERNS.length);
+    assertThat(trie.getResidualPatterns()).hasSize(4);
+  }
+
+  @Test
+  public void shouldGiveAllThePatternsWhichMatch() {
+    ResourceKeyTrie trie = newTrie();
+
+    for (String key : KEYS) {
+      List<Pattern> candidates = trie.candidates(key);
+      for (String pattern : PATTERNS) {
+        if (WildcardPattern.create(pattern).match(key)) {
+          boolean found = false;
+          for (Pattern candidate : candidates) {
+            found |= candidate.getResourceKeyPattern().equals(pattern);
+          }
+          assertThat(found).as(pattern + " should be a candidate for " + key).isTrue();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldDiscardPatternsOfOtherPackages() {
+    ResourceKeyTrie trie = newTrie();
+
+    List<Pattern> candidates = trie.candidates("org.acme.legacy.Foo");
+    assertThat(candidates).hasSize(4);
+    assertThat(candidates).containsExactly(trie.getResidualPatterns().toArray());
+  }
+
+  @Test
+  public void shouldGiveCandidatesInOrderOfAddition() {
+    List<Pattern> candidates = newTrie().candidates("com.acme.legacy.Foo");
+
+    assertThat(candidates.get(0).getResourceKeyPattern()).isEqualTo("com.acme.legacy.*");
+    assertThat(candidates.get(candidates.size() - 1).getResourceKeyPattern()).isEqualTo("com.acme.legacy.**");
+  }
+
+  @Test
+  public void shouldShareCandidatesOfKeysReachingSameNode() {
+    ResourceKeyTrie trie = newTrie();
+
+    for (String key : KEYS) {
+      int[] shared = trie.sharedCandidateIndexes(key);
+      List<Integer> indexes = trie.candidateIndexes(key);
+      assertThat(shared.length).as(key).isEqualTo(indexes.size());
+      for (int i = 0; i < shared.length; i++) {
+        assertThat(shared[i]).as(key).isEqualTo(indexes.get(i));
+      }
+    }
+    assertThat(trie.sharedCandidateIndexes("com.acme.legacy.Foo")).isSameAs(trie.sharedCandidateIndexes("com.acme.legacy.Bar"));
+  }
+
+  private static ResourceKeyTrie newTrie() {
+    ResourceKeyTrie trie = new ResourceKeyTrie();
+    for (String pattern : PATTERNS) {
+      trie.add(new Pattern(pattern, "*"));
+    }
+    return trie;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import org.junit.Test;
+import org.sonar.api.rules.Rule;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RuleKeysTest {
+
+  @Test
+  public void shouldBuildKeyOncePerRule() {
+    Rule rule = Rule.create("pmd", "AvoidPrintStackTrace", "");
+
+    String key = RuleKeys.of(rule);
+
+    assertThat(key).isEqualTo("pmd:AvoidPrintStackTrace");
+    assertThat(RuleKeys.of(rule)).isSameAs(key);
+    assertThat(RuleKeys.of(null)).isNull();
+  }
+
+  @Test
+  public void shouldBuildKeyAgainWhenRuleIsModified() {
+    Rule rule = Rule.create("pmd", "AvoidPrintStackTrace", "");
+    RuleKeys.of(rule);
+
+    rule.setKey("SystemPrintln");
+
+    assertThat(RuleKeys.of(rule)).isEqualTo("pmd:SystemPrintln");
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.pattern;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ScanStateFootprintTest {
+
+  // map entry + interned key of 11 characters: 40 + (56 + 40 + 2 * 11)
+  private static final long ENTRY_WITH_KEY_BYTES = 158;
+
+  private final Map<String, Pattern> extraPatternByKey = Maps.newHashMap();
+  private final Map<String, RuleLineExclusions> ruleExclusionsByKey = Maps.newHashMap();
+  private final Map<String, ApplicablePatterns> applicablePatternsByKey = Maps.newHashMap();
+
+  @Test
+  public void shouldEstimateNothingWithoutScanState() {
+    assertThat(estimate()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldEstimateApplicablePatterns() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode("org.foo.*;*;*"));
+    applicablePatternsByKey.put("org.foo.Bar", matcher.applicablePatterns("org.foo.Bar"));
+    applicablePatternsByKey.put("com.foo.Bar", ApplicablePatterns.NONE);
+
+    // the applicable patterns of a file are 32 bytes, none are shared
+    assertThat(estimate()).isEqualTo(ENTRY_WITH_KEY_BYTES + 32 + ENTRY_WITH_KEY_BYTES);
+  }
+
+  @Test
+  public void shouldEstimateExtraPatterns() {
+    extraPatternByKey.put("org.foo.Bar", new Pattern("org.foo.Bar", "*", Sets.newHashSet(new LineRange(3, 5), new LineRange(10, 12))));
+
+    // pattern of 360 bytes and 2 ranges of 64 bytes
+    assertThat(estimate()).isEqualTo(ENTRY_WITH_KEY_BYTES + 360 + 2 * 64);
+  }
+
+  @Test
+  public void shouldEstimateRuleExclusions() {
+    ruleExclusionsByKey.put("org.foo.Bar", new RuleLineExclusions()
+      .add("pmd:Foo", new LineRange(1, 2))
+      .add("checkstyle:X", new LineRange(3, 4))
+      .add("checkstyle:X", new LineRange(8, 9)));
+
+    // exclusions of 150 bytes, then for each rule 150 bytes, its key and its ranges of 64 bytes
+    long pmdRuleBytes = 150 + (40 + 2 * 7) + 64;
+    long checkstyleRuleBytes = 150 + (40 + 2 * 12) + 2 * 64;
+    assertThat(estimate()).isEqualTo(ENTRY_WITH_KEY_BYTES + 150 + pmdRuleBytes + checkstyleRuleBytes);
+  }
+
+  @Test
+  public void shouldCountInternedKeysOnce() {
+    PatternMatcher matcher = PatternMatcher.of(new PatternDecoder().decode("org.foo.*;*;*"));
+    applicablePatternsByKey.put("org.foo.Bar", matcher.applicablePatterns("org.foo.Bar"));
+    extraPatternByKey.put("org.foo.Bar", new Pattern("org.foo.Bar", "*", Sets.newHashSet(new LineRange(3, 5))));
+    ruleExclusionsByKey.put("org.foo.Bar", new RuleLineExclusions().add("pmd:Foo", new LineRange(1, 2)));
+    extraPatternByKey.put("org.foo.Baz", new Pattern("org.foo.Baz", "*", Sets.newHashSet(new LineRange(3, 5))));
+    ruleExclusionsByKey.put("org.foo.Baz", new RuleLineExclusions().add("pmd:Foo", new LineRange(1, 2)));
+
+    // the other map entries of a key are 40 bytes
+    long applicablePatternsBytes = ENTRY_WITH_KEY_BYTES + 32;
+    long extraPatternBytes = 360 + 64;
+    long ruleExclusionsBytes = 150 + 150 + (40 + 2 * 7) + 64;
+    assertThat(estimate()).isEqualTo(applicablePatternsBytes + 40 + extraPatternBytes + 40 + ruleExclusionsBytes
+      + ENTRY_WITH_KEY_BYTES + extraPatternBytes + 40 + ruleExclusionsBytes);
+  }
+
+  private long estimate() {
+    return ScanStateFootprint.estimate(extraPatternByKey, ruleExclusionsByKey, applicablePatternsByKey);
+  }
+}
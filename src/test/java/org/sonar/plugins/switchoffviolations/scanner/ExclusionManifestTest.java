@@ -0,0 +1,163 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.pattern.LineRange;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExclusionManifestTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void shouldWriteAndReadManifest() throws IOException {
+    ExclusionManifest manifest = new ExclusionManifest("abc");
+    manifest.add("org.foo.Bar", ScanResult.wholeFile());
+    manifest.add("org.foo.Hello", ScanResult.of(Sets.newHashSet(new LineRange(21, 25)),
+        new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(5, 5))));
+    manifest.add("src/foo.php", ScanResult.NO_EXCLUSION);
+    File file = new File(temp.getRoot(), "target/manifest.txt");
+
+    manifest.write(file);
+
+    assertThat(FileUtils.readLines(file)).containsExactly(ExclusionManifest.HEADER, "# fingerprint abc",
+        "org.foo.Bar\t*;*", "org.foo.Hello\t*;[21-25]\tpmd:AvoidPrintStackTrace;[5-5]", "src/foo.php");
+
+    ExclusionManifest read = ExclusionManifest.read(file);
+    assertThat(read.getFingerprint()).isEqualTo("abc");
+    assertThat(read.getResults().keySet()).containsOnly("org.foo.Bar", "org.foo.Hello", "src/foo.php");
+    assertThat(read.getResults().get("org.foo.Bar").isWholeFile()).isTrue();
+    assertThat(read.getResults().get("org.foo.Hello").getLineRanges()).containsOnly(new LineRange(21, 25));
+    assertThat(read.getResults().get("org.foo.Hello").getRuleExclusions().getLineRanges("pmd:AvoidPrintStackTrace")).containsOnly(new LineRange(5, 5));
+    assertThat(read.getResults().get("src/foo.php").isEmpty()).isTrue();
+  }
+
+  @Test
+  public void shouldFailIfNotAManifest() throws IOException {
+    File file = temp.newFile("manifest.txt");
+    FileUtils.writeStringToFile(file, "org.foo.Bar\t*;*");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("Not an exclusion manifest");
+
+    ExclusionManifest.read(file);
+  }
+
+  @Test
+  public void shouldFailOnInvalidLine() throws IOException {
+    File file = temp.newFile("manifest.txt");
+    FileUtils.writeStringToFile(file, ExclusionManifest.HEADER + "\n# fingerprint abc\norg.foo.Bar\t*;*\norg.foo.Hello\t*;[a]\n");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("Invalid line 4");
+
+    ExclusionManifest.read(file);
+  }
+
+  @Test
+  public void shouldRejectResourceKeysWithSeparator() {
+    thrown.expect(SonarException.class);
+
+    new ExclusionManifest("abc").add("foo\tbar", ScanResult.NO_EXCLUSION);
+  }
+
+  @Test
+  public void shouldRejectResourceKeysAddedTwice() {
+    ExclusionManifest manifest = new ExclusionManifest("abc");
+    manifest.add("org.foo.Bar", ScanResult.wholeFile());
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("The resource org.foo.Bar is listed twice in the exclusion manifest");
+
+    manifest.add("org.foo.Bar", ScanResult.NO_EXCLUSION);
+  }
+
+  @Test
+  public void shouldFailOnDuplicatedLine() throws IOException {
+    File file = temp.newFile("manifest.txt");
+    FileUtils.writeStringToFile(file, ExclusionManifest.HEADER + "\n# fingerprint abc\norg.foo.Bar\t*;*\norg.foo.Bar\n");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("Invalid line 4");
+
+    ExclusionManifest.read(file);
+  }
+
+  @Test
+  public void shouldMergeManifests() throws IOException {
+    File first = writeManifest("first.txt", "abc", "org.foo.Bar");
+    File second = writeManifest("second.txt", "abc", "org.foo.Hello", "src/foo.php");
+
+    ExclusionManifest merged = ExclusionManifest.merge(Arrays.asList(first, second));
+
+    assertThat(merged.getFingerprint()).isEqualTo("abc");
+    assertThat(merged.getResults().keySet()).containsOnly("org.foo.Bar", "org.foo.Hello", "src/foo.php");
+  }
+
+  @Test
+  public void shouldNotMergeManifestsListingTheSameFile() throws IOException {
+    File first = writeManifest("first.txt", "abc", "org.foo.Bar");
+    File second = writeManifest("second.txt", "abc", "org.foo.Hello", "org.foo.Bar");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("The resource org.foo.Bar is listed in both exclusion manifests");
+
+    ExclusionManifest.merge(Arrays.asList(first, second));
+  }
+
+  @Test
+  public void shouldNotMergeManifestsOfDifferentPatterns() throws IOException {
+    File first = writeManifest("first.txt", "abc", "org.foo.Bar");
+    File second = writeManifest("second.txt", "def", "org.foo.Hello");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("were computed with different patterns");
+
+    ExclusionManifest.merge(Arrays.asList(first, second));
+  }
+
+  private File writeManifest(String name, String fingerprint, String... resourceKeys) throws IOException {
+    ExclusionManifest manifest = new ExclusionManifest(fingerprint);
+    for (String resourceKey : resourceKeys) {
+      manifest.add(resourceKey, ScanResult.wholeFile());
+    }
+    File file = new File(temp.getRoot(), name);
+    manifest.write(file);
+    return file;
+  }
+}
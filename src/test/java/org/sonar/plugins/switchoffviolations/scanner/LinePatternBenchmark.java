@@ -0,0 +1,104 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Scan of source lines which mostly do not contain the markers, with and without the required-literal prefilter of
+ * {@link LinePattern}, reported as throughput. Scans generated lines, or the lines of the files of a source tree when its
+ * directory is given. Not run by the build, as timings depend on the machine:
+ * <pre>java -cp ... org.sonar.plugins.switchoffviolations.scanner.LinePatternBenchmark [source directory]</pre>
+ */
+public final class LinePatternBenchmark {
+
+  private static final int LINES = 200000;
+  private static final int ROUNDS = 5;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private LinePatternBenchmark() {
+    // only a main method
+  }
+
+  public static void main(String[] args) throws IOException {
+    String[] regexps = {"@SONAR-IGNORE-\\w+", "NOSONARS?", "SONAR-O[FN]+"};
+    String[] lines = args.length > 0 ? readSourceLines(new File(args[0])) : LinePatternTest.newSourceLines(LINES);
+    long bytes = 0;
+    for (String line : lines) {
+      bytes += line.getBytes(UTF_8).length + 1;
+    }
+    System.out.println("Scanning " + lines.length + " lines, " + bytes + " bytes");
+
+    for (String regexp : regexps) {
+      LinePattern pattern = LinePattern.compile(regexp);
+      java.util.regex.Pattern reference = java.util.regex.Pattern.compile(regexp);
+
+      long withoutPrefilter = Long.MAX_VALUE;
+      long withPrefilter = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        long start = System.nanoTime();
+        int referenceMatches = 0;
+        for (String line : lines) {
+          referenceMatches += reference.matcher(line).find() ? 1 : 0;
+        }
+        withoutPrefilter = Math.min(withoutPrefilter, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int matches = 0;
+        for (String line : lines) {
+          matches += pattern.find(line) ? 1 : 0;
+        }
+        withPrefilter = Math.min(withPrefilter, System.nanoTime() - start);
+
+        if (matches != referenceMatches) {
+          throw new IllegalStateException(regexp + " found " + matches + " lines instead of " + referenceMatches);
+        }
+      }
+
+      System.out.println(String.format("%s: %.3f GB/s without prefilter, %.3f GB/s with prefilter",
+        regexp, gigabytesPerSecond(bytes, withoutPrefilter), gigabytesPerSecond(bytes, withPrefilter)));
+    }
+  }
+
+  private static double gigabytesPerSecond(long bytes, long nanos) {
+    // bytes per nanosecond are gigabytes per second
+    return (double) bytes / Math.max(nanos, 1L);
+  }
+
+  private static String[] readSourceLines(File dir) throws IOException {
+    if (!dir.isDirectory()) {
+      throw new IllegalArgumentException("Not a directory: " + dir);
+    }
+    List<String> lines = Lists.newArrayList();
+    Collection<File> files = FileUtils.listFiles(dir, new String[] {"java", "php", "c", "cpp", "h", "js", "py", "cs", "xml"}, true);
+    for (File file : files) {
+      lines.addAll(FileUtils.readLines(file, UTF_8.name()));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LinePatternTest {
+
+  private static final int SOURCE_LINES = 10000;
+
+  private static final String[] LINES = {
+    "",
+    "// SONAR-OFF",
+    "  // SONAR-ON",
+    " * @SONAR-IGNORE-ALL",
+    "e.printStackTrace(); // switchoff(pmd:AvoidPrintStackTrace)",
+    "int a = 42; // NOSONAR",
+    "SONAR",
+    "// SONAR-OFFSET",
+    "foo.bar.baz"
+  };
+
+  @Test
+  public void shouldUseIndexOfForPlainLiterals() {
+    LinePattern pattern = LinePattern.compile("// SONAR-OFF");
+
+    assertThat(pattern.isLiteral()).isTrue();
+    assertThat(pattern.getRequiredLiteral()).isEqualTo("// SONAR-OFF");
+  }
+
+  @Test
+  public void shouldCompileIdenticalExpressionsOnce() {
+    assertThat(LinePattern.compile("^// NOSONAR-\\d+")).isSameAs(LinePattern.compile("^// NOSONAR-\\d+"));
+  }
+
+  @Test
+  public void shouldExtractRequiredLiteral() {
+    assertThat(LinePattern.extractRequiredLiteral("^\\s*// SONAR-OFF$")).isEqualTo("// SONAR-OFF");
+    assertThat(LinePattern.extractRequiredLiteral("@SONAR-IGNORE-\\w+")).isEqualTo("@SONAR-IGNORE-");
+    assertThat(LinePattern.extractRequiredLiteral("NOSONARS?")).isEqualTo("NOSONAR");
+    assertThat(LinePattern.extractRequiredLiteral("foo\\.bar.*")).isEqualTo("foo.bar");
+    assertThat(LinePattern.extractRequiredLiteral("ab*cd")).isEqualTo("cd");
+    assertThat(LinePattern.extractRequiredLiteral("abc{2}de")).isEqualTo("ab");
+    assertThat(LinePattern.extractRequiredLiteral("[a-z]+-OFF")).isEqualTo("-OFF");
+    assertThat(LinePattern.extractRequiredLiteral("[^\\]]end")).isEqualTo("end");
+  }
+
+  @Test
+  public void shouldNotExtractLiteralFromComplexExpressions() {
+    assertThat(LinePattern.extractRequiredLiteral("SONAR-OFF|SONAR-ON")).isNull();
+    assertThat(LinePattern.extractRequiredLiteral("(SONAR)?-OFF")).isNull();
+    assertThat(LinePattern.extractRequiredLiteral("switchoff\\(([^)]*)\\)")).isNull();
+    assertThat(LinePattern.extractRequiredLiteral("\\x41BC")).isNull();
+    assertThat(LinePattern.extractRequiredLiteral("[a[b]]c")).isNull();
+    assertThat(LinePattern.extractRequiredLiteral(".*")).isNull();
+  }
+
+  @Test
+  public void shouldFindLikeRegularExpressions() {
+    String[] regexps = {"// SONAR-OFF", "SONAR-O[FN]+", "^\\s*// SONAR", "@SONAR-IGNORE-\\w+", "NOSONARS?", "switchoff\\(([^)]*)\\)",
+      "OFF$", "foo\\.bar.*", "x*", "", "SONAR|bar"};
+    for (String regexp : regexps) {
+      LinePattern pattern = LinePattern.compile(regexp);
+      java.util.regex.Pattern reference = java.util.regex.Pattern.compile(regexp);
+      for (String line : LINES) {
+        boolean expected = reference.matcher(line).find();
+        assertThat(pattern.find(line)).as(regexp + " on " + line).isEqualTo(expected);
+        if (expected) {
+          assertThat(pattern.mayMatch(line)).isTrue();
+        }
+      }
+    }
+  }
+
+  /**
+   * Source lines which mostly do not contain the markers, so that most of them are rejected by the required-literal
+   * prefilter. The timing of this scan is measured by {@link LinePatternBenchmark}.
+   */
+  @Test
+  public void shouldScanLikeRegularExpressionsWithRequiredLiteral() {
+    String[] regexps = {"@SONAR-IGNORE-\\w+", "NOSONARS?", "SONAR-O[FN]+"};
+    String[] lines = newSourceLines(SOURCE_LINES);
+    for (String regexp : regexps) {
+      LinePattern pattern = LinePattern.compile(regexp);
+      java.util.regex.Pattern reference = java.util.regex.Pattern.compile(regexp);
+      assertThat(pattern.getRequiredLiteral()).isNotNull();
+
+      int matches = 0;
+      for (String line : lines) {
+        boolean expected = reference.matcher(line).find();
+        assertThat(pattern.find(line)).as(regexp + " on " + line).isEqualTo(expected);
+        matches += expected ? 1 : 0;
+      }
+      assertThat(matches).isEqualTo(SOURCE_LINES / 1000);
+    }
+  }
+
+  static String[] newSourceLines(int count) {
+    String[] lines = new String[count];
+    for (int i = 0; i < count; i++) {
+      if (i % 1000 == 0) {
+        lines[i] = "  // SONAR-OFF @SONAR-IGNORE-ALL NOSONAR";
+      } else {
+        lines[i] = "    int value" + i + " = computeSomething(argument" + (i % 17) + ", \"some text\"); // comment " + i;
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  public void shouldPrintRegularExpression() {
+    assertThat(LinePattern.compile("NOSONARS?").toString()).isEqualTo("NOSONARS?");
+  }
+}
@@ -20,22 +20,45 @@
 
 package org.sonar.plugins.switchoffviolations.scanner;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.sonar.api.config.Settings;
 import org.sonar.api.resources.JavaFile;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+import org.sonar.plugins.switchoffviolations.EventLog;
+import org.sonar.plugins.switchoffviolations.ExclusionMetrics;
 import org.sonar.plugins.switchoffviolations.pattern.LineRange;
 import org.sonar.plugins.switchoffviolations.pattern.Pattern;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
+import org.sonar.plugins.switchoffviolations.pattern.RuleMarkerPattern;
 import org.sonar.test.TestUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -45,6 +68,9 @@ public class RegexpScannerTest {
 
   private RegexpScanner regexpScanner;
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   private JavaFile javaFile;
   @Mock
   private PatternsInitializer patternsInitializer;
@@ -66,10 +92,12 @@ public class RegexpScannerTest {
     when(blockPattern2.getEndBlockRegexp()).thenReturn("// FOO-ON");
     when(patternsInitializer.getAllFilePatterns()).thenReturn(Arrays.asList(allFilePattern));
     when(patternsInitializer.getBlockPatterns()).thenReturn(Arrays.asList(blockPattern1, blockPattern2));
+    when(patternsInitializer.getRuleMarkerPatterns()).thenReturn(Collections.<RuleMarkerPattern>emptyList());
 
-    regexpScanner = new RegexpScanner(patternsInitializer);
+    regexpScanner = new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null));
     verify(patternsInitializer, times(1)).getAllFilePatterns();
     verify(patternsInitializer, times(1)).getBlockPatterns();
+    verify(patternsInitializer, times(1)).getRuleMarkerPatterns();
 
     javaFile = new JavaFile("org.sonar.test.MyFile");
   }
@@ -148,4 +176,223 @@ public class RegexpScannerTest {
     verifyNoMoreInteractions(patternsInitializer);
   }
 
+  @Test
+  public void shouldAddPatternToExcludeFileFromHeader() throws IOException {
+    regexpScanner.scanHeader(javaFile, TestUtils.getResource(getClass(), "file-with-single-regexp.txt"), UTF_8, 8);
+
+    verify(patternsInitializer, times(1)).addPatternToExcludeResource(javaFile);
+    verifyNoMoreInteractions(patternsInitializer);
+  }
+
+  @Test
+  public void shouldIgnoreExclusionsAfterHeader() throws IOException {
+    regexpScanner.scanHeader(javaFile, TestUtils.getResource(getClass(), "file-with-single-regexp.txt"), UTF_8, 7);
+    regexpScanner.scanHeader(javaFile, TestUtils.getResource(getClass(), "file-with-double-regexp.txt"), UTF_8, 100);
+
+    verifyNoMoreInteractions(patternsInitializer);
+  }
+
+  @Test
+  public void shouldReuseResultOfFileWithSameContent() throws IOException {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.SCAN_CACHE_PATH_KEY, temp.newFolder("store").getAbsolutePath());
+    ScanResultStore store = new ScanResultStore(settings, null);
+    regexpScanner = new RegexpScanner(patternsInitializer, store);
+    File source = TestUtils.getResource(getClass(), "file-with-double-regexp.txt");
+    File copy = temp.newFile("copy.txt");
+    FileUtils.copyFile(source, copy);
+    JavaFile otherFile = new JavaFile("org.sonar.test.Copy");
+
+    ScanResult result = regexpScanner.scan(javaFile, source, UTF_8);
+    assertThat(store.get(store.key(copy, UTF_8, regexpScanner.getFingerprint()))).isSameAs(result);
+    assertThat(regexpScanner.scan(otherFile, copy, UTF_8)).isSameAs(result);
+
+    Set<LineRange> lineRanges = Sets.newHashSet(new LineRange(21, 25));
+    verify(patternsInitializer).addPatternToExcludeLines(javaFile, lineRanges);
+    verify(patternsInitializer).addPatternToExcludeLines(otherFile, lineRanges);
+  }
+
+  @Test
+  public void shouldReuseResultWithinAnalysisWithoutDirectory() throws IOException {
+    ScanResultStore store = new ScanResultStore(new Settings(), null);
+    regexpScanner = new RegexpScanner(patternsInitializer, store);
+    File source = TestUtils.getResource(getClass(), "file-with-double-regexp.txt");
+    File copy = temp.newFile("copy.txt");
+    FileUtils.copyFile(source, copy);
+
+    ScanResult result = regexpScanner.scan(javaFile, source, UTF_8, true);
+
+    assertThat(store.isPersistent()).isFalse();
+    assertThat(regexpScanner.scan(new JavaFile("org.sonar.test.Copy"), copy, UTF_8, true)).isSameAs(result);
+  }
+
+  @Test
+  public void shouldNotHashFilesWithoutCopiesWithoutDirectory() throws IOException {
+    ScanResultStore store = new ScanResultStore(new Settings(), null);
+    regexpScanner = new RegexpScanner(patternsInitializer, store);
+    File source = TestUtils.getResource(getClass(), "file-with-double-regexp.txt");
+
+    regexpScanner.scan(javaFile, source, UTF_8, false);
+
+    assertThat(store.get(store.key(source, UTF_8, regexpScanner.getFingerprint()))).isNull();
+    verify(patternsInitializer).addPatternToExcludeLines(javaFile, Sets.newHashSet(new LineRange(21, 25)));
+  }
+
+  @Test
+  public void shouldRecordScanEvents() throws IOException {
+    Settings settings = new Settings();
+    File events = new File(temp.getRoot(), "events.tsv");
+    settings.setProperty(Constants.EVENT_LOG_KEY, events.getAbsolutePath());
+    EventLog eventLog = new EventLog(settings, null);
+    regexpScanner = new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null), eventLog);
+    File source = TestUtils.getResource(getClass(), "file-with-double-regexp.txt");
+
+    regexpScanner.scan(javaFile, source, UTF_8);
+    regexpScanner.scanHeader(javaFile, source, UTF_8, 3);
+    eventLog.stop();
+
+    List<String> lines = FileUtils.readLines(events, "UTF-8");
+    assertThat(lines).hasSize(3);
+    String[] scan = lines.get(1).split("\t");
+    assertThat(scan[0]).isEqualTo("scan");
+    assertThat(scan[3]).isEqualTo("org.sonar.test.MyFile");
+    assertThat(scan[4]).isEqualTo("full");
+    assertThat(Long.parseLong(scan[5])).isEqualTo(source.length());
+    assertThat(Integer.parseInt(scan[6])).isEqualTo(FileUtils.readLines(source).size());
+    assertThat(scan[7]).isEqualTo("1");
+    String[] header = lines.get(2).split("\t");
+    assertThat(header[4]).isEqualTo("header");
+    assertThat(header[6]).isEqualTo("3");
+    assertThat(header[7]).isEqualTo("0");
+  }
+
+  @Test
+  public void shouldFeedMetrics() throws IOException {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.JMX_METRICS_KEY, true);
+    ExclusionMetrics metrics = new ExclusionMetrics(settings);
+    regexpScanner = new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null), null, metrics);
+    File source = TestUtils.getResource(getClass(), "file-with-double-regexp.txt");
+
+    regexpScanner.scan(javaFile, source, UTF_8);
+    regexpScanner.scanHeader(javaFile, source, UTF_8, 3);
+
+    assertThat(metrics.getFilesScanned()).isEqualTo(2L);
+    assertThat(metrics.getBytesRead()).isEqualTo(source.length());
+    assertThat(metrics.getScanResultStoreHitRate()).isEqualTo(0.0);
+    assertThat(metrics.getSlowestFile()).startsWith("org.sonar.test.MyFile (");
+  }
+
+  @Test
+  public void shouldAddRuleExclusionsOnMarkerLines() throws IOException {
+    RuleLineExclusions ruleExclusions = scanWithRuleMarker(new RuleMarkerPattern("switchoff\\(([^)]*)\\)", "", 1), "file-with-rule-markers.txt");
+
+    assertThat(ruleExclusions.getRuleKeys()).containsOnly("pmd:AvoidPrintStackTrace", "checkstyle:MagicNumber", "checkstyle:LineLength");
+    assertThat(ruleExclusions.getLineRanges("pmd:AvoidPrintStackTrace")).containsOnly(new LineRange(5, 5));
+    assertThat(ruleExclusions.getLineRanges("checkstyle:MagicNumber")).containsOnly(new LineRange(8, 8));
+    assertThat(ruleExclusions.getLineRanges("checkstyle:LineLength")).containsOnly(new LineRange(8, 8));
+  }
+
+  @Test
+  public void shouldIgnoreRuleKeysWhichCanNotBeStored() throws IOException {
+    when(patternsInitializer.getAllFilePatterns()).thenReturn(Collections.<Pattern>emptyList());
+    when(patternsInitializer.getBlockPatterns()).thenReturn(Collections.<Pattern>emptyList());
+    when(patternsInitializer.getRuleMarkerPatterns()).thenReturn(Arrays.asList(new RuleMarkerPattern("switchoff\\(([^)]*)\\)", "", 1)));
+    regexpScanner = new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null));
+
+    ScanResult result = regexpScanner.scan(javaFile, TestUtils.getResource(getClass(), "file-with-invalid-rule-markers.txt"), UTF_8);
+    ScanResult decoded = ScanResult.decode(result.encode());
+
+    for (ScanResult scanResult : Arrays.asList(result, decoded)) {
+      assertThat(scanResult.isWholeFile()).isFalse();
+      assertThat(scanResult.getLineRanges()).isEmpty();
+      assertThat(scanResult.getRuleExclusions().getRuleKeys()).containsOnly("checkstyle:MagicNumber");
+      assertThat(scanResult.getRuleExclusions().getLineRanges("checkstyle:MagicNumber")).containsOnly(new LineRange(7, 7));
+    }
+    assertThat(decoded.encode()).isEqualTo(result.encode());
+  }
+
+  @Test
+  public void shouldAddRuleExclusionsInMarkerBlocks() throws IOException {
+    RuleLineExclusions ruleExclusions = scanWithRuleMarker(new RuleMarkerPattern("(switchoff)\\(([^)]*)\\)", "switchon", 2), "file-with-rule-markers.txt");
+
+    assertThat(ruleExclusions.getLineRanges("pmd:AvoidPrintStackTrace")).containsOnly(new LineRange(5, 11));
+    assertThat(ruleExclusions.getLineRanges("checkstyle:MagicNumber")).containsOnly(new LineRange(8, 11));
+    assertThat(ruleExclusions.getLineRanges("checkstyle:LineLength")).containsOnly(new LineRange(8, 11));
+  }
+
+  @Test
+  public void shouldAddRuleExclusionsTillTheEnd() throws IOException {
+    RuleLineExclusions ruleExclusions = scanWithRuleMarker(new RuleMarkerPattern("switchoff\\(([^)]*)\\)", "switchon", 1), "file-with-rule-marker-unfinished.txt");
+
+    assertThat(ruleExclusions.getRuleKeys()).containsOnly("checkstyle:MagicNumber");
+    assertThat(ruleExclusions.getLineRanges("checkstyle:MagicNumber")).containsOnly(new LineRange(5, 9));
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailIfRuleKeyGroupDoesNotExist() {
+    when(patternsInitializer.getRuleMarkerPatterns()).thenReturn(Arrays.asList(new RuleMarkerPattern("switchoff\\(([^)]*)\\)", "", 2)));
+
+    new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null));
+  }
+
+  @Test
+  public void shouldScanFilesInParallel() throws Exception {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.PATTERNS_ALLFILE_KEY, "1");
+    settings.setProperty(Constants.PATTERNS_ALLFILE_KEY + ".1." + Constants.FILE_REGEXP, "@SONAR-IGNORE-ALL");
+    settings.setProperty(Constants.PATTERNS_BLOCK_KEY, "1,2");
+    settings.setProperty(Constants.PATTERNS_BLOCK_KEY + ".1." + Constants.BEGIN_BLOCK_REGEXP, "// SONAR-OFF");
+    settings.setProperty(Constants.PATTERNS_BLOCK_KEY + ".1." + Constants.END_BLOCK_REGEXP, "// SONAR-ON");
+    settings.setProperty(Constants.PATTERNS_BLOCK_KEY + ".2." + Constants.BEGIN_BLOCK_REGEXP, "// FOO-OFF");
+    settings.setProperty(Constants.PATTERNS_BLOCK_KEY + ".2." + Constants.END_BLOCK_REGEXP, "// FOO-ON");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY, "1");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".1." + Constants.MARKER_REGEXP, "switchoff\\(([^)]*)\\)");
+    settings.setProperty(Constants.PATTERNS_RULE_MARKER_KEY + ".1." + Constants.END_MARKER_REGEXP, "switchon");
+    PatternsInitializer initializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    final RegexpScanner scanner = new RegexpScanner(initializer, new ScanResultStore(new Settings(), null));
+
+    final File[] files = TestUtils.getResource(getClass(), "file-with-no-regexp.txt").getParentFile().listFiles();
+    final String[] expected = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      expected[i] = scanner.scan(new JavaFile("org.foo.File" + i), files[i], UTF_8).toString();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> futures = Lists.newArrayList();
+    for (int thread = 0; thread < 8; thread++) {
+      final int offset = thread;
+      futures.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() throws IOException {
+          for (int round = 0; round < 50; round++) {
+            for (int j = 0; j < files.length; j++) {
+              int i = (j + offset) % files.length;
+              if (!expected[i].equals(scanner.scan(new JavaFile("org.foo.File" + i), files[i], UTF_8).toString())) {
+                return false;
+              }
+            }
+          }
+          return true;
+        }
+      }));
+    }
+    for (Future<Boolean> future : futures) {
+      assertThat(future.get()).isTrue();
+    }
+    executor.shutdown();
+  }
+
+  private RuleLineExclusions scanWithRuleMarker(RuleMarkerPattern ruleMarkerPattern, String fileName) throws IOException {
+    when(patternsInitializer.getAllFilePatterns()).thenReturn(Collections.<Pattern>emptyList());
+    when(patternsInitializer.getBlockPatterns()).thenReturn(Collections.<Pattern>emptyList());
+    when(patternsInitializer.getRuleMarkerPatterns()).thenReturn(Arrays.asList(ruleMarkerPattern));
+    regexpScanner = new RegexpScanner(patternsInitializer, new ScanResultStore(new Settings(), null));
+
+    regexpScanner.scan(javaFile, TestUtils.getResource(getClass(), fileName), UTF_8);
+
+    ArgumentCaptor<RuleLineExclusions> captor = ArgumentCaptor.forClass(RuleLineExclusions.class);
+    verify(patternsInitializer).addRuleExclusions(eq(javaFile), captor.capture());
+    return captor.getValue();
+  }
+
 }
@@ -0,0 +1,88 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ScanBudgetTest {
+
+  @Test
+  public void shouldNotBeLimitedByDefault() {
+    ScanBudget budget = ScanBudget.start(new Settings());
+    budget.consume(Long.MAX_VALUE);
+
+    assertThat(budget.isExceeded()).isFalse();
+    assertThat(budget.getPolicy()).isEqualTo(ScanBudget.Policy.SKIP);
+    assertThat(budget.getHeaderLines()).isEqualTo(ScanBudget.DEFAULT_HEADER_LINES);
+  }
+
+  @Test
+  public void shouldExceedBytesBudget() {
+    ScanBudget budget = new ScanBudget(0, 100, ScanBudget.Policy.SKIP, 10);
+    budget.consume(99);
+    assertThat(budget.isExceeded()).isFalse();
+
+    budget.consume(1);
+    assertThat(budget.isExceeded()).isTrue();
+    assertThat(budget.getExceededBudget()).isEqualTo("budget of 100 bytes");
+  }
+
+  @Test
+  public void shouldExceedTimeBudget() throws InterruptedException {
+    ScanBudget budget = new ScanBudget(1, 0, ScanBudget.Policy.SKIP, 10);
+    Thread.sleep(10);
+
+    assertThat(budget.isExceeded()).isTrue();
+    assertThat(budget.getExceededBudget()).isEqualTo("time budget of 1 ms");
+  }
+
+  @Test
+  public void shouldDecodeSettings() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.SCAN_BUDGET_POLICY_KEY, "header");
+    settings.setProperty(Constants.SCAN_HEADER_LINES_KEY, 20);
+
+    ScanBudget budget = ScanBudget.start(settings);
+    assertThat(budget.getPolicy()).isEqualTo(ScanBudget.Policy.HEADER);
+    assertThat(budget.getHeaderLines()).isEqualTo(20);
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailOnUnknownPolicy() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.SCAN_BUDGET_POLICY_KEY, "abort");
+
+    ScanBudget.start(settings);
+  }
+
+  @Test
+  public void shouldListFilesNotFullyScanned() {
+    ScanBudget budget = new ScanBudget(0, 0, ScanBudget.Policy.SKIP, 10);
+    budget.notFullyScanned("src/Foo.php");
+
+    assertThat(budget.getNotFullyScannedFiles()).containsExactly("src/Foo.php");
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.google.common.base.Charsets.ISO_8859_1;
+import static com.google.common.base.Charsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScanResultStoreTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File directory;
+  private Settings settings;
+
+  @Before
+  public void init() throws IOException {
+    directory = temp.newFolder("store");
+    settings = new Settings();
+    settings.setProperty(Constants.SCAN_CACHE_PATH_KEY, directory.getAbsolutePath());
+  }
+
+  @Test
+  public void shouldNotBePersistentByDefault() {
+    ScanResultStore store = new ScanResultStore(new Settings(), null);
+
+    assertThat(store.isPersistent()).isFalse();
+    store.evict();
+  }
+
+  @Test
+  public void shouldResolveRelativePathFromBasedir() {
+    ProjectFileSystem fileSystem = mock(ProjectFileSystem.class);
+    when(fileSystem.getBasedir()).thenReturn(temp.getRoot());
+    settings.setProperty(Constants.SCAN_CACHE_PATH_KEY, "target/store");
+
+    assertThat(new ScanResultStore(settings, fileSystem).getDirectory()).isEqualTo(new File(temp.getRoot(), "target/store"));
+  }
+
+  @Test
+  public void shouldComputeKeyFromContentEncodingAndFingerprint() throws IOException {
+    ScanResultStore store = new ScanResultStore(settings, null);
+    File file = newFile("Foo.java", "class Foo {}");
+    File copy = newFile("Copy.java", "class Foo {}");
+    File other = newFile("Bar.java", "class Bar {}");
+
+    String key = store.key(file, UTF_8, "fingerprint");
+    assertThat(key).hasSize(40);
+    assertThat(store.key(copy, UTF_8, "fingerprint")).isEqualTo(key);
+    assertThat(store.key(other, UTF_8, "fingerprint")).isNotEqualTo(key);
+    assertThat(store.key(file, ISO_8859_1, "fingerprint")).isNotEqualTo(key);
+    assertThat(store.key(file, UTF_8, "other fingerprint")).isNotEqualTo(key);
+  }
+
+  @Test
+  public void shouldReleaseResultsOfThisRun() {
+    ScanResultStore store = new ScanResultStore(new Settings(), null);
+    store.put("0123456789", ScanResult.wholeFile());
+    assertThat(store.get("0123456789")).isNotNull();
+
+    store.releaseResultsOfThisRun();
+
+    assertThat(store.get("0123456789")).isNull();
+  }
+
+  @Test
+  public void shouldShareResultsThroughDirectory() {
+    ScanResultStore store = new ScanResultStore(settings, null);
+    assertThat(store.get("0123456789")).isNull();
+
+    store.put("0123456789", ScanResult.wholeFile());
+    assertThat(new File(directory, "01/0123456789")).exists();
+
+    ScanResult result = new ScanResultStore(settings, null).get("0123456789");
+    assertThat(result.isWholeFile()).isTrue();
+  }
+
+  @Test
+  public void shouldIgnoreInvalidEntries() throws IOException {
+    FileUtils.writeStringToFile(new File(directory, "01/0123456789"), "garbage");
+    FileUtils.writeStringToFile(new File(directory, "98/9876543210"), ScanResultStore.HEADER + "\n*;[a-b]");
+
+    ScanResultStore store = new ScanResultStore(settings, null);
+    assertThat(store.get("0123456789")).isNull();
+    assertThat(store.get("9876543210")).isNull();
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsedEntries() throws IOException {
+    settings.setProperty(Constants.SCAN_CACHE_MAX_SIZE_KEY, 1L);
+    File old = newEntry("aa/aa01", 600 * 1024, 1000L);
+    File recent = newEntry("bb/bb01", 600 * 1024, 2000L);
+
+    new ScanResultStore(settings, null).evict();
+
+    assertThat(old).doesNotExist();
+    assertThat(recent).exists();
+  }
+
+  @Test
+  public void shouldNotEvictUnderMaxSize() throws IOException {
+    File entry = newEntry("aa/aa01", 1024, 1000L);
+
+    new ScanResultStore(settings, null).evict();
+
+    assertThat(entry).exists();
+  }
+
+  private File newFile(String name, String content) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    FileUtils.writeStringToFile(file, content, UTF_8.name());
+    return file;
+  }
+
+  private File newEntry(String path, int size, long lastModified) throws IOException {
+    File entry = new File(directory, path);
+    FileUtils.writeByteArrayToFile(entry, new byte[size]);
+    entry.setLastModified(lastModified);
+    return entry;
+  }
+}
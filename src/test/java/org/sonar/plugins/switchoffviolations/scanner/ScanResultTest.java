@@ -0,0 +1,103 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.pattern.LineRange;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+import org.sonar.plugins.switchoffviolations.pattern.RuleLineExclusions;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ScanResultTest {
+
+  @Test
+  public void shouldEncodeAndDecodeExclusions() {
+    RuleLineExclusions ruleExclusions = new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(5, 5));
+    ScanResult result = ScanResult.of(Sets.newLinkedHashSet(Arrays.asList(new LineRange(21, 25), new LineRange(29, 33))), ruleExclusions);
+
+    assertThat(result.encode()).containsExactly("*;[21-25,29-33]", "pmd:AvoidPrintStackTrace;[5-5]");
+
+    ScanResult decoded = ScanResult.decode(result.encode());
+    assertThat(decoded.isWholeFile()).isFalse();
+    assertThat(decoded.getLineRanges()).containsOnly(new LineRange(21, 25), new LineRange(29, 33));
+    assertThat(decoded.getRuleExclusions().getLineRanges("pmd:AvoidPrintStackTrace")).containsOnly(new LineRange(5, 5));
+  }
+
+  @Test
+  public void shouldEncodeAndDecodeWholeFile() {
+    assertThat(ScanResult.wholeFile().encode()).containsExactly("*;*");
+    assertThat(ScanResult.decode(Arrays.asList("*;*")).isWholeFile()).isTrue();
+  }
+
+  @Test
+  public void shouldEncodeAndDecodeNoExclusion() {
+    assertThat(ScanResult.NO_EXCLUSION.encode()).isEmpty();
+    assertThat(ScanResult.decode(Collections.<String>emptyList()).isEmpty()).isTrue();
+    assertThat(ScanResult.of(Collections.<LineRange>emptySet(), new RuleLineExclusions())).isSameAs(ScanResult.NO_EXCLUSION);
+  }
+
+  @Test
+  public void shouldDecodeSingleLines() {
+    assertThat(ScanResult.decode(Arrays.asList("*;[12,15-16]")).getLineRanges()).containsOnly(new LineRange(12, 12), new LineRange(15, 16));
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailToDecodeInvalidRange() {
+    ScanResult.decode(Arrays.asList("*;[12-a]"));
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailToDecodeMissingRange() {
+    ScanResult.decode(Arrays.asList("pmd:AvoidPrintStackTrace"));
+  }
+
+  @Test
+  public void shouldApplyExclusions() {
+    PatternsInitializer patternsInitializer = mock(PatternsInitializer.class);
+    JavaFile javaFile = new JavaFile("org.foo.Bar");
+
+    ScanResult.wholeFile().applyTo(javaFile, patternsInitializer);
+    verify(patternsInitializer).addPatternToExcludeResource(javaFile);
+
+    RuleLineExclusions ruleExclusions = new RuleLineExclusions().add("pmd:AvoidPrintStackTrace", new LineRange(5, 5));
+    ScanResult.of(Sets.newHashSet(new LineRange(1, 2)), ruleExclusions).applyTo(javaFile, patternsInitializer);
+    verify(patternsInitializer).addPatternToExcludeLines(javaFile, Sets.newHashSet(new LineRange(1, 2)));
+    verify(patternsInitializer).addRuleExclusions(javaFile, ruleExclusions);
+  }
+
+  @Test
+  public void shouldNotApplyEmptyResult() {
+    PatternsInitializer patternsInitializer = mock(PatternsInitializer.class);
+    ScanResult.NO_EXCLUSION.applyTo(new JavaFile("org.foo.Bar"), patternsInitializer);
+
+    verifyZeroInteractions(patternsInitializer);
+  }
+}
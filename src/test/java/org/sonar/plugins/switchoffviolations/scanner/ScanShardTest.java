@@ -0,0 +1,84 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ScanShardTest {
+
+  @Test
+  public void shouldAssignEachFileToExactlyOneShard() {
+    ScanShard[] shards = {new ScanShard(1, 3), new ScanShard(2, 3), new ScanShard(3, 3)};
+    int[] filesByShard = new int[3];
+    for (int i = 0; i < 300; i++) {
+      String path = "src/main/java/org/foo/File" + i + ".java";
+      int owners = 0;
+      for (int s = 0; s < shards.length; s++) {
+        if (shards[s].contains(path)) {
+          owners++;
+          filesByShard[s]++;
+        }
+      }
+      assertThat(owners).isEqualTo(1);
+    }
+    for (int count : filesByShard) {
+      assertThat(count).isGreaterThan(50);
+    }
+  }
+
+  @Test
+  public void shouldIgnoreSeparatorsOfThePlatform() {
+    for (int i = 1; i <= 4; i++) {
+      ScanShard shard = new ScanShard(i, 4);
+      assertThat(shard.contains("src\\org\\foo\\Bar.java")).isEqualTo(shard.contains("src/org/foo/Bar.java"));
+    }
+  }
+
+  @Test
+  public void shouldLoadFromSettings() {
+    Settings settings = new Settings();
+    assertThat(ScanShard.fromSettings(settings)).isNull();
+
+    settings.setProperty(Constants.SCAN_SHARD_COUNT_KEY, "4");
+    settings.setProperty(Constants.SCAN_SHARD_INDEX_KEY, "2");
+    ScanShard shard = ScanShard.fromSettings(settings);
+    assertThat(shard.getIndex()).isEqualTo(2);
+    assertThat(shard.getCount()).isEqualTo(4);
+    assertThat(shard.toString()).isEqualTo("2/4");
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailIfIndexIsMissing() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.SCAN_SHARD_COUNT_KEY, "4");
+    ScanShard.fromSettings(settings);
+  }
+
+  @Test(expected = SonarException.class)
+  public void shouldFailIfIndexIsOutOfRange() {
+    new ScanShard(0, 4);
+  }
+}
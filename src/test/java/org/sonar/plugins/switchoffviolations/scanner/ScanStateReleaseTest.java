@@ -0,0 +1,54 @@
+/*
+ * Sonar Switch Off Violations Plugin
+ * Copyright (C) 2011 SonarSource
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.switchoffviolations.scanner;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.JavaFile;
+import org.sonar.api.resources.ProjectFileSystem;
+import org.sonar.plugins.switchoffviolations.Constants;
+import org.sonar.plugins.switchoffviolations.pattern.LineRange;
+import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ScanStateReleaseTest {
+
+  @Test
+  public void shouldReleaseScanState() {
+    Settings settings = new Settings();
+    settings.setProperty(Constants.EXCLUSION_REPORT_KEY, true);
+    PatternsInitializer patternsInitializer = new PatternsInitializer(settings, mock(ProjectFileSystem.class));
+    JavaFile resource = new JavaFile("org.foo.Bar");
+    patternsInitializer.addPatternToExcludeLines(resource, Sets.newHashSet(new LineRange(3, 5)));
+
+    new ScanStateRelease(settings, patternsInitializer).executeOn(null, null);
+
+    assertThat(patternsInitializer.getExtraPattern(resource)).isNull();
+  }
+
+  @Test
+  public void testToString() {
+    assertThat(new ScanStateRelease(new Settings(), null).toString()).isEqualTo("Switch Off Plugin - Scan State Release");
+  }
+}
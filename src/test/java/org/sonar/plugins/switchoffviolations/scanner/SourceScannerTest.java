@@ -20,31 +20,45 @@
 
 package org.sonar.plugins.switchoffviolations.scanner;
 
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.sonar.api.config.Settings;
 import org.sonar.api.resources.InputFile;
 import org.sonar.api.resources.InputFileUtils;
 import org.sonar.api.resources.JavaFile;
 import org.sonar.api.resources.Project;
 import org.sonar.api.resources.ProjectFileSystem;
 import org.sonar.api.utils.SonarException;
+import org.sonar.plugins.switchoffviolations.Constants;
+import org.sonar.plugins.switchoffviolations.ExclusionMetrics;
+import org.sonar.plugins.switchoffviolations.pattern.ApplicablePatterns;
 import org.sonar.plugins.switchoffviolations.pattern.Pattern;
 import org.sonar.plugins.switchoffviolations.pattern.PatternsInitializer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -61,17 +75,25 @@ public class SourceScannerTest {
   private Project project;
   @Mock
   private ProjectFileSystem fileSystem;
+  @Mock
+  private ScanResultStore resultStore;
+
+  private Settings settings;
 
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Before
   public void init() {
     MockitoAnnotations.initMocks(this);
 
     when(fileSystem.getSourceCharset()).thenReturn(UTF_8);
 
-    scanner = new SourceScanner(regexpScanner, patternsInitializer, fileSystem);
+    settings = new Settings();
+    scanner = new SourceScanner(regexpScanner, patternsInitializer, fileSystem, settings, resultStore);
   }
 
   @Test
@@ -93,6 +115,62 @@ public class SourceScannerTest {
     assertThat(scanner.shouldExecuteOnProject(null)).isFalse();
   }
 
+  @Test
+  public void shouldComputeApplicablePatternsWithoutScanning() throws IOException {
+    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(Arrays.asList(new Pattern("org.foo.*", "*")));
+    when(patternsInitializer.computeApplicablePatterns(any(org.sonar.api.resources.Resource.class))).thenReturn(ApplicablePatterns.NONE);
+    File sourceFile = new File("Foo.java");
+    File testFile = new File("FooTest.java");
+    when(project.getLanguageKey()).thenReturn("java");
+    when(fileSystem.mainFiles("java")).thenReturn(Arrays.asList(inputFile(sourceFile)));
+    when(fileSystem.testFiles("java")).thenReturn(Arrays.asList(inputFile(testFile)));
+
+    assertThat(scanner.shouldExecuteOnProject(null)).isTrue();
+    scanner.analyse(project, null);
+
+    verify(patternsInitializer).computeApplicablePatterns(new JavaFile("[default].Foo"));
+    verify(patternsInitializer).computeApplicablePatterns(new JavaFile("[default].FooTest", true));
+    verifyZeroInteractions(regexpScanner, resultStore);
+  }
+
+  @Test
+  public void shouldListSourceFilesOnce() throws IOException {
+    ExclusionMetrics metrics = mock(ExclusionMetrics.class);
+    when(metrics.isEnabled()).thenReturn(true);
+    scanner = new SourceScanner(regexpScanner, patternsInitializer, fileSystem, settings, resultStore, metrics);
+    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(Arrays.asList(new Pattern("org.foo.*", "*")));
+    when(patternsInitializer.getBlockPatterns()).thenReturn(Arrays.asList(new Pattern()));
+    when(patternsInitializer.computeApplicablePatterns(any(org.sonar.api.resources.Resource.class))).thenReturn(ApplicablePatterns.NONE);
+    when(project.getLanguageKey()).thenReturn("java");
+    when(fileSystem.mainFiles("java")).thenReturn(Arrays.asList(inputFile(new File("Foo.java"))));
+    when(fileSystem.testFiles("java")).thenReturn(Arrays.asList(inputFile(new File("FooTest.java"))));
+
+    scanner.analyse(project, null);
+
+    verify(fileSystem, times(1)).mainFiles("java");
+    verify(fileSystem, times(1)).testFiles("java");
+    verify(metrics).scanStarted(2);
+    verify(regexpScanner).scan(eq(new JavaFile("[default].Foo")), eq(new File("Foo.java")), eq(UTF_8), anyBoolean());
+    verify(regexpScanner).scan(eq(new JavaFile("[default].FooTest", true)), eq(new File("FooTest.java")), eq(UTF_8), anyBoolean());
+  }
+
+  @Test
+  public void shouldOnlyLookForCopiesOfFilesWithSameLength() throws IOException {
+    InputFile foo = inputFile(temp.getRoot(), "Foo.php", "<?php echo 'foo' ?>");
+    InputFile bar = inputFile(temp.getRoot(), "Bar.php", "<?php echo 'bar, bar' ?>");
+    InputFile copy = inputFile(temp.getRoot(), "FooTest.php", "<?php echo 'foo' ?>");
+    when(patternsInitializer.getBlockPatterns()).thenReturn(Arrays.asList(new Pattern()));
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(foo, bar));
+    when(fileSystem.testFiles("php")).thenReturn(Arrays.asList(copy));
+
+    scanner.analyse(project, null);
+
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(foo.getFile()), eq(UTF_8), eq(true));
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("FooTest.php")), eq(copy.getFile()), eq(UTF_8), eq(true));
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("Bar.php")), eq(bar.getFile()), eq(UTF_8), eq(false));
+  }
+
   @Test
   public void shouldAnalyseJavaProject() throws IOException {
     File sourceFile = new File("Foo.java");
@@ -104,8 +182,9 @@ public class SourceScannerTest {
 
     scanner.analyse(project, null);
 
-    verify(regexpScanner).scan(new JavaFile("[default].Foo"), sourceFile, UTF_8);
-    verify(regexpScanner).scan(new JavaFile("[default].FooTest", true), testFile, UTF_8);
+    verify(regexpScanner).scan(eq(new JavaFile("[default].Foo")), eq(sourceFile), eq(UTF_8), anyBoolean());
+    verify(regexpScanner).scan(eq(new JavaFile("[default].FooTest", true)), eq(testFile), eq(UTF_8), anyBoolean());
+    verify(resultStore).evict();
   }
 
   @Test
@@ -119,8 +198,8 @@ public class SourceScannerTest {
 
     scanner.analyse(project, null);
 
-    verify(regexpScanner).scan(new org.sonar.api.resources.File("Foo.php"), sourceFile, UTF_8);
-    verify(regexpScanner).scan(new org.sonar.api.resources.File("FooTest.php"), testFile, UTF_8);
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(sourceFile), eq(UTF_8), anyBoolean());
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("FooTest.php")), eq(testFile), eq(UTF_8), anyBoolean());
   }
 
   @Test
@@ -133,7 +212,7 @@ public class SourceScannerTest {
 
     scanner.analyse(project, null);
 
-    verify(regexpScanner, never()).scan(new org.sonar.api.resources.File("other.js"), sourceFile, UTF_8);
+    verify(regexpScanner, never()).scan(eq(new org.sonar.api.resources.File("other.js")), eq(sourceFile), eq(UTF_8), anyBoolean());
   }
 
   @Test
@@ -154,7 +233,7 @@ public class SourceScannerTest {
 
     when(project.getLanguageKey()).thenReturn("php");
     when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(sourceFile)));
-    doThrow(new IOException("BUG")).when(regexpScanner).scan(new org.sonar.api.resources.File("Foo.php"), sourceFile, UTF_8);
+    doThrow(new IOException("BUG")).when(regexpScanner).scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(sourceFile), eq(UTF_8), anyBoolean());
 
     thrown.expect(SonarException.class);
     thrown.expectMessage("Unable to read the source file");
@@ -162,6 +241,209 @@ public class SourceScannerTest {
     scanner.analyse(project, null);
   }
 
+  @Test
+  public void shouldSkipRemainingFilesOnceBudgetIsExceeded() throws IOException {
+    settings.setProperty(Constants.SCAN_BYTES_BUDGET_KEY, 1L);
+    InputFile foo = inputFile(temp.getRoot(), "Foo.php", "<?php echo 'foo' ?>");
+    InputFile bar = inputFile(temp.getRoot(), "Bar.php", "<?php echo 'bar' ?>");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(foo, bar));
+
+    scanner.analyse(project, null);
+
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(foo.getFile()), eq(UTF_8), anyBoolean());
+    verify(regexpScanner, never()).scan(eq(new org.sonar.api.resources.File("Bar.php")), eq(bar.getFile()), eq(UTF_8), anyBoolean());
+    verify(regexpScanner, never()).scanHeader(any(org.sonar.api.resources.File.class), any(File.class), any(Charset.class), anyInt());
+  }
+
+  @Test
+  public void shouldScanHeaderOfRemainingFilesOnceBudgetIsExceeded() throws IOException {
+    settings.setProperty(Constants.SCAN_BYTES_BUDGET_KEY, 1L);
+    settings.setProperty(Constants.SCAN_BUDGET_POLICY_KEY, "header");
+    settings.setProperty(Constants.SCAN_HEADER_LINES_KEY, 10);
+    InputFile foo = inputFile(temp.getRoot(), "Foo.php", "<?php echo 'foo' ?>");
+    InputFile bar = inputFile(temp.getRoot(), "Bar.php", "<?php echo 'bar' ?>");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(foo, bar));
+
+    scanner.analyse(project, null);
+
+    verify(regexpScanner).scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(foo.getFile()), eq(UTF_8), anyBoolean());
+    verify(regexpScanner, never()).scan(eq(new org.sonar.api.resources.File("Bar.php")), eq(bar.getFile()), eq(UTF_8), anyBoolean());
+    verify(regexpScanner).scanHeader(new org.sonar.api.resources.File("Bar.php"), bar.getFile(), UTF_8, 10);
+  }
+
+  @Test
+  public void shouldExportManifest() throws IOException {
+    File manifestFile = new File(temp.getRoot(), "manifest.txt");
+    settings.setProperty(Constants.MANIFEST_EXPORT_KEY, "manifest.txt");
+    when(fileSystem.resolvePath("manifest.txt")).thenReturn(manifestFile);
+    when(regexpScanner.getFingerprint()).thenReturn("abc");
+    File sourceFile = new File("Foo.php");
+    File testFile = new File("FooTest.php");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(sourceFile)));
+    when(fileSystem.testFiles("php")).thenReturn(Arrays.asList(inputFile(testFile)));
+    when(regexpScanner.scan(eq(new org.sonar.api.resources.File("Foo.php")), eq(sourceFile), eq(UTF_8), anyBoolean())).thenReturn(ScanResult.wholeFile());
+    when(regexpScanner.scan(eq(new org.sonar.api.resources.File("FooTest.php")), eq(testFile), eq(UTF_8), anyBoolean())).thenReturn(ScanResult.NO_EXCLUSION);
+
+    scanner.analyse(project, null);
+
+    ExclusionManifest manifest = ExclusionManifest.read(manifestFile);
+    assertThat(manifest.getFingerprint()).isEqualTo("abc");
+    assertThat(manifest.getResults().keySet()).containsOnly("Foo.php", "FooTest.php");
+    assertThat(manifest.getResults().get("Foo.php").isWholeFile()).isTrue();
+  }
+
+  @Test
+  public void shouldImportManifestInsteadOfScanning() throws IOException {
+    File manifestFile = new File(temp.getRoot(), "manifest.txt");
+    ExclusionManifest manifest = new ExclusionManifest("abc");
+    manifest.add("Foo.php", ScanResult.wholeFile());
+    manifest.write(manifestFile);
+    settings.setProperty(Constants.MANIFEST_IMPORT_KEY, "manifest.txt");
+    when(fileSystem.resolvePath("manifest.txt")).thenReturn(manifestFile);
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(new File("Foo.php")), inputFile(new File("Bar.php"))));
+
+    assertThat(scanner.shouldExecuteOnProject(project)).isTrue();
+    scanner.analyse(project, null);
+
+    verify(patternsInitializer).addPatternToExcludeResource(new org.sonar.api.resources.File("Foo.php"));
+    verify(regexpScanner, never()).scan(any(org.sonar.api.resources.File.class), any(File.class), any(Charset.class), anyBoolean());
+  }
+
+  @Test
+  public void shouldOnlyScanFilesOfTheShard() throws IOException {
+    settings.setProperty(Constants.SCAN_SHARD_COUNT_KEY, "2");
+    settings.setProperty(Constants.SCAN_SHARD_INDEX_KEY, "1");
+    File manifestFile = new File(temp.getRoot(), "shard1.txt");
+    settings.setProperty(Constants.MANIFEST_EXPORT_KEY, "shard1.txt");
+    when(fileSystem.resolvePath("shard1.txt")).thenReturn(manifestFile);
+    when(regexpScanner.getFingerprint()).thenReturn("abc");
+    when(regexpScanner.scan(any(org.sonar.api.resources.File.class), any(File.class), any(Charset.class), anyBoolean())).thenReturn(ScanResult.NO_EXCLUSION);
+
+    ScanShard shard = new ScanShard(1, 2);
+    List<InputFile> files = Lists.newArrayList();
+    List<String> expectedKeys = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      String path = "File" + i + ".php";
+      files.add(inputFile(new File(path)));
+      if (shard.contains(path)) {
+        expectedKeys.add(path);
+      }
+    }
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(files);
+
+    scanner.analyse(project, null);
+
+    assertThat(ExclusionManifest.read(manifestFile).getResults().keySet()).containsOnly(expectedKeys.toArray());
+  }
+
+  @Test
+  public void shouldRequireManifestExportToScanShard() {
+    settings.setProperty(Constants.SCAN_SHARD_COUNT_KEY, "2");
+    settings.setProperty(Constants.SCAN_SHARD_INDEX_KEY, "1");
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage(Constants.MANIFEST_EXPORT_KEY);
+
+    scanner.analyse(project, null);
+  }
+
+  @Test
+  public void shouldImportManifestsOfAllShards() throws IOException {
+    when(regexpScanner.getFingerprint()).thenReturn("abc");
+    writeManifest("shard1.txt", "Foo.php");
+    writeManifest("shard2.txt", "Bar.php");
+    settings.setProperty(Constants.MANIFEST_IMPORT_KEY, "shard1.txt,shard2.txt");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(new File("Foo.php")), inputFile(new File("Bar.php"))));
+
+    scanner.analyse(project, null);
+
+    verify(patternsInitializer).addPatternToExcludeResource(new org.sonar.api.resources.File("Foo.php"));
+    verify(patternsInitializer).addPatternToExcludeResource(new org.sonar.api.resources.File("Bar.php"));
+  }
+
+  @Test
+  public void shouldFailIfShardsDoNotCoverAllFiles() throws IOException {
+    when(regexpScanner.getFingerprint()).thenReturn("abc");
+    writeManifest("shard1.txt", "Foo.php");
+    writeManifest("shard2.txt", "Bar.php");
+    settings.setProperty(Constants.MANIFEST_IMPORT_KEY, "shard1.txt,shard2.txt");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(new File("Foo.php")), inputFile(new File("Baz.php"))));
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("First missing file: Baz.php");
+
+    scanner.analyse(project, null);
+  }
+
+  @Test
+  public void shouldFailIfShardsWereScannedWithOtherPatterns() throws IOException {
+    when(regexpScanner.getFingerprint()).thenReturn("def");
+    writeManifest("shard1.txt", "Foo.php");
+    writeManifest("shard2.txt", "Bar.php");
+    settings.setProperty(Constants.MANIFEST_IMPORT_KEY, "shard1.txt,shard2.txt");
+
+    when(project.getLanguageKey()).thenReturn("php");
+    when(fileSystem.mainFiles("php")).thenReturn(Arrays.asList(inputFile(new File("Foo.php")), inputFile(new File("Bar.php"))));
+
+    thrown.expect(SonarException.class);
+    thrown.expectMessage("were computed with other block, file or rule marker patterns");
+
+    scanner.analyse(project, null);
+  }
+
+  @Test
+  public void shouldSkipInvalidFilesWhenImportingManifest() throws IOException {
+    when(regexpScanner.getFingerprint()).thenReturn("abc");
+    writeManifest("manifest.txt", "Foo.php");
+    settings.setProperty(Constants.MANIFEST_IMPORT_KEY, "manifest.txt");
+
+    when(project.getLanguageKey()).thenReturn("java");
+    when(fileSystem.mainFiles("java")).thenReturn(Arrays.asList(invalidInputFile()));
+
+    scanner.analyse(project, null);
+
+    verify(patternsInitializer, never()).addPatternToExcludeResource(any(org.sonar.api.resources.Resource.class));
+  }
+
+  @Test
+  public void shouldSkipInvalidFilesWhenComputingApplicablePatterns() throws IOException {
+    when(patternsInitializer.getMulticriteriaPatterns()).thenReturn(Arrays.asList(new Pattern("org.foo.*", "*")));
+    when(project.getLanguageKey()).thenReturn("java");
+    when(fileSystem.mainFiles("java")).thenReturn(Arrays.asList(invalidInputFile()));
+
+    scanner.analyse(project, null);
+
+    verify(patternsInitializer, never()).computeApplicablePatterns(any(org.sonar.api.resources.Resource.class));
+  }
+
+  private void writeManifest(String name, String... resourceKeys) throws IOException {
+    ExclusionManifest manifest = new ExclusionManifest("abc");
+    for (String resourceKey : resourceKeys) {
+      manifest.add(resourceKey, ScanResult.wholeFile());
+    }
+    File file = new File(temp.getRoot(), name);
+    manifest.write(file);
+    when(fileSystem.resolvePath(name)).thenReturn(file);
+  }
+
+  private static InputFile inputFile(File baseDir, String relativePath, String content) throws IOException {
+    FileUtils.writeStringToFile(new File(baseDir, relativePath), content, UTF_8.name());
+    return InputFileUtils.create(baseDir, relativePath);
+  }
+
   private static InputFile inputFile(File file) {
     return InputFileUtils.create(null, file.getName());
   }